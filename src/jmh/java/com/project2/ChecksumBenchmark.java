@@ -0,0 +1,81 @@
+package com.project2;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of the integrity digest per chunk: the CRC32C FileDigest
+ * takes of every packet or TCP chunk as it is sent or written, against
+ * feeding the same bytes to a whole-file SHA-256, which would need the bytes
+ * in file order. finishDigest is the SHA-256 of the chunk CRCs of a 1 GB file,
+ * paid once per transfer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChecksumBenchmark {
+
+    private static final long DIGEST_FILE_SIZE = 1L << 30; // File size for finishDigest.
+
+    @Param({ "1400", "8192", "1048576" })
+    public int chunkSize;
+
+    private ByteBuffer chunk;
+    private FileDigest chunkDigest;
+    private FileDigest fileDigest;
+    private MessageDigest sha256;
+
+    @Setup(Level.Trial)
+    public void setUp() throws NoSuchAlgorithmException {
+        byte[] bytes = new byte[chunkSize];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        chunk = ByteBuffer.allocateDirect(chunkSize);
+        chunk.put(bytes).clear();
+        chunkDigest = new FileDigest(chunkSize, chunkSize);
+        sha256 = MessageDigest.getInstance("SHA-256");
+
+        // Every chunk of the large file hashed, so only the final step is measured
+        fileDigest = new FileDigest(DIGEST_FILE_SIZE, chunkSize);
+        int chunks = (int) ((DIGEST_FILE_SIZE + chunkSize - 1) / chunkSize);
+        for (int i = 0; i < chunks; i++) {
+            fileDigest.update(i, chunk, 0, (int) Math.min(chunkSize, DIGEST_FILE_SIZE - (long) i * chunkSize));
+        }
+    }
+
+    @Benchmark
+    public FileDigest crc32cChunk() {
+        chunkDigest.update(0, chunk, 0, chunkSize);
+        return chunkDigest;
+    }
+
+    @Benchmark
+    public MessageDigest sha256Chunk() {
+        chunk.clear();
+        sha256.update(chunk);
+        return sha256;
+    }
+
+    @Benchmark
+    public String finishDigest() {
+        return fileDigest.digest();
+    }
+}
@@ -0,0 +1,163 @@
+package com.project2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the per-packet cost of the RBUDP datagram path before and after the
+ * pooled buffers, over loopback.
+ * 
+ * Each operation sends one packet of a mapped file and receives it into the
+ * destination file: the array path builds a new byte array and DatagramPacket
+ * per packet as the old Sender.sendPacket did, the pooled path builds the
+ * datagram in a pooled direct buffer and uses DatagramChannel on both sides.
+ * Run with -prof gc to see the allocation per packet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DatagramPathBenchmark {
+
+    private static final int PACKETS = 1024; // Packets in the source file.
+
+    @Param({ "1400", "8192" })
+    public int packetSize;
+
+    private File source;
+    private File destination;
+    private FileChannel sourceChannel;
+    private FileChannel destinationChannel;
+    private MappedByteBuffer window;
+    private int sequenceNr;
+
+    private DatagramSocket arraySender;
+    private DatagramSocket arrayReceiver;
+    private InetAddress receiverAddress;
+    private byte[] receiveBuffer;
+    private DatagramPacket receivePacket;
+
+    private DatagramChannel pooledSender;
+    private DatagramChannel pooledReceiver;
+    private DatagramBufferPool pool;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        source = File.createTempFile("datagram-bench-source", ".bin");
+        destination = File.createTempFile("datagram-bench-destination", ".bin");
+        try (RandomAccessFile file = new RandomAccessFile(source, "rw")) {
+            byte[] chunk = new byte[packetSize];
+            for (int i = 0; i < PACKETS; i++) {
+                chunk[i % packetSize] = (byte) i;
+                file.write(chunk);
+            }
+        }
+        sourceChannel = new RandomAccessFile(source, "r").getChannel();
+        destinationChannel = new RandomAccessFile(destination, "rw").getChannel();
+        window = sourceChannel.map(FileChannel.MapMode.READ_ONLY, 0, (long) PACKETS * packetSize);
+
+        receiverAddress = InetAddress.getLoopbackAddress();
+        arrayReceiver = new DatagramSocket(0, receiverAddress);
+        arraySender = new DatagramSocket();
+        receiveBuffer = new byte[packetSize + PacketSizing.HEADER_SIZE];
+        receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+
+        pooledReceiver = DatagramChannel.open().bind(new InetSocketAddress(receiverAddress, 0));
+        pooledSender = DatagramChannel.open().connect(pooledReceiver.getLocalAddress());
+        pool = DatagramBufferPool.forPacketSize(4, packetSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        arraySender.close();
+        arrayReceiver.close();
+        pooledSender.close();
+        pooledReceiver.close();
+        sourceChannel.close();
+        destinationChannel.close();
+        source.delete();
+        destination.delete();
+    }
+
+    private int nextSequence() {
+        sequenceNr = sequenceNr % PACKETS + 1;
+        return sequenceNr;
+    }
+
+    @Benchmark
+    public int arrayPath() throws IOException {
+        int seq = nextSequence();
+        int offset = (seq - 1) * packetSize;
+
+        // Sender builds a new datagram per packet
+        byte[] message = new byte[PacketSizing.HEADER_SIZE + packetSize];
+        message[0] = (byte) (seq >> 16);
+        message[1] = (byte) (seq >> 8);
+        message[2] = (byte) seq;
+        window.get(offset, message, PacketSizing.HEADER_SIZE, packetSize);
+        arraySender.send(new DatagramPacket(message, message.length, receiverAddress, arrayReceiver.getLocalPort()));
+
+        // Receiver reads it into its buffer and writes the payload
+        receivePacket.setLength(receiveBuffer.length);
+        arrayReceiver.receive(receivePacket);
+        int received = ((receiveBuffer[0] & 0xff) << 16) + ((receiveBuffer[1] & 0xff) << 8)
+                + (receiveBuffer[2] & 0xff);
+        ByteBuffer payload = ByteBuffer.wrap(receiveBuffer, PacketSizing.HEADER_SIZE, packetSize);
+        long position = (long) (received - 1) * packetSize;
+        while (payload.hasRemaining()) {
+            position += destinationChannel.write(payload, position);
+        }
+        return received;
+    }
+
+    @Benchmark
+    public int pooledPath() throws IOException {
+        int seq = nextSequence();
+        int offset = (seq - 1) * packetSize;
+
+        // Sender builds the datagram in a pooled buffer
+        ByteBuffer message = pool.acquire();
+        RBUDPPacket.writeHeader(message, seq, 0);
+        message.put(PacketSizing.HEADER_SIZE, window, offset, packetSize);
+        pooledSender.write(message);
+        pool.release(message);
+
+        // Receiver reads it into a pooled buffer and writes the payload
+        ByteBuffer datagram = pool.acquire();
+        pooledReceiver.receive(datagram);
+        int received = RBUDPPacket.sequenceNumber(datagram);
+        datagram.limit(PacketSizing.HEADER_SIZE + packetSize).position(PacketSizing.HEADER_SIZE);
+        long position = (long) (received - 1) * packetSize;
+        while (datagram.hasRemaining()) {
+            position += destinationChannel.write(datagram, position);
+        }
+        pool.release(datagram);
+        return received;
+    }
+}
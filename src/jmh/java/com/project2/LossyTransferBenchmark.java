@@ -0,0 +1,148 @@
+package com.project2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how RBUDP recovers from a damaged path: each operation sends one
+ * file through a LossyDatagramShim set up from a loss profile, over loopback
+ * in one process, and waits until the receiver has verified it.
+ *
+ * The score is the completion time of a transfer. The counters report the
+ * goodput in MB/s, the packets the sender retransmitted and the datagrams the
+ * shim lost. Every transfer uses the same seed, so each one meets the same
+ * damage and runs can be compared against each other.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LossyTransferBenchmark {
+
+    private static final long SEED = 42; // Seed of every shim.
+    private static final long RECEIVE_TIMEOUT_MINUTES = 10; // Longest wait for the receiver to finish a file.
+
+    @Param({ "none", "loss=0.001", "loss=0.01", "loss=0.05", "burst=0.001/32", "reorder=0.05",
+            "duplicate=0.05", "delay=2000/1000" })
+    public String profile;
+
+    @Param({ "67108864" })
+    public long size;
+
+    private File source;
+    private Receiver receiver;
+    private Sender sender;
+    private final BlockingQueue<String> received = new LinkedBlockingQueue<>(); // Paths the receiver verified.
+    private volatile String failure; // First error reported by either end.
+
+    /**
+     * What a transfer cost on the damaged path, reset by JMH before each
+     * iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Recovery {
+        public long retransmitted; // Packets the sender resent.
+        public long dropped; // Datagrams the shim lost.
+        long bytes; // Bytes of the file.
+        long nanos; // Time the transfer took.
+
+        /**
+         * @return The goodput of the transfer in MB/s.
+         */
+        public double goodputMegabytesPerSecond() {
+            return nanos == 0 ? 0 : bytes / 1e6 / (nanos / 1e9);
+        }
+    }
+
+    /**
+     * Listener of both ends that records results instead of showing them.
+     */
+    private class BenchmarkListener implements TransferListener {
+        @Override
+        public void fileReceived(String path) {
+            received.add(path);
+        }
+
+        @Override
+        public void error(String message) {
+            failure = message;
+        }
+
+        @Override
+        public void connectionLost() {
+            failure = "Connection to the receiver lost";
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        source = File.createTempFile("lossy-source", ".bin");
+        try (RandomAccessFile file = new RandomAccessFile(source, "rw")) {
+            byte[] block = new byte[1 << 20];
+            for (int i = 0; i < block.length; i++) {
+                block[i] = (byte) (i * 31 + (i >> 12));
+            }
+            for (long written = 0; written < size; written += block.length) {
+                file.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+        receiver = new Receiver(new BenchmarkListener());
+        if (!receiver.startTCPConnection(0)) {
+            throw new IOException("Receiver could not listen");
+        }
+        sender = new Sender(new BenchmarkListener());
+        if (!sender.connectToReceiver("127.0.0.1", receiver.getPort())) {
+            throw new IOException("Sender could not connect");
+        }
+        sender.setupUDP();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sender.closeResources();
+        receiver.closeResources();
+        source.delete();
+        new File(ReceiverSession.TEMP_DIR, source.getName()).delete();
+    }
+
+    @Benchmark
+    public void transfer(Recovery recovery) throws Exception {
+        try (LossyDatagramShim shim = LossyDatagramShim.parse(profile, SEED)) {
+            sender.setDatagramShim(shim);
+            long started = System.nanoTime();
+            sender.sendRBUDP(source);
+            String path = received.poll(RECEIVE_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+            if (failure != null || path == null) {
+                throw new IOException(failure != null ? failure : "Receiver did not finish " + source.getName());
+            }
+            recovery.nanos += System.nanoTime() - started;
+            recovery.bytes += size;
+            recovery.retransmitted += sender.getPacketsRetransmitted();
+            recovery.dropped += shim.getDropped();
+        } finally {
+            sender.setDatagramShim(null);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.project2;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a parallel TCP transfer of one file over loopback with 1 to 8
+ * streams. Each operation sends the whole file and waits until the receiver
+ * has written every range.
+ * 
+ * Loopback has no latency, so this shows how the per-stream cost scales with
+ * cores; the gain on long fat links comes on top of that.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParallelTCPBenchmark {
+
+    @Param({ "1", "2", "4", "8" })
+    public int streams;
+
+    @Param({ "268435456" })
+    public long fileSize;
+
+    private File source;
+    private File destination;
+    private FileChannel sourceChannel;
+    private RandomAccessFile destinationFile;
+    private ServerSocketChannel serverSocket;
+    private InetSocketAddress target;
+    private List<long[]> pieces;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        source = File.createTempFile("parallel-source", ".bin");
+        destination = File.createTempFile("parallel-destination", ".bin");
+        try (RandomAccessFile file = new RandomAccessFile(source, "rw")) {
+            byte[] block = new byte[1 << 20];
+            for (int i = 0; i < block.length; i++) {
+                block[i] = (byte) (i * 31);
+            }
+            for (long written = 0; written < fileSize; written += block.length) {
+                file.write(block, 0, (int) Math.min(block.length, fileSize - written));
+            }
+        }
+        sourceChannel = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+        destinationFile = new RandomAccessFile(destination, "rw");
+        destinationFile.setLength(fileSize);
+        serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        target = new InetSocketAddress("127.0.0.1", serverSocket.socket().getLocalPort());
+        pieces = ParallelTCPTransfer.split(Collections.singletonList(new long[] { 0, fileSize }), streams);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        serverSocket.close();
+        sourceChannel.close();
+        destinationFile.close();
+        source.delete();
+        destination.delete();
+    }
+
+    @Benchmark
+    public void transfer() throws Exception {
+        try (TransferScope scope = new TransferScope()) {
+            AtomicReference<Exception> failure = new AtomicReference<>();
+            Thread receiver = new Thread(() -> {
+                try (TransferScope receiving = new TransferScope()) {
+                    ParallelTCPTransfer.receiveRanges(receiving, this::acceptStream, destinationFile.getChannel(),
+                            fileSize, pieces.size(), false, (offset, length, data) -> {
+                            });
+                } catch (IOException e) {
+                    failure.set(e);
+                }
+            });
+            receiver.start();
+            ParallelTCPTransfer.sendRanges(scope, sourceChannel, pieces, target, 0, false, (offset, length, data) -> {
+            });
+            receiver.join();
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+        }
+    }
+
+    /**
+     * Accepts the next data connection and skips the part of its header the
+     * receiver reads when routing it.
+     */
+    private SocketChannel acceptStream() throws IOException {
+        SocketChannel channel = serverSocket.accept();
+        ByteBuffer route = ByteBuffer.allocate(ParallelTCPTransfer.ROUTE_HEADER_SIZE);
+        while (route.hasRemaining()) {
+            if (channel.read(route) < 0) {
+                throw new EOFException("Data connection closed inside its header");
+            }
+        }
+        return channel;
+    }
+}
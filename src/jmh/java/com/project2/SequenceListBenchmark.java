@@ -0,0 +1,111 @@
+package com.project2;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the cost of one block's list exchange with the dotted text lists
+ * against the bitmap messages.
+ * 
+ * Each operation is the exchange for the last block of a file of the given
+ * number of packets: the sender builds and encodes its list, the receiver
+ * decodes it, checks every sequence against what it has received and encodes
+ * the missing sequences, and the sender decodes that reply. One in every
+ * hundred packets of the block is treated as lost.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SequenceListBenchmark {
+
+    private static final int LIST_SIZE = 1000; // Packets per block, as in Sender.
+
+    @Param({ "1000", "100000", "1000000" })
+    public int packets;
+
+    private int blockId;
+    private int firstSequence;
+    private int lastSequence;
+    private ArrayList<Integer> textReceived;
+    private SequenceTracker bitmapReceived;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        blockId = (packets - 1) / LIST_SIZE;
+        firstSequence = blockId * LIST_SIZE + 1;
+        lastSequence = packets;
+        textReceived = new ArrayList<>(packets);
+        bitmapReceived = new SequenceTracker(packets);
+        for (int seq = 1; seq <= packets; seq++) {
+            if (seq < firstSequence || seq % 100 != 0) {
+                textReceived.add(seq);
+                bitmapReceived.markReceived(seq);
+            }
+        }
+    }
+
+    @Benchmark
+    public String textLists() {
+        // Sender builds the list as the old Sender.sendList did
+        String sequencesSent = "";
+        for (int seq = firstSequence; seq <= lastSequence; seq++) {
+            sequencesSent = sequencesSent + "." + seq;
+        }
+
+        // Receiver checks it as the old Receiver.sequenceListsReceived did
+        String message = sequencesSent.substring(1);
+        String[] sequencesToCheck = message.split("\\.");
+        String sequencesNotReceived = "";
+        for (int i = 0; i < sequencesToCheck.length; i++) {
+            if (!textReceived.contains(Integer.parseInt(sequencesToCheck[i]))) {
+                sequencesNotReceived = sequencesNotReceived + "." + sequencesToCheck[i];
+            }
+        }
+
+        // Sender parses the reply
+        String[] parts = sequencesNotReceived.substring(1).split("\\.");
+        int total = 0;
+        for (String part : parts) {
+            total += Integer.parseInt(part);
+        }
+        return sequencesNotReceived + total;
+    }
+
+    @Benchmark
+    public int bitmapMessages() {
+        // Sender builds and encodes the block bitmap
+        BlockBitmap sent = new BlockBitmap(blockId, firstSequence, LIST_SIZE);
+        for (int seq = firstSequence; seq <= lastSequence; seq++) {
+            sent.set(seq);
+        }
+        String message = sent.encode(BlockBitmap.BLOCK_HEADER);
+
+        // Receiver decodes it and answers with the missing bitmap
+        BlockBitmap missing = bitmapReceived.missingFrom(BlockBitmap.decode(message));
+        String reply = missing.encode(BlockBitmap.MISSING_HEADER);
+
+        // Sender decodes the reply
+        BlockBitmap toResend = BlockBitmap.decode(reply);
+        int total = 0;
+        for (int seq = toResend.nextSetBit(firstSequence); seq != -1; seq = toResend.nextSetBit(seq + 1)) {
+            total += seq;
+        }
+        return total + reply.length();
+    }
+}
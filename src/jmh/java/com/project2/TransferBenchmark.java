@@ -0,0 +1,187 @@
+package com.project2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures whole file transfers through the real Sender and Receiver over
+ * loopback, in one process: the TCP path (Sender.sendTCP into
+ * ReceiverSession.TCPReceiveFile) and the RBUDP path (Sender.sendRBUDP into
+ * ReceiverSession.RBUDPReceiveFile). Each operation sends the file on an open
+ * control connection and waits until the receiver has verified it.
+ *
+ * Besides transfers per second, the counters report the goodput in MB/s and
+ * the CPU time of the whole process per packet and per megabyte. A packet is
+ * an RBUDP datagram payload, or a chunk of FileDigest.TCP_CHUNK_SIZE bytes for
+ * TCP, which is hashed and journaled as a unit. Run with -prof gc for the
+ * allocation rate, and with -jvmArgsAppend -Dproject2.receiver.engine=selector
+ * to measure the selector engine.
+ *
+ * The 4 GB file needs twice its size free in java.io.tmpdir; pass
+ * -p size=... to leave it out.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TransferBenchmark {
+
+    private static final long RECEIVE_TIMEOUT_MINUTES = 10; // Longest wait for the receiver to finish a file.
+
+    @Param({ "tcp", "rbudp" })
+    public String protocol;
+
+    @Param({ "4096", "1048576", "67108864", "1073741824", "4294967296" })
+    public long size;
+
+    private File source;
+    private Receiver receiver;
+    private Sender sender;
+    private final BlockingQueue<String> received = new LinkedBlockingQueue<>(); // Paths the receiver verified.
+    private volatile String failure; // First error reported by either end.
+
+    /**
+     * Counters of the transfers run in an iteration, reset by JMH before each
+     * iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Goodput {
+        public double megabytes; // Megabytes transferred, reported per second.
+    }
+
+    /**
+     * CPU time of the process spent on the transfers of an iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class CpuCost {
+        long cpuNanos; // Process CPU time of the transfers.
+        long packets; // Packets of the transfers.
+        long bytes; // Bytes of the transfers.
+
+        /**
+         * @return The CPU time per packet in nanoseconds.
+         */
+        public double cpuNanosPerPacket() {
+            return packets == 0 ? 0 : (double) cpuNanos / packets;
+        }
+
+        /**
+         * @return The CPU time per megabyte in nanoseconds.
+         */
+        public double cpuNanosPerMegabyte() {
+            return bytes == 0 ? 0 : cpuNanos / (bytes / 1e6);
+        }
+
+        /**
+         * Clears the counters for the next iteration.
+         */
+        @Setup(Level.Iteration)
+        public void reset() {
+            cpuNanos = 0;
+            packets = 0;
+            bytes = 0;
+        }
+    }
+
+    /**
+     * Listener of both ends that records results instead of showing them.
+     */
+    private class BenchmarkListener implements TransferListener {
+        @Override
+        public void fileReceived(String path) {
+            received.add(path);
+        }
+
+        @Override
+        public void error(String message) {
+            failure = message;
+        }
+
+        @Override
+        public void connectionLost() {
+            failure = "Connection to the receiver lost";
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        source = File.createTempFile("transfer-source", ".bin");
+        try (RandomAccessFile file = new RandomAccessFile(source, "rw")) {
+            byte[] block = new byte[1 << 20];
+            for (int i = 0; i < block.length; i++) {
+                block[i] = (byte) (i * 31 + (i >> 12));
+            }
+            for (long written = 0; written < size; written += block.length) {
+                file.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+        receiver = new Receiver(new BenchmarkListener());
+        if (!receiver.startTCPConnection(0)) {
+            throw new IOException("Receiver could not listen");
+        }
+        sender = new Sender(new BenchmarkListener());
+        if (!sender.connectToReceiver("127.0.0.1", receiver.getPort())) {
+            throw new IOException("Sender could not connect");
+        }
+        sender.setupUDP();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sender.closeResources();
+        receiver.closeResources();
+        source.delete();
+        new File(ReceiverSession.TEMP_DIR, source.getName()).delete();
+    }
+
+    @Benchmark
+    public void transfer(Goodput goodput, CpuCost cost) throws Exception {
+        long cpuStart = processCpuTime();
+        if (protocol.equals("tcp")) {
+            sender.sendTCP(source);
+        } else {
+            sender.sendRBUDP(source);
+        }
+        String path = received.poll(RECEIVE_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+        if (failure != null || path == null) {
+            throw new IOException(failure != null ? failure : "Receiver did not finish " + source.getName());
+        }
+        cost.cpuNanos += processCpuTime() - cpuStart;
+        int packetSize = protocol.equals("tcp") ? FileDigest.TCP_CHUNK_SIZE : sender.getPacketSize();
+        cost.packets += Math.max(1, (size + packetSize - 1) / packetSize);
+        cost.bytes += size;
+        goodput.megabytes += size / 1e6;
+    }
+
+    /**
+     * @return The CPU time used by every thread of the process so far.
+     */
+    private static long processCpuTime() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+                .getProcessCpuTime();
+    }
+}
@@ -0,0 +1,214 @@
+package com.project2;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The list of files in a batch transfer, sent ahead of their contents so the
+ * receiver knows where every byte of the batch stream belongs.
+ *
+ * Each entry is a relative path using '/' between directories, the file size
+ * and the sender's version of the file. On the control channel the manifest is
+ * the number of entries followed by one "size version path" line per entry.
+ * The contents of the files follow each other in manifest order.
+ */
+public class BatchManifest {
+
+    public static final int MAX_ENTRIES = 1_000_000; // Largest number of files accepted in one batch.
+    public static final int STREAM_CHUNK_SIZE = FileDigest.TCP_CHUNK_SIZE; // Stream bytes sent and hashed at a time.
+
+    private final List<Entry> entries = new ArrayList<>(); // The files in stream order.
+    private long totalSize; // Sum of the file sizes.
+
+    /**
+     * A file in the batch.
+     */
+    public static class Entry {
+        private final String path; // Relative path of the file at the receiver.
+        private final long size; // Size of the file.
+        private final long version; // The sender's version of the file.
+        private final File source; // The file at the sender, null at the receiver.
+
+        /**
+         * Constructs an entry of the manifest.
+         *
+         * @param path    The relative path of the file.
+         * @param size    The size of the file.
+         * @param version The sender's version of the file.
+         * @param source  The file at the sender, null at the receiver.
+         */
+        public Entry(String path, long size, long version, File source) {
+            this.path = path;
+            this.size = size;
+            this.version = version;
+            this.source = source;
+        }
+
+        /**
+         * @return The relative path of the file, '/' between directories.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return The size of the file.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return The sender's version of the file.
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return The file at the sender, null at the receiver.
+         */
+        public File getSource() {
+            return source;
+        }
+    }
+
+    /**
+     * Adds a file, or every file in a directory tree. A file is sent under its
+     * name, the files of a directory under the directory's name followed by
+     * their path within it.
+     *
+     * @param fileOrDirectory The file or directory to add.
+     * @throws IOException If the directory cannot be walked.
+     */
+    public void addTree(File fileOrDirectory) throws IOException {
+        if (!fileOrDirectory.isDirectory()) {
+            add(fileOrDirectory, fileOrDirectory.getName());
+            return;
+        }
+        Path root = fileOrDirectory.toPath();
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            String relative = root.relativize(file).toString().replace(File.separatorChar, '/');
+            add(file.toFile(), fileOrDirectory.getName() + "/" + relative);
+        }
+    }
+
+    /**
+     * Adds a file under a relative path.
+     *
+     * @param file The file to send.
+     * @param path The relative path of the file at the receiver.
+     */
+    public void add(File file, String path) {
+        entries.add(new Entry(path, file.length(), file.lastModified(), file));
+        totalSize += file.length();
+    }
+
+    /**
+     * @return The files in stream order.
+     */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * @return The size of the batch stream, the sum of the file sizes.
+     */
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * Writes the manifest to the control channel without flushing it.
+     *
+     * @param out The writer of the control channel.
+     * @throws IOException If the manifest cannot be written.
+     */
+    public void write(BufferedWriter out) throws IOException {
+        out.write(Integer.toString(entries.size()));
+        out.newLine();
+        for (Entry entry : entries) {
+            out.write(entry.getSize() + " " + entry.getVersion() + " " + entry.getPath());
+            out.newLine();
+        }
+    }
+
+    /**
+     * Reads a manifest written by write. Paths that could leave the receiving
+     * directory are refused.
+     *
+     * @param in The reader of the control channel.
+     * @return The manifest.
+     * @throws IOException If the manifest cannot be read or is invalid.
+     */
+    public static BatchManifest read(BufferedReader in) throws IOException {
+        BatchManifest manifest = new BatchManifest();
+        try {
+            int count = Integer.parseInt(readLine(in));
+            if (count < 0 || count > MAX_ENTRIES) {
+                throw new IOException("Invalid number of files in batch: " + count);
+            }
+            for (int i = 0; i < count; i++) {
+                String[] fields = readLine(in).split(" ", 3);
+                if (fields.length != 3) {
+                    throw new IOException("Invalid manifest entry: " + String.join(" ", fields));
+                }
+                long size = Long.parseLong(fields[0]);
+                if (size < 0) {
+                    throw new IOException("Invalid file size in manifest: " + size);
+                }
+                manifest.entries.add(new Entry(checkPath(fields[2]), size, Long.parseLong(fields[1]), null));
+                manifest.totalSize += size;
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid manifest", e);
+        }
+        return manifest;
+    }
+
+    /**
+     * Reads a line of the manifest, failing if the connection closed.
+     */
+    private static String readLine(BufferedReader in) throws IOException {
+        String line = in.readLine();
+        if (line == null) {
+            throw new EOFException("Sender closed the connection inside the manifest");
+        }
+        return line;
+    }
+
+    /**
+     * Checks that a relative path stays inside the directory it is resolved
+     * against.
+     *
+     * @param path The relative path, '/' between directories.
+     * @return The path.
+     * @throws IOException If the path is absolute, empty or climbs out with
+     *                     "..".
+     */
+    public static String checkPath(String path) throws IOException {
+        if (path.isEmpty() || path.startsWith("/") || path.contains("\\") || path.contains(":")) {
+            throw new IOException("Invalid path in manifest: " + path);
+        }
+        for (String segment : path.split("/", -1)) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+                throw new IOException("Invalid path in manifest: " + path);
+            }
+        }
+        return path;
+    }
+}
@@ -0,0 +1,158 @@
+package com.project2;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits the stream of a batch transfer back into its files. Bytes are handed
+ * in as they arrive and written to the file of the manifest entry they belong
+ * to, opening each file when its first byte arrives and closing it after its
+ * last, so only one file is open at a time.
+ */
+public class BatchWriter {
+
+    private final List<BatchManifest.Entry> entries; // The files in stream order.
+    private final File directory; // The directory the relative paths are resolved against.
+    private final List<File> files = new ArrayList<>(); // The files created so far.
+    private int current; // Index of the entry being written.
+    private long currentWritten; // Bytes of the current entry written so far.
+    private FileChannel currentChannel; // Channel of the current entry's file, null between files.
+
+    /**
+     * Creates a writer for the files of a manifest.
+     *
+     * @param manifest  The manifest of the batch.
+     * @param directory The directory the files are created in.
+     */
+    public BatchWriter(BatchManifest manifest, File directory) {
+        this.entries = manifest.getEntries();
+        this.directory = directory;
+    }
+
+    /**
+     * Writes the remaining bytes of a buffer to the files they belong to. The
+     * buffer's position is moved to its limit.
+     *
+     * @param data The next bytes of the batch stream.
+     * @throws IOException If a file cannot be created or written, or the
+     *                     stream is longer than the manifest.
+     */
+    public void write(ByteBuffer data) throws IOException {
+        int limit = data.limit();
+        while (data.hasRemaining()) {
+            openCurrent();
+            if (currentChannel == null) {
+                throw new IOException("Batch stream is longer than its manifest");
+            }
+            int length = (int) Math.min(data.remaining(), entries.get(current).getSize() - currentWritten);
+            data.limit(data.position() + length);
+            while (data.hasRemaining()) {
+                currentWritten += currentChannel.write(data, currentWritten);
+            }
+            data.limit(limit);
+            closeCurrentIfComplete();
+        }
+    }
+
+    /**
+     * Creates the empty files left at the end of the manifest and checks that
+     * every file has been written completely.
+     *
+     * @throws IOException If the stream was shorter than the manifest.
+     */
+    public void finish() throws IOException {
+        openCurrent();
+        if (currentChannel != null) {
+            throw new IOException("Batch ended inside " + entries.get(current).getPath());
+        }
+    }
+
+    /**
+     * Opens the file of the current entry if it is not open yet, skipping past
+     * empty files after creating them. Leaves no file open once every entry
+     * has been written.
+     */
+    private void openCurrent() throws IOException {
+        while (currentChannel == null && current < entries.size()) {
+            BatchManifest.Entry entry = entries.get(current);
+            File file = new File(directory, entry.getPath().replace('/', File.separatorChar));
+            File parent = file.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Unable to create directory " + parent.getPath());
+            }
+            files.add(file);
+            currentWritten = 0;
+            currentChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            closeCurrentIfComplete();
+        }
+    }
+
+    /**
+     * Closes the current file once all of its bytes have been written and
+     * moves on to the next entry.
+     */
+    private void closeCurrentIfComplete() throws IOException {
+        if (currentWritten == entries.get(current).getSize()) {
+            currentChannel.close();
+            currentChannel = null;
+            current++;
+        }
+    }
+
+    /**
+     * @return The files created so far, in manifest order.
+     */
+    public List<File> getFiles() {
+        return files;
+    }
+
+    /**
+     * Works out which files hold bytes of the given ranges of the batch
+     * stream.
+     *
+     * @param ranges Ranges of the batch stream.
+     * @return The files overlapping any of the ranges.
+     */
+    public List<File> filesIn(ByteRangeSet ranges) {
+        List<File> overlapping = new ArrayList<>();
+        List<long[]> list = ranges.toList();
+        long start = 0;
+        for (int i = 0; i < files.size(); i++) {
+            long end = start + entries.get(i).getSize();
+            for (long[] range : list) {
+                if (range[0] < end && range[1] > start) {
+                    overlapping.add(files.get(i));
+                    break;
+                }
+            }
+            start = end;
+        }
+        return overlapping;
+    }
+
+    /**
+     * Closes the file being written, if any, and deletes it, as it will never
+     * be complete.
+     */
+    public void abort() {
+        if (currentChannel == null) {
+            return;
+        }
+        try {
+            currentChannel.close();
+        } catch (IOException e) {
+            System.out.println("Unable to close " + entries.get(current).getPath());
+        }
+        currentChannel = null;
+        File partial = files.get(files.size() - 1);
+        if (!partial.delete()) {
+            System.out.println("Unable to delete " + partial.getPath());
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.project2;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Base64;
+
+/**
+ * A compact set of the sequence numbers belonging to one RBUDP block.
+ * 
+ * Used on the TCP control channel in place of the dotted text lists: the
+ * sender announces the packets it blasted for a block and the receiver answers
+ * with the ones it is missing. A message is a single line holding a header, the
+ * block id, the first sequence number and bit count of the block, and the bits
+ * themselves encoded in Base64.
+ */
+public class BlockBitmap {
+
+    public static final String BLOCK_HEADER = "##BLOCK"; // Sequences the sender blasted for a block.
+    public static final String MISSING_HEADER = "##MISSING"; // Sequences the receiver did not get.
+
+    private final int blockId; // Index of the block within the file.
+    private final int firstSequence; // Sequence number represented by bit 0.
+    private final int count; // Number of sequence numbers covered by the block.
+    private final long[] words; // The bits, 64 sequence numbers per word.
+
+    /**
+     * Constructs an empty bitmap for a block.
+     *
+     * @param blockId       The index of the block within the file.
+     * @param firstSequence The first sequence number of the block.
+     * @param count         The number of sequence numbers in the block.
+     */
+    public BlockBitmap(int blockId, int firstSequence, int count) {
+        this.blockId = blockId;
+        this.firstSequence = firstSequence;
+        this.count = count;
+        this.words = new long[(count + 63) >>> 6];
+    }
+
+    public int getBlockId() {
+        return blockId;
+    }
+
+    public int getFirstSequence() {
+        return firstSequence;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Adds a sequence number to the bitmap.
+     *
+     * @param sequenceNumber A sequence number inside the block.
+     */
+    public void set(int sequenceNumber) {
+        int bit = bitOf(sequenceNumber);
+        words[bit >>> 6] |= 1L << bit;
+    }
+
+    /**
+     * Checks whether a sequence number is in the bitmap.
+     *
+     * @param sequenceNumber The sequence number to check.
+     * @return true if the sequence number is in the block and set.
+     */
+    public boolean get(int sequenceNumber) {
+        int bit = sequenceNumber - firstSequence;
+        if (bit < 0 || bit >= count) {
+            return false;
+        }
+        return (words[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    /**
+     * Returns the first set sequence number at or after the given one.
+     *
+     * @param sequenceNumber The sequence number to start searching from.
+     * @return The next set sequence number, or -1 if there is none.
+     */
+    public int nextSetBit(int sequenceNumber) {
+        int bit = Math.max(0, sequenceNumber - firstSequence);
+        if (bit >= count) {
+            return -1;
+        }
+        int index = bit >>> 6;
+        long word = words[index] & (-1L << bit);
+        while (true) {
+            if (word != 0) {
+                int found = (index << 6) + Long.numberOfTrailingZeros(word);
+                return found < count ? firstSequence + found : -1;
+            }
+            if (++index == words.length) {
+                return -1;
+            }
+            word = words[index];
+        }
+    }
+
+    /**
+     * @return The number of sequence numbers in the bitmap.
+     */
+    public int cardinality() {
+        int total = 0;
+        for (long word : words) {
+            total += Long.bitCount(word);
+        }
+        return total;
+    }
+
+    /**
+     * @return true if no sequence numbers are set.
+     */
+    public boolean isEmpty() {
+        for (long word : words) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes every sequence number from the bitmap.
+     */
+    public void clear() {
+        for (int i = 0; i < words.length; i++) {
+            words[i] = 0;
+        }
+    }
+
+    /**
+     * Encodes the bitmap as a single control channel line.
+     *
+     * @param header The message header, BLOCK_HEADER or MISSING_HEADER.
+     * @return The encoded message.
+     */
+    public String encode(String header) {
+        ByteBuffer bytes = ByteBuffer.allocate(words.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+        for (long word : words) {
+            bytes.putLong(word);
+        }
+        byte[] bits = new byte[(count + 7) >>> 3];
+        System.arraycopy(bytes.array(), 0, bits, 0, bits.length);
+        return header + " " + blockId + " " + firstSequence + " " + count + " "
+                + Base64.getEncoder().encodeToString(bits);
+    }
+
+    /**
+     * Decodes a control channel line produced by encode.
+     *
+     * @param message The message to decode.
+     * @return The decoded bitmap.
+     * @throws IllegalArgumentException If the message is not a bitmap message.
+     */
+    public static BlockBitmap decode(String message) {
+        String[] parts = message.split(" ", -1);
+        if (parts.length != 5) {
+            throw new IllegalArgumentException("Malformed bitmap message: " + message);
+        }
+        BlockBitmap bitmap = new BlockBitmap(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
+                Integer.parseInt(parts[3]));
+        byte[] bits = Base64.getDecoder().decode(parts[4]);
+        if (bits.length != (bitmap.count + 7) >>> 3) {
+            throw new IllegalArgumentException("Bitmap length does not match count: " + message);
+        }
+        for (int i = 0; i < bits.length; i++) {
+            bitmap.words[i >>> 3] |= (bits[i] & 0xffL) << ((i & 7) << 3);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Maps a sequence number to its bit index, rejecting numbers outside the
+     * block.
+     */
+    private int bitOf(int sequenceNumber) {
+        int bit = sequenceNumber - firstSequence;
+        if (bit < 0 || bit >= count) {
+            throw new IllegalArgumentException("Sequence " + sequenceNumber + " is not in block " + blockId);
+        }
+        return bit;
+    }
+}
@@ -0,0 +1,131 @@
+package com.project2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A set of half-open byte ranges [start, end) of a file, kept merged.
+ * 
+ * Used to record which parts of a TCP transfer have been written and to work
+ * out which parts are still missing when a transfer is resumed. Ranges are
+ * encoded as "start-end,start-end" for the control channel and the journal.
+ */
+public class ByteRangeSet {
+
+    private static final String EMPTY = "none"; // Encoding of a set without ranges.
+
+    private final TreeMap<Long, Long> ranges = new TreeMap<>(); // Range starts mapped to range ends.
+
+    /**
+     * Adds a range to the set, merging it with any ranges it touches.
+     *
+     * @param start The first byte of the range.
+     * @param end   The byte after the last byte of the range.
+     */
+    public synchronized void add(long start, long end) {
+        if (end <= start) {
+            return;
+        }
+        Map.Entry<Long, Long> before = ranges.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        Map.Entry<Long, Long> next = ranges.ceilingEntry(start);
+        while (next != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            ranges.remove(next.getKey());
+            next = ranges.ceilingEntry(start);
+        }
+        ranges.put(start, end);
+    }
+
+    /**
+     * @return The total number of bytes covered by the set.
+     */
+    public synchronized long totalLength() {
+        long total = 0;
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            total += range.getValue() - range.getKey();
+        }
+        return total;
+    }
+
+    /**
+     * @return true if the set holds no ranges.
+     */
+    public synchronized boolean isEmpty() {
+        return ranges.isEmpty();
+    }
+
+    /**
+     * Returns the ranges of a file of the given size that are not in the set.
+     *
+     * @param size The size of the file.
+     * @return The missing ranges.
+     */
+    public synchronized ByteRangeSet complement(long size) {
+        ByteRangeSet missing = new ByteRangeSet();
+        long position = 0;
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            missing.add(position, Math.min(range.getKey(), size));
+            position = Math.max(position, range.getValue());
+        }
+        missing.add(position, size);
+        return missing;
+    }
+
+    /**
+     * @return The ranges as {start, end} pairs in ascending order.
+     */
+    public synchronized List<long[]> toList() {
+        List<long[]> list = new ArrayList<>();
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            list.add(new long[] { range.getKey(), range.getValue() });
+        }
+        return list;
+    }
+
+    /**
+     * Encodes the set for the control channel or the journal.
+     *
+     * @return The ranges as "start-end,start-end", or "none" if empty.
+     */
+    public synchronized String encode() {
+        if (ranges.isEmpty()) {
+            return EMPTY;
+        }
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(range.getKey()).append('-').append(range.getValue());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Decodes a set produced by encode.
+     *
+     * @param encoded The encoded ranges.
+     * @return The decoded set.
+     * @throws IllegalArgumentException If the text is not a list of ranges.
+     */
+    public static ByteRangeSet decode(String encoded) {
+        ByteRangeSet set = new ByteRangeSet();
+        if (encoded == null || encoded.equals(EMPTY)) {
+            return set;
+        }
+        for (String range : encoded.split(",")) {
+            int dash = range.indexOf('-');
+            if (dash < 0) {
+                throw new IllegalArgumentException("Malformed range: " + range);
+            }
+            set.add(Long.parseLong(range.substring(0, dash)), Long.parseLong(range.substring(dash + 1)));
+        }
+        return set;
+    }
+}
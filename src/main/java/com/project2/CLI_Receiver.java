@@ -0,0 +1,158 @@
+package com.project2;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Receives files as a long-running daemon, without starting JavaFX, so a
+ * headless server can take transfers from any number of senders.
+ *
+ * Usage: CLI_Receiver [options] port
+ *
+ * Received files stay in the receiver's temporary directory unless --dir
+ * names a directory to move them to, keeping the paths of batches. The
+ * daemon runs until it is killed, closing its sessions on the way out.
+ */
+public class CLI_Receiver implements TransferListener {
+
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: CLI_Receiver [options] <port>",
+            "  --dir <directory>           Where to move received files (default: leave them in "
+                    + ReceiverSession.TEMP_DIR + ")",
+            "  --udp-channels <n>          UDP ports per sender (default: one per core)",
+            "  --packet-size <bytes>       Largest RBUDP payload to offer (default: follow the MTU)",
+            "  --engine threads|selector   Thread per connection, or one selector event loop",
+            "  --max-sessions <n>          Senders served at once on platform threads");
+
+    private volatile Path directory; // Where received files are moved, null to leave them.
+
+    /**
+     * Runs the receiver daemon until the process is stopped.
+     *
+     * @param args The options and the port to listen on.
+     * @throws InterruptedException If interrupted while running.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int status = new CLI_Receiver().run(args);
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * Starts listening and waits until the process is stopped.
+     *
+     * @param args The options and the port to listen on.
+     * @return 1 if the receiver could not listen, 2 for invalid arguments;
+     *         does not return while the receiver runs.
+     * @throws InterruptedException If interrupted while running.
+     */
+    public int run(String[] args) throws InterruptedException {
+        Receiver receiver = new Receiver(this);
+        Integer port = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                case "--dir":
+                    directory = Paths.get(value(args, ++i)).toAbsolutePath();
+                    break;
+                case "--udp-channels":
+                    receiver.setUDPChannels(Integer.parseInt(value(args, ++i)));
+                    break;
+                case "--packet-size":
+                    receiver.setMaxPacketSize(Integer.parseInt(value(args, ++i)));
+                    break;
+                case "--engine":
+                    receiver.setEngine(Receiver.Engine.valueOf(value(args, ++i).toUpperCase()));
+                    break;
+                case "--max-sessions":
+                    receiver.setMaxSessions(Integer.parseInt(value(args, ++i)));
+                    break;
+                default:
+                    if (args[i].startsWith("--") || port != null) {
+                        throw new IllegalArgumentException("Unexpected argument " + args[i]);
+                    }
+                    port = Integer.parseInt(args[i]);
+                }
+            }
+            if (port == null) {
+                throw new IllegalArgumentException("Expected a port");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+
+        if (!receiver.startTCPConnection(port)) {
+            System.err.println("Unable to listen on port " + port);
+            return 1;
+        }
+        System.out.println("Receiving on port " + receiver.getPort() + ", files go to "
+                + (directory != null ? directory : ReceiverSession.TEMP_DIR) + ", sessions on "
+                + (TransferScope.isVirtual() ? "virtual" : "platform") + " threads");
+        Runtime.getRuntime().addShutdownHook(new Thread(receiver::closeResources));
+        new CountDownLatch(1).await();
+        return 0;
+    }
+
+    /**
+     * @return The value following an option.
+     */
+    private static String value(String[] args, int index) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[index - 1]);
+        }
+        return args[index];
+    }
+
+    /**
+     * Prints a received file, moving it to the output directory if there is
+     * one.
+     *
+     * @param path The absolute path of the received file.
+     */
+    @Override
+    public void fileReceived(String path) {
+        Path target = directory;
+        if (target == null) {
+            System.out.println("Received " + path);
+            return;
+        }
+        try {
+            Path relative = Paths.get(ReceiverSession.TEMP_DIR).toAbsolutePath().relativize(Paths.get(path));
+            Path destination = target.resolve(relative);
+            Files.createDirectories(destination.getParent());
+            Files.move(Paths.get(path), destination, StandardCopyOption.REPLACE_EXISTING);
+            System.out.println("Received " + destination);
+        } catch (IOException e) {
+            System.err.println("Received " + path + ", unable to move it to " + target + File.separator + ": "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Prints information from the receiver.
+     *
+     * @param message The information.
+     */
+    @Override
+    public void info(String message) {
+        System.out.println(message);
+    }
+
+    /**
+     * Prints an error of the receiver.
+     *
+     * @param message What went wrong.
+     */
+    @Override
+    public void error(String message) {
+        System.err.println("Error: " + message);
+    }
+}
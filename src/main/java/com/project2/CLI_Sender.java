@@ -0,0 +1,233 @@
+package com.project2;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends files from the command line, without starting JavaFX, so transfers
+ * can be scripted and benchmarked on headless machines.
+ *
+ * Usage: CLI_Sender [options] address port file-or-directory...
+ *
+ * Files are sent one after another over the same connection; directories are
+ * always sent as a batch. The exit status is 0 if every send succeeded, 1 if
+ * one failed and 2 for invalid arguments.
+ */
+public class CLI_Sender implements TransferListener {
+
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: CLI_Sender [options] <address> <port> <file or directory>...",
+            "  --protocol tcp|rbudp|batch  How to send the files (default tcp, batch sends them all as one)",
+            "  --streams <n>               TCP connections per file (default 1)",
+            "  --compress                  Deflate file data",
+            "  --packet-size <bytes>       RBUDP payload size (default: follow the MTU)",
+            "  --probe                     Probe the path for the RBUDP payload size",
+            "  --rate <Mbit/s>             RBUDP target rate (default: unpaced)",
+            "  --adaptive                  Adapt the RBUDP rate to the measured loss",
+            "  --fec <data>/<parity>       RBUDP parity packets per group of data packets",
+            "  --shim <profile>            Damage RBUDP datagrams, e.g. loss=0.01+reorder=0.02",
+            "  --seed <n>                  Seed of the shim (default 1)");
+
+    private volatile boolean failed; // Whether a send reported an error.
+
+    /**
+     * Runs the command-line sender and exits with its status.
+     *
+     * @param args The options, the receiver's address and port, and the files.
+     */
+    public static void main(String[] args) {
+        System.exit(new CLI_Sender().run(args));
+    }
+
+    /**
+     * Connects to the receiver and sends the files.
+     *
+     * @param args The options, the receiver's address and port, and the files.
+     * @return 0 if every send succeeded, 1 if one failed, 2 for invalid
+     *         arguments.
+     */
+    public int run(String[] args) {
+        Sender sender = new Sender(this);
+        String protocol = "tcp";
+        int streams = 1;
+        String shimProfile = null;
+        long seed = 1;
+        List<String> operands = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                case "--protocol":
+                    protocol = value(args, ++i);
+                    break;
+                case "--streams":
+                    streams = Integer.parseInt(value(args, ++i));
+                    break;
+                case "--compress":
+                    sender.setCompression(true);
+                    break;
+                case "--packet-size":
+                    sender.setPacketSize(Integer.parseInt(value(args, ++i)));
+                    break;
+                case "--probe":
+                    sender.setProbePath(true);
+                    break;
+                case "--rate":
+                    sender.setTargetRate(Double.parseDouble(value(args, ++i)));
+                    break;
+                case "--adaptive":
+                    sender.setAdaptiveRate(true);
+                    break;
+                case "--fec":
+                    String[] fec = value(args, ++i).split("/");
+                    sender.setFEC(Integer.parseInt(fec[0].trim()), Integer.parseInt(fec[1].trim()));
+                    break;
+                case "--shim":
+                    shimProfile = value(args, ++i);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(value(args, ++i));
+                    break;
+                default:
+                    if (args[i].startsWith("--")) {
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                    }
+                    operands.add(args[i]);
+                }
+            }
+            if (operands.size() < 3 || !List.of("tcp", "rbudp", "batch").contains(protocol)) {
+                throw new IllegalArgumentException("Expected a protocol, an address, a port and files");
+            }
+            Integer.parseInt(operands.get(1));
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+
+        List<File> files = new ArrayList<>();
+        for (String name : operands.subList(2, operands.size())) {
+            File file = new File(name);
+            if (!file.exists()) {
+                System.err.println("No such file: " + name);
+                return 2;
+            }
+            files.add(file);
+        }
+
+        if (!sender.connectToReceiver(operands.get(0), Integer.parseInt(operands.get(1)))) {
+            System.err.println("Receiver not available at " + operands.get(0) + ":" + operands.get(1));
+            return 1;
+        }
+        LossyDatagramShim shim = shimProfile != null ? LossyDatagramShim.parse(shimProfile, seed) : null;
+        try {
+            sender.setupUDP();
+            sender.setDatagramShim(shim);
+            if (protocol.equals("batch")) {
+                send(files, files.stream().mapToLong(CLI_Sender::size).sum(), () -> sender.sendBatch(files));
+            } else {
+                for (File file : files) {
+                    if (failed) {
+                        break;
+                    }
+                    final int connections = streams;
+                    final String using = protocol;
+                    send(List.of(file), size(file), () -> {
+                        if (file.isDirectory()) {
+                            sender.sendBatch(List.of(file));
+                        } else if (using.equals("rbudp")) {
+                            sender.sendRBUDP(file);
+                        } else if (connections > 1) {
+                            sender.sendParallelTCP(file, connections);
+                        } else {
+                            sender.sendTCP(file);
+                        }
+                    });
+                }
+            }
+        } finally {
+            if (shim != null) {
+                shim.close();
+            }
+            sender.closeResources();
+        }
+        return failed ? 1 : 0;
+    }
+
+    /**
+     * Runs one send and prints how long it took.
+     *
+     * @param files The files being sent.
+     * @param bytes Their total size.
+     * @param send  The send.
+     */
+    private void send(List<File> files, long bytes, Runnable send) {
+        long started = System.nanoTime();
+        send.run();
+        double seconds = (System.nanoTime() - started) / 1e9;
+        String names = files.size() == 1 ? files.get(0).getName() : files.size() + " files";
+        if (failed) {
+            System.err.println("Failed to send " + names);
+        } else {
+            System.out.printf("Sent %s, %d bytes in %.3f s (%.1f MB/s)%n", names, bytes, seconds,
+                    bytes / 1e6 / Math.max(seconds, 1e-9));
+        }
+    }
+
+    /**
+     * @return The size of a file, or of every file in a directory tree.
+     */
+    private static long size(File file) {
+        if (!file.isDirectory()) {
+            return file.length();
+        }
+        long total = 0;
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                total += size(child);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return The value following an option.
+     */
+    private static String value(String[] args, int index) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[index - 1]);
+        }
+        return args[index];
+    }
+
+    /**
+     * Prints information from the sender.
+     *
+     * @param message The information.
+     */
+    @Override
+    public void info(String message) {
+        System.out.println(message);
+    }
+
+    /**
+     * Prints an error and marks the run as failed.
+     *
+     * @param message What went wrong.
+     */
+    @Override
+    public void error(String message) {
+        failed = true;
+        System.err.println("Error: " + message);
+    }
+
+    /**
+     * Marks the run as failed when the connection to the receiver is lost.
+     */
+    @Override
+    public void connectionLost() {
+        failed = true;
+        System.err.println("Connection to the receiver lost");
+    }
+}
@@ -0,0 +1,368 @@
+package com.project2;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses file data one chunk at a time with Deflate at its fastest level,
+ * so every RBUDP packet and every TCP frame can be decoded on its own. A chunk
+ * that does not shrink is sent as it is, and after a run of such chunks the
+ * compressor stops trying for a while, so incompressible files cost little
+ * CPU.
+ *
+ * Over TCP every frame starts with a codec byte and the length of its body.
+ * Frames cover FRAME_SIZE bytes of the file, or of a batch stream, the last
+ * frame of a range less, so both ends know the uncompressed length of each
+ * frame.
+ *
+ * A compressor is used by one thread at a time.
+ */
+public class ChunkCompressor {
+
+    public static final String NONE = "none"; // Codec name for payloads sent as they are.
+    public static final String DEFLATE = "deflate"; // Codec name for per-chunk Deflate.
+    public static final int FRAME_SIZE = 256 * 1024; // File bytes per TCP frame.
+    public static final int FRAME_HEADER_SIZE = 5; // Codec byte and body length.
+
+    private static final byte STORED = 0; // Frame body is the file data as it is.
+    private static final byte DEFLATED = 1; // Frame body is the file data deflated.
+    private static final int BACKOFF_AFTER = 8; // Chunks in a row that did not shrink before backing off.
+    private static final int BACKOFF_CHUNKS = 64; // Chunks stored without trying while backing off.
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    private final Inflater inflater = new Inflater(true);
+    private int incompressibleRun; // Chunks in a row that did not shrink.
+    private int backoffLeft; // Chunks still to store without trying.
+    private long rawBytes; // File bytes passed through compress.
+    private long wireBytes; // Bytes they took on the wire, compressed or not.
+    private long storedChunks; // Chunks sent as they are.
+    private long chunks; // Chunks passed through compress.
+    private ByteBuffer rawFrame; // File data of the current TCP frame.
+    private ByteBuffer wireFrame; // Header and body of the current TCP frame.
+
+    /**
+     * Checks whether a codec named in a file header can be decoded.
+     *
+     * @param codec The codec name.
+     * @return true for NONE and DEFLATE.
+     */
+    public static boolean isSupported(String codec) {
+        return NONE.equals(codec) || DEFLATE.equals(codec);
+    }
+
+    /**
+     * Deflates a chunk into a buffer if that makes it smaller. The positions
+     * and limits of both buffers are left as they were, and they must not be
+     * the same buffer.
+     *
+     * @param source       The buffer holding the chunk.
+     * @param offset       The index of the chunk in the source buffer.
+     * @param length       The length of the chunk.
+     * @param target       The buffer to deflate into, with room for length
+     *                     bytes at targetOffset.
+     * @param targetOffset The index to deflate to in the target buffer.
+     * @return The deflated length, or -1 if the chunk is to be sent as it is.
+     */
+    public int compress(ByteBuffer source, int offset, int length, ByteBuffer target, int targetOffset) {
+        int compressed = -1;
+        if (backoffLeft > 0) {
+            backoffLeft--;
+        } else if (length > 1) {
+            compressed = deflate(source, offset, length, target, targetOffset);
+            if (compressed < 0 && ++incompressibleRun >= BACKOFF_AFTER) {
+                incompressibleRun = 0;
+                backoffLeft = BACKOFF_CHUNKS;
+            } else if (compressed >= 0) {
+                incompressibleRun = 0;
+            }
+        }
+        chunks++;
+        rawBytes += length;
+        if (compressed < 0) {
+            storedChunks++;
+            wireBytes += length;
+        } else {
+            wireBytes += compressed;
+        }
+        return compressed;
+    }
+
+    /**
+     * Deflates a chunk, giving up once the output would be no smaller than the
+     * chunk.
+     */
+    private int deflate(ByteBuffer source, int offset, int length, ByteBuffer target, int targetOffset) {
+        int position = source.position();
+        int limit = source.limit();
+        int targetPosition = target.position();
+        int targetLimit = target.limit();
+        try {
+            source.limit(offset + length).position(offset);
+            target.limit(targetOffset + length - 1).position(targetOffset);
+            deflater.reset();
+            deflater.setInput(source);
+            deflater.finish();
+            while (!deflater.finished() && target.hasRemaining()) {
+                deflater.deflate(target);
+            }
+            return deflater.finished() ? target.position() - targetOffset : -1;
+        } finally {
+            source.limit(limit).position(position);
+            target.limit(targetLimit).position(targetPosition);
+        }
+    }
+
+    /**
+     * Inflates a deflated chunk. The positions and limits of both buffers are
+     * left as they were.
+     *
+     * @param source       The buffer holding the deflated chunk.
+     * @param offset       The index of the deflated chunk in the source buffer.
+     * @param length       The length of the deflated chunk.
+     * @param target       The buffer to inflate into.
+     * @param targetOffset The index to inflate to in the target buffer.
+     * @param rawLength    The length the chunk must inflate to.
+     * @return true if the chunk inflated to exactly rawLength bytes, false if it
+     *         is corrupt.
+     */
+    public boolean decompress(ByteBuffer source, int offset, int length, ByteBuffer target, int targetOffset,
+            int rawLength) {
+        int position = source.position();
+        int limit = source.limit();
+        int targetPosition = target.position();
+        int targetLimit = target.limit();
+        try {
+            source.limit(offset + length).position(offset);
+            target.limit(targetOffset + rawLength).position(targetOffset);
+            inflater.reset();
+            inflater.setInput(source);
+            while (!inflater.finished()) {
+                if (inflater.inflate(target) == 0 && (inflater.needsInput() || !target.hasRemaining())) {
+                    break;
+                }
+            }
+            return inflater.finished() && target.position() - targetOffset == rawLength;
+        } catch (DataFormatException e) {
+            return false;
+        } finally {
+            source.limit(limit).position(position);
+            target.limit(targetLimit).position(targetPosition);
+        }
+    }
+
+    /**
+     * Sends a range of a file as a series of frames, each deflated if that
+     * makes it smaller.
+     *
+     * @param file   The channel of the file being sent.
+     * @param from   The first byte of the range.
+     * @param to     The end of the range, exclusive.
+     * @param out    The connection to write the frames to.
+     * @param onSent Called with the data of each frame after it has been
+     *               written.
+     * @throws IOException If the file cannot be read or the connection fails.
+     */
+    public void sendRange(FileChannel file, long from, long to, WritableByteChannel out,
+            ParallelTCPTransfer.RangeWritten onSent) throws IOException {
+        if (rawFrame == null) {
+            rawFrame = ByteBuffer.allocateDirect(FRAME_SIZE);
+        }
+        for (long position = from; position < to;) {
+            int length = (int) Math.min(FRAME_SIZE, to - position);
+            rawFrame.clear().limit(length);
+            while (rawFrame.hasRemaining()) {
+                if (file.read(rawFrame, position + rawFrame.position()) < 0) {
+                    throw new EOFException("File ends inside the range being sent");
+                }
+            }
+            writeFrame(rawFrame, 0, length, out);
+            rawFrame.position(0);
+            onSent.written(position, length, rawFrame);
+            position += length;
+        }
+    }
+
+    /**
+     * Writes one frame, deflated if that makes it smaller. The position and
+     * limit of the data buffer are left as they were.
+     *
+     * @param data   The buffer holding the data of the frame.
+     * @param offset The index of the data in the buffer.
+     * @param length The length of the data, at most FRAME_SIZE.
+     * @param out    The connection to write the frame to.
+     * @throws IOException If the connection fails.
+     */
+    public void writeFrame(ByteBuffer data, int offset, int length, WritableByteChannel out) throws IOException {
+        if (wireFrame == null) {
+            wireFrame = ByteBuffer.allocateDirect(FRAME_HEADER_SIZE + FRAME_SIZE);
+        }
+        int compressed = compress(data, offset, length, wireFrame, FRAME_HEADER_SIZE);
+        if (compressed < 0) {
+            wireFrame.put(FRAME_HEADER_SIZE, data, offset, length);
+        }
+        wireFrame.put(0, compressed < 0 ? STORED : DEFLATED);
+        wireFrame.putInt(1, compressed < 0 ? length : compressed);
+        wireFrame.limit(FRAME_HEADER_SIZE + (compressed < 0 ? length : compressed)).position(0);
+        while (wireFrame.hasRemaining()) {
+            out.write(wireFrame);
+        }
+    }
+
+    /**
+     * Receives a range of a file sent by sendRange and writes each frame at its
+     * offset in the file.
+     *
+     * @param in        The connection the frames arrive on.
+     * @param file      The channel of the file being received.
+     * @param from      The first byte of the range.
+     * @param to        The end of the range, exclusive.
+     * @param onWritten Called with the data of each frame after it has been
+     *                  written to the file.
+     * @throws IOException If the connection fails or a frame is corrupt.
+     */
+    public void receiveRange(ReadableByteChannel in, FileChannel file, long from, long to,
+            ParallelTCPTransfer.RangeWritten onWritten) throws IOException {
+        if (rawFrame == null) {
+            rawFrame = ByteBuffer.allocateDirect(FRAME_SIZE);
+        }
+        for (long position = from; position < to;) {
+            int length = (int) Math.min(FRAME_SIZE, to - position);
+            readFrame(in, rawFrame, 0, length);
+            rawFrame.limit(length).position(0);
+            long written = position;
+            while (rawFrame.hasRemaining()) {
+                written += file.write(rawFrame, written);
+            }
+            rawFrame.position(0);
+            onWritten.written(position, length, rawFrame);
+            position += length;
+        }
+    }
+
+    /**
+     * Reads one frame written by writeFrame into a buffer. The position and
+     * limit of the buffer are left as they were.
+     *
+     * @param in     The connection the frame arrives on.
+     * @param data   The buffer to put the data of the frame in.
+     * @param offset The index to put the data at.
+     * @param length The length of the data, known to both ends.
+     * @throws IOException If the connection fails or the frame is corrupt.
+     */
+    public void readFrame(ReadableByteChannel in, ByteBuffer data, int offset, int length) throws IOException {
+        if (wireFrame == null) {
+            wireFrame = ByteBuffer.allocateDirect(FRAME_HEADER_SIZE + FRAME_SIZE);
+        }
+        wireFrame.clear().limit(FRAME_HEADER_SIZE);
+        readFully(in, wireFrame);
+        wireFrame.limit(FRAME_HEADER_SIZE + frameBodyLength(wireFrame, length));
+        readFully(in, wireFrame);
+        decodeFrame(wireFrame, data, offset, length);
+    }
+
+    /**
+     * Checks the header of a frame and returns the length of its body, so a
+     * frame can be read in pieces as it arrives.
+     *
+     * @param frame  The buffer holding the frame header at index 0.
+     * @param length The length of the frame's data, known to both ends.
+     * @return The length of the body following the header.
+     * @throws IOException If the header is invalid.
+     */
+    public static int frameBodyLength(ByteBuffer frame, int length) throws IOException {
+        byte codec = frame.get(0);
+        int bodyLength = frame.getInt(1);
+        if (codec == STORED ? bodyLength != length : codec != DEFLATED || bodyLength < 0 || bodyLength >= length) {
+            throw new IOException("Invalid frame header");
+        }
+        return bodyLength;
+    }
+
+    /**
+     * Puts the data of a complete frame, header at index 0 and body after it,
+     * into a buffer. The position and limit of the buffer are left as they
+     * were.
+     *
+     * @param frame  The buffer holding the frame.
+     * @param data   The buffer to put the data of the frame in.
+     * @param offset The index to put the data at.
+     * @param length The length of the data, known to both ends.
+     * @throws IOException If the frame is corrupt.
+     */
+    public void decodeFrame(ByteBuffer frame, ByteBuffer data, int offset, int length) throws IOException {
+        int bodyLength = frameBodyLength(frame, length);
+        if (frame.get(0) == STORED) {
+            data.put(offset, frame, FRAME_HEADER_SIZE, length);
+        } else if (!decompress(frame, FRAME_HEADER_SIZE, bodyLength, data, offset, length)) {
+            throw new IOException("Corrupt deflated frame");
+        }
+    }
+
+    /**
+     * Reads from a connection until the buffer is full.
+     */
+    private static void readFully(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) < 0) {
+                throw new EOFException("Connection closed inside a frame");
+            }
+        }
+    }
+
+    /**
+     * @return The file bytes passed through compress.
+     */
+    public long getRawBytes() {
+        return rawBytes;
+    }
+
+    /**
+     * @return The bytes the chunks took on the wire, compressed or not.
+     */
+    public long getWireBytes() {
+        return wireBytes;
+    }
+
+    /**
+     * Describes how much compression saved during a transfer.
+     *
+     * @param nanos The duration of the transfer in nanoseconds.
+     * @return The compression ratio, the chunks sent as they were, and the
+     *         rate of file data next to the rate on the wire.
+     */
+    public String describeGain(long nanos) {
+        return describeGain(rawBytes, wireBytes, nanos) + ", " + storedChunks + " of " + chunks
+                + " chunks sent uncompressed";
+    }
+
+    /**
+     * Describes how much compression saved during a transfer.
+     *
+     * @param rawBytes  The file bytes sent.
+     * @param wireBytes The bytes they took on the wire.
+     * @param nanos     The duration of the transfer in nanoseconds.
+     * @return The compression ratio and the rate of file data next to the rate
+     *         on the wire.
+     */
+    public static String describeGain(long rawBytes, long wireBytes, long nanos) {
+        double seconds = Math.max(nanos, 1) / 1e9;
+        return String.format("%d bytes sent as %d (%.2fx), %.1f MB/s of file data over %.1f MB/s on the wire",
+                rawBytes, wireBytes, rawBytes / (double) Math.max(wireBytes, 1), rawBytes / seconds / 1e6,
+                wireBytes / seconds / 1e6);
+    }
+
+    /**
+     * Frees the native memory of the deflater and inflater.
+     */
+    public void end() {
+        deflater.end();
+        inflater.end();
+    }
+}
@@ -0,0 +1,72 @@
+package com.project2;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A pool of direct buffers for RBUDP datagrams. Buffers are allocated the
+ * first time they are needed and handed back after use, so once the pool is
+ * warm the send and receive loops allocate nothing per packet.
+ */
+public class DatagramBufferPool {
+
+    private final ArrayBlockingQueue<ByteBuffer> free; // Buffers ready to be acquired.
+    private final int bufferSize; // Capacity of every buffer, header included.
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param buffers    The most buffers the pool keeps for reuse.
+     * @param bufferSize The capacity of each buffer in bytes.
+     */
+    public DatagramBufferPool(int buffers, int bufferSize) {
+        this.free = new ArrayBlockingQueue<>(buffers);
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Creates a pool sized for datagrams of the given payload size.
+     *
+     * @param buffers    The most buffers the pool keeps for reuse.
+     * @param packetSize The RBUDP payload size, excluding the header.
+     * @return The pool.
+     */
+    public static DatagramBufferPool forPacketSize(int buffers, int packetSize) {
+        return new DatagramBufferPool(buffers, PacketSizing.HEADER_SIZE + packetSize);
+    }
+
+    /**
+     * Takes a cleared buffer from the pool, allocating one if none is free.
+     *
+     * @return A buffer with position 0 and limit equal to its capacity.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Hands a buffer back to the pool. Buffers of another size, or beyond what
+     * the pool keeps, are left to the garbage collector.
+     *
+     * @param buffer The buffer that is no longer used.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() == bufferSize) {
+            free.offer(buffer);
+        }
+    }
+
+    /**
+     * Returns the capacity of the buffers in this pool.
+     *
+     * @return The buffer capacity in bytes.
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
@@ -0,0 +1,432 @@
+package com.project2;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+/**
+ * End-to-end integrity digest of a file, built while the file is sent or
+ * written. The file is cut into fixed-size chunks (each RBUDP packet, or 1 MB
+ * for TCP), every chunk gets a CRC32C, and the digest is the SHA-256 of the
+ * CRCs in file order. Chunks can be hashed in any order and on any thread, so
+ * the receiver can hash packets as they are written, however they arrive.
+ *
+ * TCP transfers hash the bytes they already hold as they write or send them.
+ * Each byte goes through the CRC once, and nothing is read back from the file
+ * except the few chunks whose first bytes were never seen, such as chunks
+ * split between two ranges.
+ *
+ * RBUDP chunks are single packets, so keeping every CRC would cost memory in
+ * proportion to the file. A digest made without keeping them feeds each CRC
+ * into the SHA-256 as soon as every chunk before it has been hashed, and only
+ * holds the CRCs of chunks that arrived ahead of a missing one.
+ */
+public class FileDigest {
+
+    public static final int TCP_CHUNK_SIZE = 1024 * 1024; // Chunk size of TCP transfers.
+
+    private static final int RUN_CHUNKS = 1024; // CRCs collected before they go into the SHA-256.
+
+    // Each thread hashes with its own CRC32C, so hashing allocates nothing.
+    private static final ThreadLocal<CRC32C> CRC = ThreadLocal.withInitial(CRC32C::new);
+
+    private final long size; // Size of the file.
+    private final int chunkSize; // Bytes per chunk, the last chunk may be shorter.
+    private final int chunks; // Number of chunks.
+    private final int[] crcs; // CRC32C of every chunk, null when only the digest is kept.
+    private final SequenceTracker hashed; // Chunks hashed so far, chunk i is sequence i + 1, null with crcs.
+    private final MessageDigest sha256; // Digest of the CRCs fed so far, when they are not kept.
+    private final ByteBuffer run; // CRCs in file order waiting to go into the SHA-256.
+    private final Map<Integer, Integer> ahead = new HashMap<>(); // CRCs of chunks hashed before an earlier one.
+    private int fed; // Chunks whose CRC has gone into the run, all those before the first missing one.
+    private String result; // The digest once computed, when the CRCs are not kept.
+    private final Map<Integer, PartialChunk> partial = new ConcurrentHashMap<>(); // Chunks hashed part way.
+    private ByteBuffer scratch; // Chunk read back from the file by hashRange.
+
+    /**
+     * A chunk whose bytes have come through update from its first byte up to
+     * next, in file order. The range after it may be written by another
+     * thread, which picks the chunk up where the first one left off, so it is
+     * only touched while holding its lock.
+     */
+    private static final class PartialChunk {
+        final CRC32C crc = new CRC32C(); // CRC32C of the bytes so far.
+        long next; // File offset of the next byte expected.
+
+        /**
+         * Starts a chunk with none of its bytes hashed.
+         *
+         * @param start The file offset of the chunk's first byte.
+         */
+        PartialChunk(long start) {
+            next = start;
+        }
+    }
+
+    /**
+     * Creates the digest of a file with no chunks hashed yet, keeping the CRC
+     * of every chunk.
+     *
+     * @param size      The size of the file.
+     * @param chunkSize The number of bytes per chunk.
+     */
+    public FileDigest(long size, int chunkSize) {
+        this(size, chunkSize, true);
+    }
+
+    /**
+     * Creates the digest of a file with no chunks hashed yet.
+     *
+     * @param size          The size of the file.
+     * @param chunkSize     The number of bytes per chunk.
+     * @param keepChecksums Whether to keep the CRC of every chunk, as
+     *                      encodeChecksums, mismatchedChunks and rehashRange
+     *                      need. Without them the digest is built in file
+     *                      order as the chunks come in.
+     */
+    public FileDigest(long size, int chunkSize, boolean keepChecksums) {
+        long chunks = (size + chunkSize - 1) / chunkSize;
+        if (chunks > Integer.MAX_VALUE - 1) {
+            throw new IllegalArgumentException("Too many chunks: " + chunks);
+        }
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.chunks = (int) chunks;
+        if (keepChecksums) {
+            this.crcs = new int[this.chunks];
+            this.hashed = new SequenceTracker(this.chunks);
+            this.sha256 = null;
+            this.run = null;
+        } else {
+            this.crcs = null;
+            this.hashed = null;
+            this.sha256 = newSha256();
+            this.run = ByteBuffer.allocate(RUN_CHUNKS * Integer.BYTES);
+        }
+    }
+
+    /**
+     * Hashes a chunk from bytes already in memory. The buffer's position and
+     * limit are left as they were.
+     *
+     * @param chunk  The index of the chunk, 0 for the first.
+     * @param data   The buffer holding the chunk.
+     * @param offset The index of the chunk in the buffer.
+     * @param length The length of the chunk.
+     */
+    public void update(int chunk, ByteBuffer data, int offset, int length) {
+        set(chunk, crc32c(data, offset, length));
+    }
+
+    /**
+     * Hashes bytes of the file held in memory, as they are written or sent.
+     * Chunks lying entirely in the buffer are hashed from it. A chunk spread
+     * over several calls is hashed as its bytes come through, provided they
+     * come in file order from its first byte, as they do within one range.
+     * Chunks whose first byte was not seen are left to hashRemaining. The
+     * buffer's position and limit are left as they were.
+     *
+     * @param position The file offset of the byte at the buffer's position.
+     * @param data     The bytes, from the buffer's position to its limit.
+     */
+    public void update(long position, ByteBuffer data) {
+        int start = data.position();
+        int end = data.limit();
+        for (int offset = start; offset < end;) {
+            int chunk = (int) (position / chunkSize);
+            long chunkStart = (long) chunk * chunkSize;
+            long chunkEnd = Math.min(size, chunkStart + chunkSize);
+            int length = (int) Math.min(end - offset, chunkEnd - position);
+            if (position == chunkStart && position + length == chunkEnd) {
+                update(chunk, data, offset, length);
+            } else {
+                PartialChunk started = position == chunkStart ? new PartialChunk(chunkStart) : partial.get(chunk);
+                if (started != null) {
+                    synchronized (started) {
+                        if (started.next == position) {
+                            data.limit(offset + length).position(offset);
+                            started.crc.update(data);
+                            data.limit(end);
+                            started.next = position + length;
+                            if (started.next == chunkEnd) {
+                                partial.remove(chunk);
+                                set(chunk, (int) started.crc.getValue());
+                            } else if (position == chunkStart) {
+                                partial.put(chunk, started);
+                            }
+                        }
+                    }
+                }
+            }
+            position += length;
+            offset += length;
+        }
+        data.limit(end).position(start);
+    }
+
+    /**
+     * Records the CRC32C of a chunk that has already been computed, such as the
+     * checksum of an RBUDP packet.
+     *
+     * @param chunk The index of the chunk, 0 for the first.
+     * @param crc   The CRC32C of the chunk.
+     */
+    public void set(int chunk, int crc) {
+        if (crcs != null) {
+            crcs[chunk] = crc;
+            hashed.markReceived(chunk + 1);
+        } else {
+            feed(chunk, crc);
+        }
+    }
+
+    /**
+     * Feeds the CRC of a chunk into the SHA-256 if every chunk before it has
+     * been fed, along with the CRCs held for the chunks after it. Otherwise
+     * the CRC is held until the chunks before it come in.
+     */
+    private synchronized void feed(int chunk, int crc) {
+        if (chunk < fed || result != null) {
+            return;
+        }
+        if (chunk > fed) {
+            ahead.put(chunk, crc);
+            return;
+        }
+        Integer next = crc;
+        while (next != null) {
+            run.putInt(next);
+            if (!run.hasRemaining()) {
+                sha256.update(run.flip());
+                run.clear();
+            }
+            fed++;
+            next = ahead.remove(fed);
+        }
+    }
+
+    /**
+     * Checks whether a chunk has been hashed.
+     */
+    private synchronized boolean isHashed(int chunk) {
+        return crcs != null ? hashed.isReceived(chunk + 1) : chunk < fed || ahead.containsKey(chunk);
+    }
+
+    /**
+     * @return The number of chunks hashed so far.
+     */
+    private synchronized int hashedCount() {
+        return crcs != null ? hashed.receivedCount() : fed + ahead.size();
+    }
+
+    /**
+     * Computes the CRC32C of bytes in a buffer. The buffer's position and limit
+     * are left as they were.
+     *
+     * @param data   The buffer holding the bytes.
+     * @param offset The index of the first byte in the buffer.
+     * @param length The number of bytes.
+     * @return The CRC32C.
+     */
+    public static int crc32c(ByteBuffer data, int offset, int length) {
+        int position = data.position();
+        int limit = data.limit();
+        data.limit(offset + length).position(offset);
+        CRC32C crc = CRC.get();
+        crc.reset();
+        crc.update(data);
+        data.limit(limit).position(position);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Hashes, by reading them back from the file, the chunks lying entirely
+     * within a region that have not been hashed yet. A chunk ending at the end
+     * of the file counts as entirely within a region reaching the end.
+     *
+     * @param file The channel of the file.
+     * @param from The first byte of the region.
+     * @param to   The end of the region, exclusive.
+     * @throws IOException If the file cannot be read.
+     */
+    public void hashRange(FileChannel file, long from, long to) throws IOException {
+        hashChunks(file, from, to, false);
+    }
+
+    /**
+     * Hashes again, by reading them back from the file, the chunks lying
+     * entirely within a region, such as chunks that were fetched again after
+     * failing their checksum. The CRC of every chunk must be kept.
+     *
+     * @param file The channel of the file.
+     * @param from The first byte of the region.
+     * @param to   The end of the region, exclusive.
+     * @throws IOException If the file cannot be read.
+     */
+    public void rehashRange(FileChannel file, long from, long to) throws IOException {
+        requireChecksums();
+        hashChunks(file, from, to, true);
+    }
+
+    /**
+     * Hashes the chunks lying entirely within a region, skipping those hashed
+     * before unless again is set.
+     */
+    private synchronized void hashChunks(FileChannel file, long from, long to, boolean again) throws IOException {
+        if (scratch == null) {
+            scratch = ByteBuffer.allocateDirect(chunkSize);
+        }
+        for (long chunk = (from + chunkSize - 1) / chunkSize; chunk < chunks; chunk++) {
+            long start = chunk * chunkSize;
+            int length = (int) Math.min(chunkSize, size - start);
+            if (start + length > to) {
+                break;
+            }
+            if (!again && isHashed((int) chunk)) {
+                continue;
+            }
+            scratch.clear().limit(length);
+            while (scratch.hasRemaining()) {
+                if (file.read(scratch, start + scratch.position()) < 0) {
+                    throw new EOFException("File ends inside chunk " + chunk);
+                }
+            }
+            update((int) chunk, scratch, 0, length);
+        }
+    }
+
+    /**
+     * Hashes every chunk not hashed yet by reading it back from the file.
+     *
+     * @param file The channel of the file.
+     * @throws IOException If the file cannot be read.
+     */
+    public void hashRemaining(FileChannel file) throws IOException {
+        if (!isComplete()) {
+            hashRange(file, 0, size);
+        }
+    }
+
+    /**
+     * @return true if every chunk has been hashed.
+     */
+    public boolean isComplete() {
+        return hashedCount() == chunks;
+    }
+
+    /**
+     * Fails unless the CRC of every chunk is kept.
+     */
+    private void requireChecksums() {
+        if (crcs == null) {
+            throw new IllegalStateException("The chunk CRCs of this digest are not kept");
+        }
+    }
+
+    /**
+     * Encodes the CRC of every chunk, in file order, for the receiver to check
+     * its chunks against.
+     *
+     * @return The CRCs as Base64 of big-endian ints.
+     */
+    public String encodeChecksums() {
+        requireChecksums();
+        ByteBuffer buffer = ByteBuffer.allocate(crcs.length * Integer.BYTES);
+        buffer.asIntBuffer().put(crcs);
+        return Base64.getEncoder().encodeToString(buffer.array());
+    }
+
+    /**
+     * Decodes chunk CRCs encoded by encodeChecksums.
+     *
+     * @param encoded The encoded CRCs.
+     * @return The CRC of every chunk, in file order.
+     * @throws IllegalArgumentException If the encoding is invalid.
+     */
+    public static int[] decodeChecksums(String encoded) {
+        byte[] bytes = Base64.getDecoder().decode(encoded);
+        if (bytes.length % Integer.BYTES != 0) {
+            throw new IllegalArgumentException("Checksum list is not a whole number of CRCs");
+        }
+        int[] checksums = new int[bytes.length / Integer.BYTES];
+        ByteBuffer.wrap(bytes).asIntBuffer().get(checksums);
+        return checksums;
+    }
+
+    /**
+     * Works out which chunks do not match the sender's CRCs. The CRC of every
+     * chunk must be kept.
+     *
+     * @param expected The sender's CRC of every chunk.
+     * @return The byte ranges of the chunks that do not match, or of the whole
+     *         file if the number of chunks differs.
+     */
+    public ByteRangeSet mismatchedChunks(int[] expected) {
+        requireChecksums();
+        ByteRangeSet mismatched = new ByteRangeSet();
+        if (expected.length != chunks) {
+            mismatched.add(0, size);
+            return mismatched;
+        }
+        for (int chunk = 0; chunk < crcs.length; chunk++) {
+            if (expected[chunk] != crcs[chunk] || !hashed.isReceived(chunk + 1)) {
+                long start = (long) chunk * chunkSize;
+                mismatched.add(start, Math.min(size, start + chunkSize));
+            }
+        }
+        return mismatched;
+    }
+
+    /**
+     * Returns the digest of the file. Every chunk must have been hashed.
+     *
+     * @return The SHA-256 of the chunk CRCs as a hex string.
+     */
+    public synchronized String digest() {
+        if (!isComplete()) {
+            throw new IllegalStateException("Only " + hashedCount() + " of " + chunks + " chunks have been hashed");
+        }
+        if (crcs != null) {
+            MessageDigest all = newSha256();
+            ByteBuffer buffer = ByteBuffer.allocate(crcs.length * Integer.BYTES);
+            buffer.asIntBuffer().put(crcs);
+            all.update(buffer);
+            return toHex(all.digest());
+        }
+        if (result == null) {
+            sha256.update(run.flip());
+            result = toHex(sha256.digest());
+        }
+        return result;
+    }
+
+    /**
+     * @return A new SHA-256 digest.
+     */
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * @return The bytes as a lower-case hex string.
+     */
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 
 import javafx.application.Application;
@@ -16,6 +17,8 @@ import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
+import javafx.scene.control.Label;
 import javafx.scene.control.ListView;
 import javafx.scene.control.ProgressBar;
 import javafx.scene.control.TextField;
@@ -25,11 +28,14 @@ import javafx.stage.FileChooser;
 /**
  * The GUI that users employ to receive files.
  */
-public class GUI_Receiver extends Application {
+public class GUI_Receiver extends Application implements TransferListener {
 
     @FXML
     public ProgressBar barProgress; // The progress bar that shows the portion of the file that has been received.
 
+    @FXML
+    private Label labelProgress; // The rate of the file arriving and the time it has left.
+
     @FXML
     private Button btnSave; // The interactive "save" button.
 
@@ -42,6 +48,12 @@ public class GUI_Receiver extends Application {
     @FXML
     private TextField textPort; // Text representing the port number.
 
+    @FXML
+    private TextField textChannels; // Text representing the number of UDP ports, blank for one per core.
+
+    @FXML
+    private CheckBox checkSelector; // Whether connections are multiplexed on one selector event loop.
+
     private Receiver receiver = new Receiver(this); // The current receiver.
     private Boolean TCPConnected = false; // Boolean that indicates whether the TCP is connected.
 
@@ -74,10 +86,18 @@ public class GUI_Receiver extends Application {
     void setPort(ActionEvent event) {
         try {
             int port = Integer.parseInt(textPort.getText());
+            if (!textChannels.getText().isBlank()) {
+                receiver.setUDPChannels(Integer.parseInt(textChannels.getText().trim()));
+            }
+            if (checkSelector.isSelected()) {
+                receiver.setEngine(Receiver.Engine.SELECTOR);
+            }
             TCPConnected = receiver.startTCPConnection(port);
 
             if (TCPConnected) {
                 textPort.setDisable(true);
+                textChannels.setDisable(true);
+                checkSelector.setDisable(true);
                 btnSetPort.setDisable(true); // disables interactive port buttons upon successful connection.
                 showDialog("TCP connection running on port: " + port);
             } else {
@@ -191,6 +211,17 @@ public class GUI_Receiver extends Application {
         });
     }
 
+    /**
+     * Shows the GUI's progress bar and resets it to zero.
+     */
+    public void showProgressBar() {
+        Platform.runLater(() -> {
+            barProgress.setVisible(true);
+            barProgress.setProgress(0);
+            labelProgress.setText("");
+        });
+    }
+
     /**
      * Updates the GUI's progress bar.
      * 
@@ -213,4 +244,61 @@ public class GUI_Receiver extends Application {
             fileNameToPathMap.put(file.getName(), receivedFilePath); // Map file name to its full path
         });
     }
+
+    /**
+     * Shows the progress bar when a file starts arriving.
+     */
+    @Override
+    public void transferStarted() {
+        showProgressBar();
+    }
+
+    /**
+     * Moves the progress bar as a file arrives and shows its rate and the time
+     * it has left.
+     *
+     * @param fraction       The fraction of the file received.
+     * @param bytesPerSecond The rate over the last second.
+     * @param millisLeft     The estimated time left, -1 if unknown.
+     */
+    @Override
+    public void progress(double fraction, double bytesPerSecond, long millisLeft) {
+        long secondsLeft = (millisLeft + 999) / 1000;
+        String text = String.format(Locale.ROOT, "%.1f MB/s", bytesPerSecond / 1e6) + (millisLeft < 0 ? ""
+                : String.format(Locale.ROOT, ", %d:%02d left", secondsLeft / 60, secondsLeft % 60));
+        Platform.runLater(() -> {
+            barProgress.setProgress(fraction);
+            labelProgress.setText(text);
+        });
+    }
+
+    /**
+     * Adds a received file to the list.
+     *
+     * @param path The absolute path of the received file.
+     */
+    @Override
+    public void fileReceived(String path) {
+        updateReceivedList(path);
+    }
+
+    /**
+     * Shows information from the receiver in a dialog.
+     *
+     * @param message The information.
+     */
+    @Override
+    public void info(String message) {
+        showDialog(message);
+    }
+
+    /**
+     * Shows an error of the receiver in a dialog.
+     *
+     * @param message What went wrong.
+     */
+    @Override
+    public void error(String message) {
+        showErrorDialog(message);
+    }
 }
\ No newline at end of file
@@ -15,16 +15,18 @@ import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.ListView;
 import javafx.scene.control.RadioButton;
 import javafx.scene.control.TextField;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
 /**
  * The GUI that users employ to send files.
  */
-public class GUI_Sender extends Application {
+public class GUI_Sender extends Application implements TransferListener {
 
     @FXML
     private Button btnConnect; // the JavaFX "button" that users click to connect
@@ -35,6 +37,15 @@ public class GUI_Sender extends Application {
     @FXML
     private Button btnSend; // the JavaFX "button" that users click to send a file
 
+    @FXML
+    private Button btnUploadFolder; // the JavaFX "button" that users click to upload a directory
+
+    @FXML
+    private Button btnSendAll; // the JavaFX "button" that users click to send every uploaded file as one batch
+
+    @FXML
+    private Button btnCancel; // the JavaFX "button" that users click to cancel the send in progress
+
     @FXML
     private volatile ListView<String> listFiles; // the list of files
 
@@ -48,6 +59,27 @@ public class GUI_Sender extends Application {
     @FXML
     private volatile RadioButton radioTCP; // the "button" that users select to choose TCP as the file sharing construct
 
+    @FXML
+    private TextField textStreams; // the number of parallel connections used for TCP sends
+
+    @FXML
+    private TextField textRate; // the target RBUDP send rate in Mbit/s, blank for no pacing
+
+    @FXML
+    private CheckBox checkAdaptive; // whether the RBUDP rate adapts to the measured loss
+
+    @FXML
+    private TextField textFEC; // the RBUDP FEC group as data/parity packets, blank for no FEC
+
+    @FXML
+    private CheckBox checkCompress; // whether file data is deflated chunk by chunk
+
+    @FXML
+    private TextField textPacketSize; // the RBUDP payload size, blank to follow the MTU
+
+    @FXML
+    private CheckBox checkProbe; // whether to probe the path for the RBUDP payload size
+
     @FXML
     private TextField textAddress; // the address line used when connecting
 
@@ -72,6 +104,15 @@ public class GUI_Sender extends Application {
      */
     @FXML
     void connectToReceiver(ActionEvent event) {
+        try {
+            sender.setPacketSize(textPacketSize.getText().isBlank() ? 0
+                    : Integer.parseInt(textPacketSize.getText().trim()));
+            sender.setProbePath(checkProbe.isSelected());
+        } catch (NumberFormatException e) {
+            showErrorDialog("Invalid packet size");
+            return;
+        }
+
         try {
             String address = textAddress.getText();
             int port = Integer.parseInt(textPort.getText());
@@ -109,16 +150,62 @@ public class GUI_Sender extends Application {
 
         if (selectedFile != null) {
             uploadedFiles.add(selectedFile); // add selected file to the list of uploaded files
-            listFiles.getItems().clear();
-            // Use the file name instead of the entire file object
-            List<String> fileNames = uploadedFiles.stream().map(File::getName).collect(Collectors.toList());
-            listFiles.getItems().setAll(fileNames); // updates list of uploaded files
-            listFiles.setVisible(true);
+            showUploadedFiles();
         } else {
             showErrorDialog("No file was selected.");
         }
     }
 
+    @FXML
+    /**
+     * Uploads a directory, whose whole tree is sent as one batch.
+     * 
+     * @param event A mouse click on the btnUploadFolder button.
+     */
+    void uploadFolder(ActionEvent event) {
+        DirectoryChooser directoryChooser = new DirectoryChooser();
+        File selectedFolder = directoryChooser.showDialog(btnUploadFolder.getScene().getWindow());
+
+        if (selectedFolder != null) {
+            uploadedFiles.add(selectedFolder); // add selected directory to the list of uploaded files
+            showUploadedFiles();
+        } else {
+            showErrorDialog("No folder was selected.");
+        }
+    }
+
+    /**
+     * Updates the listview to display the list of uploaded files, directories
+     * marked with a trailing slash.
+     */
+    private void showUploadedFiles() {
+        listFiles.getItems().clear();
+        // Use the file name instead of the entire file object
+        List<String> fileNames = uploadedFiles.stream()
+                .map(file -> file.isDirectory() ? file.getName() + "/" : file.getName())
+                .collect(Collectors.toList());
+        listFiles.getItems().setAll(fileNames); // updates list of uploaded files
+        listFiles.setVisible(true);
+    }
+
+    @FXML
+    /**
+     * Sends every uploaded file and directory over TCP as one batch, with a
+     * manifest up front and small files coalesced into large writes.
+     * 
+     * @param event a button press, usually on the btnSendAll button.
+     */
+    void sendAll(ActionEvent event) {
+        if (uploadedFiles.isEmpty()) {
+            showErrorDialog("No files uploaded to send.");
+            return;
+        }
+        List<File> batch = new ArrayList<>(uploadedFiles);
+        sender.setCompression(checkCompress.isSelected());
+        // init sending the batch over TCP
+        sendInBackground(() -> sender.sendBatch(batch), "Sent batch (TCP): " + batch.size() + " files and folders");
+    }
+
     @FXML
     /**
      * Initiates sending a file selected by the user.
@@ -138,24 +225,98 @@ public class GUI_Sender extends Application {
         }
 
         File selectedFile = uploadedFiles.get(selectedIndex); // retrieve selected file name
+        sender.setCompression(checkCompress.isSelected());
+
+        // A directory is always sent as a batch of its files
+        if (selectedFile.isDirectory()) {
+            // init sending the directory over TCP
+            sendInBackground(() -> sender.sendBatch(List.of(selectedFile)),
+                    "Sent folder (TCP batch): " + selectedFile.getName());
+            return;
+        }
 
         if (radioRBUDP.isSelected()) {
-            sender.sendRBUDP(selectedFile); // init sending with RBUDP
-            // Log the sending action
-            Platform.runLater(() -> {
-                listLog.getItems().add("Sent file (RBUDP): " + selectedFile.getName());
-            });
+            try {
+                sender.setTargetRate(textRate.getText().isBlank() ? 0 : Double.parseDouble(textRate.getText().trim()));
+            } catch (NumberFormatException e) {
+                showErrorDialog("Invalid RBUDP rate");
+                return;
+            }
+            sender.setAdaptiveRate(checkAdaptive.isSelected());
+            try {
+                String[] fec = textFEC.getText().isBlank() ? new String[] { "0", "0" }
+                        : textFEC.getText().trim().split("/");
+                sender.setFEC(Integer.parseInt(fec[0].trim()), Integer.parseInt(fec[1].trim()));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                showErrorDialog("Invalid FEC group, use data/parity packets such as 16/1");
+                return;
+            }
+            // init sending with RBUDP
+            sendInBackground(() -> sender.sendRBUDP(selectedFile), "Sent file (RBUDP): " + selectedFile.getName());
         } else if (radioTCP.isSelected()) {
-            sender.sendTCP(selectedFile); // init sending with TCP
-            // Log the sending action
-            Platform.runLater(() -> {
-                listLog.getItems().add("Sent file (TCP): " + selectedFile.getName());
-            });
+            int streams;
+            try {
+                streams = textStreams.getText().isBlank() ? 1 : Integer.parseInt(textStreams.getText().trim());
+            } catch (NumberFormatException e) {
+                showErrorDialog("Invalid number of TCP streams");
+                return;
+            }
+            String log = "Sent file (TCP x" + Math.max(streams, 1) + "): " + selectedFile.getName();
+            if (streams > 1) {
+                sendInBackground(() -> sender.sendParallelTCP(selectedFile, streams), log); // parallel TCP
+            } else {
+                sendInBackground(() -> sender.sendTCP(selectedFile), log); // init sending with TCP
+            }
         } else {
             showErrorDialog("No sending method was selected");
         }
     }
 
+    /**
+     * Runs a send off the JavaFX thread, so the window stays responsive while
+     * it runs. The send buttons are disabled and the cancel button enabled
+     * until the send ends, then the log line is added.
+     * 
+     * @param send The send to run.
+     * @param log  The line added to the log once the send has ended.
+     */
+    private void sendInBackground(Runnable send, String log) {
+        setSending(true);
+        TransferScope.start(() -> {
+            try {
+                send.run();
+            } finally {
+                Platform.runLater(() -> {
+                    listLog.getItems().add(log);
+                    setSending(false);
+                });
+            }
+        });
+    }
+
+    /**
+     * Enables the send buttons or the cancel button, depending on whether a
+     * send is running.
+     * 
+     * @param sending Whether a send is running.
+     */
+    private void setSending(boolean sending) {
+        btnSend.setDisable(sending);
+        btnSendAll.setDisable(sending);
+        btnCancel.setDisable(!sending);
+    }
+
+    @FXML
+    /**
+     * Cancels the send in progress. The connection is closed, and the
+     * receiver keeps what it has, so the file resumes after reconnecting.
+     * 
+     * @param event a button press, usually on the btnCancel button.
+     */
+    void cancelSend(ActionEvent event) {
+        sender.cancelTransfer();
+    }
+
     @FXML
     /**
      * Deselects the RBUDP RadioButton.
@@ -202,6 +363,19 @@ public class GUI_Sender extends Application {
         launch(args);
     }
 
+    /**
+     * Re-enables the connection controls after the connection to the receiver
+     * was lost, so the user can reconnect and resume the transfer.
+     */
+    @Override
+    public void connectionLost() {
+        Platform.runLater(() -> {
+            btnConnect.setDisable(false);
+            textAddress.setDisable(false);
+            textPort.setDisable(false);
+        });
+    }
+
     /**
      * Prints an error dialog to the GUI.
      * 
@@ -231,4 +405,24 @@ public class GUI_Sender extends Application {
             alert.showAndWait();
         });
     }
-}
\ No newline at end of file
+
+    /**
+     * Shows information from the sender in a dialog.
+     *
+     * @param message The information.
+     */
+    @Override
+    public void info(String message) {
+        showDialog(message);
+    }
+
+    /**
+     * Shows an error of the sender in a dialog.
+     *
+     * @param message What went wrong.
+     */
+    @Override
+    public void error(String message) {
+        showErrorDialog(message);
+    }
+}
@@ -0,0 +1,91 @@
+package com.project2;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in buckets that double in width, so recording is a single
+ * atomic increment and the histogram never grows. Bucket i holds durations
+ * from 2^i up to 2^(i+1) nanoseconds; percentiles are reported as the upper
+ * bound of their bucket, so they are at most twice the true value.
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 64; // One per bit of a long.
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS); // Durations per bucket.
+    private final AtomicLong count = new AtomicLong(); // Durations recorded.
+    private final AtomicLong total = new AtomicLong(); // Sum of the durations in nanoseconds.
+    private final AtomicLong max = new AtomicLong(); // Longest duration in nanoseconds.
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos The duration in nanoseconds.
+     */
+    public void record(long nanos) {
+        long value = Math.max(1, nanos);
+        buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * @return The number of durations recorded.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return The sum of the durations recorded, in nanoseconds.
+     */
+    public long getTotalNanos() {
+        return total.get();
+    }
+
+    /**
+     * @return The longest duration recorded, in nanoseconds.
+     */
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    /**
+     * Estimates a percentile of the durations recorded.
+     *
+     * @param percentile The percentile, from 0 to 100.
+     * @return The upper bound of the bucket holding the percentile in
+     *         microseconds, 0 if nothing was recorded.
+     */
+    public double percentileMicros(double percentile) {
+        long recorded = count.get();
+        if (recorded == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(recorded * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                long upper = i >= 62 ? Long.MAX_VALUE : 1L << (i + 1);
+                return Math.min(upper, max.get()) / (double) TimeUnit.MICROSECONDS.toNanos(1);
+            }
+        }
+        return max.get() / (double) TimeUnit.MICROSECONDS.toNanos(1);
+    }
+
+    /**
+     * @return The count of each bucket, bucket i holding durations from 2^i
+     *         up to 2^(i+1) nanoseconds.
+     */
+    public long[] getBuckets() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,319 @@
+package com.project2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Damages the RBUDP datagrams of a Sender before they reach the receiver, so
+ * retransmission can be measured on a clean loopback without root or tc.
+ *
+ * Datagrams can be lost at random or in bursts, duplicated, reordered and
+ * delayed. Every decision comes from a Random with a fixed seed, so the same
+ * seed damages the same datagrams of the same transfer. Delayed and reordered
+ * datagrams are copied and sent later by a delivery thread; the rest are sent
+ * straight away by the calling thread.
+ *
+ * Burst loss follows the Gilbert model: each datagram may start a burst, and
+ * every datagram of a burst is lost until it ends after a mean length.
+ */
+public class LossyDatagramShim implements Closeable {
+
+    private static final long REORDER_NANOS = TimeUnit.MILLISECONDS.toNanos(1); // Hold back of a reordered datagram.
+
+    private final Random random; // Source of every decision.
+    private double lossRate; // Chance a datagram is lost outside bursts.
+    private double burstRate; // Chance a datagram starts a burst.
+    private double burstLength = 1; // Mean number of datagrams lost per burst.
+    private double reorderRate; // Chance a datagram is overtaken by the ones after it.
+    private double duplicateRate; // Chance a datagram is sent twice.
+    private long delayNanos; // Delay of every datagram.
+    private long jitterNanos; // Largest random delay added on top.
+    private boolean inBurst; // Whether datagrams are being lost in a burst.
+
+    private final DelayQueue<Delivery> deliveries = new DelayQueue<>(); // Datagrams waiting for their time.
+    private Thread deliveryThread; // Sends the delayed datagrams, started on first use.
+
+    private final AtomicLong sent = new AtomicLong(); // Datagrams that reached the network.
+    private final AtomicLong dropped = new AtomicLong(); // Datagrams lost.
+    private final AtomicLong duplicated = new AtomicLong(); // Extra copies sent.
+    private final AtomicLong reordered = new AtomicLong(); // Datagrams held back behind later ones.
+
+    /**
+     * A datagram waiting in the delivery queue.
+     */
+    private static class Delivery implements Delayed {
+        private final DatagramChannel channel; // Channel to send the datagram on, null to stop the thread.
+        private final ByteBuffer datagram; // Copy of the datagram.
+        private final long due; // System.nanoTime at which to send it.
+
+        Delivery(DatagramChannel channel, ByteBuffer datagram, long due) {
+            this.channel = channel;
+            this.datagram = datagram;
+            this.due = due;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(due, ((Delivery) other).due);
+        }
+    }
+
+    /**
+     * Constructs a shim that lets every datagram through until configured.
+     *
+     * @param seed The seed of the decisions.
+     */
+    public LossyDatagramShim(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * Constructs a shim from a profile of settings joined by '+', for example
+     * "loss=0.01+burst=0.001/16+reorder=0.02+duplicate=0.01+delay=2000/500":
+     * loss, reorder and duplicate are chances per datagram, burst is the chance
+     * of starting a burst and its mean length, and delay is the delay and
+     * largest jitter in microseconds. "none" lets everything through.
+     *
+     * @param profile The settings.
+     * @param seed    The seed of the decisions.
+     * @return The shim.
+     * @throws IllegalArgumentException If a setting is unknown or invalid.
+     */
+    public static LossyDatagramShim parse(String profile, long seed) {
+        LossyDatagramShim shim = new LossyDatagramShim(seed);
+        if (profile.isEmpty() || profile.equals("none")) {
+            return shim;
+        }
+        for (String setting : profile.split("\\+")) {
+            String[] pair = setting.trim().split("=", 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Invalid shim setting: " + setting);
+            }
+            String[] values = pair[1].split("/", 2);
+            try {
+                double first = Double.parseDouble(values[0]);
+                double second = values.length > 1 ? Double.parseDouble(values[1]) : 0;
+                switch (pair[0]) {
+                case "loss":
+                    shim.setLoss(first);
+                    break;
+                case "burst":
+                    shim.setBurstLoss(first, values.length > 1 ? second : 1);
+                    break;
+                case "reorder":
+                    shim.setReorder(first);
+                    break;
+                case "duplicate":
+                    shim.setDuplication(first);
+                    break;
+                case "delay":
+                    shim.setDelay((long) first, (long) second);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown shim setting: " + pair[0]);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid shim setting: " + setting, e);
+            }
+        }
+        return shim;
+    }
+
+    /**
+     * Sets the chance that a datagram is lost on its own.
+     *
+     * @param rate The chance, from 0 to 1.
+     */
+    public void setLoss(double rate) {
+        lossRate = checkRate(rate);
+    }
+
+    /**
+     * Sets the burst loss of the Gilbert model.
+     *
+     * @param rate   The chance a datagram starts a burst, from 0 to 1.
+     * @param length The mean number of datagrams lost per burst, at least 1.
+     */
+    public void setBurstLoss(double rate, double length) {
+        if (length < 1) {
+            throw new IllegalArgumentException("Burst length below 1: " + length);
+        }
+        burstRate = checkRate(rate);
+        burstLength = length;
+    }
+
+    /**
+     * Sets the chance that a datagram is held back so the next ones overtake
+     * it.
+     *
+     * @param rate The chance, from 0 to 1.
+     */
+    public void setReorder(double rate) {
+        reorderRate = checkRate(rate);
+    }
+
+    /**
+     * Sets the chance that a datagram is sent twice.
+     *
+     * @param rate The chance, from 0 to 1.
+     */
+    public void setDuplication(double rate) {
+        duplicateRate = checkRate(rate);
+    }
+
+    /**
+     * Delays every datagram. Datagrams with different jitter can overtake each
+     * other.
+     *
+     * @param delayMicros  The delay in microseconds.
+     * @param jitterMicros The largest random delay added, in microseconds.
+     */
+    public void setDelay(long delayMicros, long jitterMicros) {
+        if (delayMicros < 0 || jitterMicros < 0) {
+            throw new IllegalArgumentException("Negative delay: " + delayMicros + "/" + jitterMicros);
+        }
+        delayNanos = TimeUnit.MICROSECONDS.toNanos(delayMicros);
+        jitterNanos = TimeUnit.MICROSECONDS.toNanos(jitterMicros);
+    }
+
+    /**
+     * Sends a datagram through the shim. The datagram is read from its
+     * position to its limit and may be reused once this returns.
+     *
+     * @param channel  The connected channel to send it on.
+     * @param datagram The datagram.
+     * @throws IOException If the datagram cannot be sent.
+     */
+    public synchronized void send(DatagramChannel channel, ByteBuffer datagram) throws IOException {
+        if (isLost()) {
+            dropped.incrementAndGet();
+            return;
+        }
+        int copies = random.nextDouble() < duplicateRate ? 2 : 1;
+        duplicated.addAndGet(copies - 1);
+        for (int i = 0; i < copies; i++) {
+            long delay = delayNanos;
+            if (jitterNanos > 0) {
+                delay += (long) (random.nextDouble() * jitterNanos);
+            }
+            if (random.nextDouble() < reorderRate) {
+                delay += REORDER_NANOS;
+                reordered.incrementAndGet();
+            }
+            if (delay == 0) {
+                channel.write(datagram.duplicate());
+                sent.incrementAndGet();
+            } else {
+                ByteBuffer copy = ByteBuffer.allocate(datagram.remaining()).put(datagram.duplicate()).flip();
+                startDelivery();
+                deliveries.add(new Delivery(channel, copy, System.nanoTime() + delay));
+            }
+        }
+    }
+
+    /**
+     * Decides whether the next datagram is lost, moving in and out of bursts.
+     */
+    private boolean isLost() {
+        if (inBurst) {
+            inBurst = random.nextDouble() >= 1 / burstLength;
+            return true;
+        }
+        if (burstRate > 0 && random.nextDouble() < burstRate) {
+            inBurst = burstLength > 1 && random.nextDouble() >= 1 / burstLength;
+            return true;
+        }
+        return lossRate > 0 && random.nextDouble() < lossRate;
+    }
+
+    /**
+     * Starts the delivery thread the first time a datagram is delayed.
+     */
+    private void startDelivery() {
+        if (deliveryThread != null) {
+            return;
+        }
+        deliveryThread = new Thread(() -> {
+            while (true) {
+                try {
+                    Delivery delivery = deliveries.take();
+                    if (delivery.channel == null) {
+                        return;
+                    }
+                    delivery.channel.write(delivery.datagram);
+                    sent.incrementAndGet();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    // The transfer closed its channels while the datagram was delayed
+                    dropped.incrementAndGet();
+                }
+            }
+        });
+        deliveryThread.setDaemon(true);
+        deliveryThread.start();
+    }
+
+    /**
+     * @return The datagrams that reached the network, copies included.
+     */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * @return The datagrams lost.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return The extra copies sent.
+     */
+    public long getDuplicated() {
+        return duplicated.get();
+    }
+
+    /**
+     * @return The datagrams held back behind later ones.
+     */
+    public long getReordered() {
+        return reordered.get();
+    }
+
+    /**
+     * Stops the delivery thread. Datagrams still waiting are lost. The thread
+     * is not interrupted, as that would close the channel it is writing to.
+     */
+    @Override
+    public synchronized void close() {
+        dropped.addAndGet(deliveries.size());
+        deliveries.clear();
+        if (deliveryThread != null) {
+            deliveries.add(new Delivery(null, null, System.nanoTime()));
+        }
+    }
+
+    /**
+     * Checks that a chance lies between 0 and 1.
+     */
+    private static double checkRate(double rate) {
+        if (rate < 0 || rate > 1) {
+            throw new IllegalArgumentException("Chance outside 0 to 1: " + rate);
+        }
+        return rate;
+    }
+}
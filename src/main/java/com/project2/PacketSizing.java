@@ -0,0 +1,89 @@
+package com.project2;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+
+/**
+ * Works out RBUDP payload sizes: the bounds a payload must stay within, the
+ * largest payload that fits the MTU of a network interface without IP
+ * fragmentation, and the datagram sizes tried by the path probe.
+ */
+public class PacketSizing {
+
+    public static final int HEADER_SIZE = 11; // Sequence number, final packet size, flags and CRC32C.
+    public static final int DEFAULT_PACKET_SIZE = 8192; // Payload used when nothing else is known.
+    public static final int MIN_PACKET_SIZE = 512; // Smallest payload that is negotiated.
+    public static final int MAX_PACKET_SIZE = 65507 - HEADER_SIZE; // Largest payload of an IPv4 UDP datagram.
+
+    private static final int UDP_HEADER = 8;
+    private static final int IPV4_HEADER = 20;
+    private static final int IPV6_HEADER = 40;
+
+    // Datagram sizes for common MTUs: 9000 jumbo frames, 1500 Ethernet, 1492
+    // PPPoE, 1280 the IPv6 minimum, and 576 the IPv4 minimum.
+    private static final int[] COMMON_MTUS = { 9000, 1500, 1492, 1280, 576 };
+
+    private PacketSizing() {
+    }
+
+    /**
+     * Keeps a payload size within the negotiable bounds.
+     *
+     * @param packetSize The payload size wanted.
+     * @return The payload size clamped to MIN_PACKET_SIZE..MAX_PACKET_SIZE.
+     */
+    public static int clamp(int packetSize) {
+        return Math.max(MIN_PACKET_SIZE, Math.min(MAX_PACKET_SIZE, packetSize));
+    }
+
+    /**
+     * Returns the largest payload whose datagram fits the MTU of the interface
+     * a socket is bound to, so datagrams leave it unfragmented.
+     *
+     * @param localAddress The local address of the connection.
+     * @return The payload size, or DEFAULT_PACKET_SIZE if the MTU is unknown.
+     */
+    public static int payloadForInterface(InetAddress localAddress) {
+        try {
+            NetworkInterface networkInterface = NetworkInterface.getByInetAddress(localAddress);
+            if (networkInterface == null || networkInterface.getMTU() <= 0) {
+                return DEFAULT_PACKET_SIZE;
+            }
+            return clamp(payloadForMtu(networkInterface.getMTU(), localAddress instanceof Inet6Address));
+        } catch (SocketException e) {
+            return DEFAULT_PACKET_SIZE;
+        }
+    }
+
+    /**
+     * Returns the datagram sizes the path probe sends, largest first: the
+     * largest allowed datagram and then the sizes that fit common MTUs.
+     *
+     * @param maxPacketSize The largest payload worth probing.
+     * @param ipv6          Whether the path is IPv6.
+     * @return The datagram sizes to probe, in descending order.
+     */
+    public static int[] probeSizes(int maxPacketSize, boolean ipv6) {
+        int[] sizes = new int[COMMON_MTUS.length + 1];
+        int count = 0;
+        sizes[count++] = maxPacketSize + HEADER_SIZE;
+        for (int mtu : COMMON_MTUS) {
+            int payload = payloadForMtu(mtu, ipv6);
+            if (payload < maxPacketSize && payload >= MIN_PACKET_SIZE) {
+                sizes[count++] = payload + HEADER_SIZE;
+            }
+        }
+        int[] result = new int[count];
+        System.arraycopy(sizes, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * Returns the payload of a datagram that exactly fills an MTU.
+     */
+    private static int payloadForMtu(int mtu, boolean ipv6) {
+        return mtu - (ipv6 ? IPV6_HEADER : IPV4_HEADER) - UDP_HEADER - HEADER_SIZE;
+    }
+}
@@ -0,0 +1,280 @@
+package com.project2;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends a file over several TCP connections at once, each connection carrying
+ * one contiguous piece of the ranges still to be sent.
+ * 
+ * Every data connection starts with a fixed header (magic number, the token
+ * of the receiving session, range offset and range length) followed by the
+ * raw bytes of the range. The receiver reads the magic number and token when
+ * routing the connection to its session, the session reads the rest. The
+ * sender moves the bytes with FileChannel.transferTo and the receiver through
+ * a buffer it hashes, or, when the file is compressed, both move them as
+ * ChunkCompressor frames. Each connection is served by
+ * a thread of the transfer's TransferScope, and cancelling the scope closes
+ * them all.
+ */
+public class ParallelTCPTransfer {
+
+    public static final int STREAM_MAGIC = 0x52414E47; // "RANG", marks a range stream.
+    public static final int STREAM_HEADER_SIZE = 28; // Magic, token, offset and length.
+    public static final int ROUTE_HEADER_SIZE = 12; // Magic and token, read when routing the connection.
+    public static final int MAX_STREAMS = 64; // Upper bound on connections per file.
+
+    private static final long CHUNK_SIZE = 8L * 1024 * 1024; // Bytes moved per transfer call.
+    private static final int RECEIVE_BUFFER_SIZE = FileDigest.TCP_CHUNK_SIZE; // Bytes read per write to the file.
+
+    private ParallelTCPTransfer() {
+    }
+
+    /**
+     * Called each time a chunk of a range has been written to the file on the
+     * receiving side, or to its connection on the sending side. The chunk's
+     * bytes come along so they can be hashed without reading them back; the
+     * callback must leave the buffer's position and limit as they were.
+     */
+    public interface RangeWritten {
+        /**
+         * @param offset The file offset of the chunk.
+         * @param length The length of the chunk.
+         * @param data   The bytes of the chunk, from the buffer's position to
+         *               its limit.
+         */
+        void written(long offset, long length, ByteBuffer data) throws IOException;
+    }
+
+    /**
+     * Hands the receiving side the data connections of its transfer one at a
+     * time, as they arrive.
+     */
+    public interface StreamSource {
+        SocketChannel next() throws IOException;
+    }
+
+    /**
+     * Splits the ranges still to be sent into pieces of near-equal size, one
+     * piece per data connection. Both ends call this with the same ranges, so
+     * they agree on the number of connections. Pieces are whole digest chunks
+     * long, so a range starting on a chunk boundary splits into pieces that
+     * each hash their own chunks and none has to be read back.
+     *
+     * @param ranges  The ranges to send as {start, end} pairs in ascending order.
+     * @param streams The number of parallel connections wanted.
+     * @return The pieces as {start, end} pairs, at most streams plus the number
+     *         of ranges minus one of them.
+     */
+    public static List<long[]> split(List<long[]> ranges, int streams) {
+        long total = 0;
+        for (long[] range : ranges) {
+            total += range[1] - range[0];
+        }
+        List<long[]> pieces = new ArrayList<>();
+        if (total == 0) {
+            return pieces;
+        }
+        long share = (total + streams - 1) / streams;
+        share = (share + FileDigest.TCP_CHUNK_SIZE - 1) / FileDigest.TCP_CHUNK_SIZE * FileDigest.TCP_CHUNK_SIZE;
+        for (long[] range : ranges) {
+            for (long start = range[0]; start < range[1]; start += share) {
+                pieces.add(new long[] { start, Math.min(range[1], start + share) });
+            }
+        }
+        return pieces;
+    }
+
+    /**
+     * Sends pieces of a file over parallel connections, one connection per
+     * piece, and waits for every piece to be written to the sockets.
+     *
+     * @param scope    The scope of the transfer, the connections are closed if
+     *                 it is cancelled.
+     * @param file     The channel of the file being sent.
+     * @param pieces   The pieces to send as {start, end} pairs, from split.
+     * @param target   The address the receiver accepts data connections on.
+     * @param token    The token of the receiving session, from ##STREAMTOKEN.
+     * @param compress Whether to deflate the pieces frame by frame.
+     * @param onSent   Called each time a chunk of a piece has been sent.
+     * @return The number of bytes of file data put on the connections,
+     *         compressed or not, stream headers aside.
+     * @throws IOException If any of the connections fails.
+     */
+    public static long sendRanges(TransferScope scope, FileChannel file, List<long[]> pieces,
+            InetSocketAddress target, long token, boolean compress, RangeWritten onSent) throws IOException {
+        AtomicLong wireBytes = new AtomicLong();
+
+        for (long[] piece : pieces) {
+            long offset = piece[0];
+            long length = piece[1] - piece[0];
+            scope.fork(() -> {
+                try (SocketChannel channel = scope.closeOnCancel(SocketChannel.open(target))) {
+                    ByteBuffer header = ByteBuffer.allocate(STREAM_HEADER_SIZE);
+                    header.putInt(STREAM_MAGIC).putLong(token).putLong(offset).putLong(length).flip();
+                    while (header.hasRemaining()) {
+                        channel.write(header);
+                    }
+                    if (compress) {
+                        ChunkCompressor compressor = new ChunkCompressor();
+                        try {
+                            compressor.sendRange(file, offset, offset + length, channel, onSent);
+                            wireBytes.addAndGet(compressor.getWireBytes());
+                        } finally {
+                            compressor.end();
+                        }
+                        return;
+                    }
+                    sendRaw(file, offset, offset + length, channel, onSent);
+                    wireBytes.addAndGet(length);
+                }
+            });
+        }
+
+        joinAll(scope);
+        return wireBytes.get();
+    }
+
+    /**
+     * Takes the data connections of a parallel transfer and writes each range
+     * to its offset in the file.
+     *
+     * @param scope       The scope of the transfer, the connections are closed
+     *                    if it is cancelled.
+     * @param streams     The data connections routed to this transfer, their
+     *                    magic number and token already read.
+     * @param file        The channel of the destination file, already sized to
+     *                    the full file length.
+     * @param size        The size of the file.
+     * @param connections The number of data connections to take.
+     * @param compressed  Whether the ranges arrive as ChunkCompressor frames.
+     * @param onWritten   Called each time a chunk of a range has been written.
+     * @throws IOException If a connection fails or sends an invalid range.
+     */
+    public static void receiveRanges(TransferScope scope, StreamSource streams, FileChannel file, long size,
+            int connections, boolean compressed, RangeWritten onWritten) throws IOException {
+        for (int i = 0; i < connections && !scope.isCancelled(); i++) {
+            SocketChannel stream = scope.closeOnCancel(streams.next());
+            scope.fork(() -> {
+                try (SocketChannel channel = stream) {
+                    receiveRange(channel, file, size, compressed, onWritten);
+                }
+            });
+        }
+        joinAll(scope);
+    }
+
+    /**
+     * Reads the rest of the header of one data connection and writes its range
+     * to the file.
+     */
+    private static void receiveRange(SocketChannel channel, FileChannel file, long size, boolean compressed,
+            RangeWritten onWritten) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(STREAM_HEADER_SIZE - ROUTE_HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header) < 0) {
+                throw new EOFException("Data connection closed before its header");
+            }
+        }
+        header.flip();
+        long offset = header.getLong();
+        long length = header.getLong();
+        if (offset < 0 || length < 0 || offset + length > size) {
+            throw new IOException("Invalid range stream header");
+        }
+
+        if (compressed) {
+            ChunkCompressor compressor = new ChunkCompressor();
+            try {
+                compressor.receiveRange(channel, file, offset, offset + length, onWritten);
+            } finally {
+                compressor.end();
+            }
+            return;
+        }
+
+        receiveRaw(channel, file, offset, offset + length, onWritten);
+    }
+
+    /**
+     * Sends a range of a file as it is, letting the kernel copy it to the
+     * connection. Each piece is mapped and handed to onSent once sent, so it
+     * can be hashed straight from the page cache.
+     *
+     * @param file   The channel of the file being sent.
+     * @param from   The first byte of the range.
+     * @param to     The end of the range, exclusive.
+     * @param out    The connection to send the range on.
+     * @param onSent Called after each piece has been sent.
+     * @throws IOException If the file cannot be read or the connection fails.
+     */
+    public static void sendRaw(FileChannel file, long from, long to, WritableByteChannel out, RangeWritten onSent)
+            throws IOException {
+        for (long position = from; position < to;) {
+            long length = Math.min(CHUNK_SIZE, to - position);
+            for (long sent = 0; sent < length;) {
+                sent += file.transferTo(position + sent, length - sent, out);
+            }
+            onSent.written(position, length, file.map(FileChannel.MapMode.READ_ONLY, position, length));
+            position += length;
+        }
+    }
+
+    /**
+     * Receives a range of a file sent as it is, reading it through a buffer
+     * that is written at the range's offset and handed to onWritten, so it
+     * can be hashed while it is in memory.
+     *
+     * @param in        The connection the range arrives on.
+     * @param file      The channel of the file being received.
+     * @param from      The first byte of the range.
+     * @param to        The end of the range, exclusive.
+     * @param onWritten Called after each buffer has been written to the file.
+     * @throws IOException If the connection fails or closes inside the range.
+     */
+    public static void receiveRaw(ReadableByteChannel in, FileChannel file, long from, long to,
+            RangeWritten onWritten) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.min(RECEIVE_BUFFER_SIZE, Math.max(1, to - from)));
+        for (long position = from; position < to;) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), to - position));
+            while (buffer.hasRemaining()) {
+                if (in.read(buffer) < 0) {
+                    throw new EOFException("Connection closed inside its range");
+                }
+            }
+            buffer.flip();
+            for (long written = position; buffer.hasRemaining();) {
+                written += file.write(buffer, written);
+            }
+            buffer.position(0);
+            onWritten.written(position, buffer.limit(), buffer);
+            position += buffer.limit();
+        }
+    }
+
+    /**
+     * Waits for every connection of a transfer to finish and throws the first
+     * failure, if any.
+     */
+    private static void joinAll(TransferScope scope) throws IOException {
+        try {
+            scope.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for range streams", e);
+        }
+        scope.throwIfFailed();
+        if (scope.isCancelled()) {
+            throw new IOException("Transfer cancelled");
+        }
+    }
+}
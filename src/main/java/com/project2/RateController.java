@@ -0,0 +1,62 @@
+package com.project2;
+
+/**
+ * Adjusts the RBUDP blast rate from the loss the receiver reports for each
+ * block, so the sender converges to the bandwidth the path can carry.
+ * 
+ * A block with heavy loss halves the rate, light loss trims it, and a clean
+ * block probes upward. Consecutive clean blocks probe progressively harder so
+ * a rate that was cut by a short burst of loss recovers quickly.
+ */
+public class RateController {
+
+    public static final double DEFAULT_INITIAL_RATE = 100; // Mbit/s used when no target rate is set.
+    public static final double MIN_RATE = 1; // Mbit/s the rate never drops below.
+    public static final double MAX_RATE = 100_000; // Mbit/s the rate never rises above.
+
+    private static final double HIGH_LOSS = 0.05; // Loss above which the rate is halved.
+    private static final double HIGH_LOSS_FACTOR = 0.5;
+    private static final double LOW_LOSS_FACTOR = 0.85; // Applied for loss up to HIGH_LOSS.
+    private static final double PROBE_STEP = 0.05; // Increase after the first clean block.
+    private static final double MAX_PROBE_STEP = 0.25; // Largest increase after a run of clean blocks.
+
+    private double rate; // Current rate in Mbit/s.
+    private int cleanBlocks; // Number of clean blocks in a row.
+
+    /**
+     * Constructs a controller starting at the given rate.
+     *
+     * @param initialRate The starting rate in Mbit/s, 0 or less for the default.
+     */
+    public RateController(double initialRate) {
+        this.rate = initialRate > 0 ? initialRate : DEFAULT_INITIAL_RATE;
+    }
+
+    /**
+     * @return The current rate in Mbit/s.
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * Updates the rate from the loss of a block.
+     *
+     * @param loss The fraction of the block's packets that were lost.
+     * @return The new rate in Mbit/s.
+     */
+    public double onBlockLoss(double loss) {
+        if (loss > HIGH_LOSS) {
+            rate *= HIGH_LOSS_FACTOR;
+            cleanBlocks = 0;
+        } else if (loss > 0) {
+            rate *= LOW_LOSS_FACTOR;
+            cleanBlocks = 0;
+        } else {
+            cleanBlocks++;
+            rate *= 1 + Math.min(MAX_PROBE_STEP, PROBE_STEP * cleanBlocks);
+        }
+        rate = Math.max(MIN_RATE, Math.min(MAX_RATE, rate));
+        return rate;
+    }
+}
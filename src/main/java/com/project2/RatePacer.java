@@ -0,0 +1,74 @@
+package com.project2;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Spaces out RBUDP datagrams so they leave at a target rate instead of in one
+ * burst that overflows the receiver's socket buffer.
+ * 
+ * Works as a token bucket: each datagram moves a virtual send clock forward by
+ * its transmission time at the target rate, and the caller waits until the
+ * clock catches up. Idle time builds up credit for at most BURST_BYTES, so a
+ * pause does not turn into a burst afterwards.
+ */
+public class RatePacer {
+
+    public static final long BURST_BYTES = 64 * 1024; // Largest burst allowed after an idle period.
+
+    private static final long SPIN_NANOS = 50_000; // Waits shorter than this spin instead of parking.
+
+    private volatile double bytesPerNano; // Target rate, 0 when unlimited.
+    private long nextSendTime; // Virtual clock: when the next datagram may leave.
+
+    /**
+     * Constructs a pacer for a target rate.
+     *
+     * @param megabitsPerSecond The target rate in Mbit/s, 0 or less for unlimited.
+     */
+    public RatePacer(double megabitsPerSecond) {
+        setRate(megabitsPerSecond);
+        nextSendTime = System.nanoTime();
+    }
+
+    /**
+     * Changes the target rate.
+     *
+     * @param megabitsPerSecond The target rate in Mbit/s, 0 or less for unlimited.
+     */
+    public void setRate(double megabitsPerSecond) {
+        bytesPerNano = megabitsPerSecond > 0 ? megabitsPerSecond * 1e6 / 8 / 1e9 : 0;
+    }
+
+    /**
+     * @return The target rate in Mbit/s, 0 when unlimited.
+     */
+    public double getRate() {
+        return bytesPerNano * 8 * 1e9 / 1e6;
+    }
+
+    /**
+     * Waits until a datagram of the given size may be sent at the target rate.
+     *
+     * @param bytes The size of the datagram about to be sent.
+     */
+    public void pace(int bytes) {
+        double rate = bytesPerNano;
+        if (rate <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        long earliest = now - (long) (BURST_BYTES / rate);
+        if (nextSendTime < earliest) {
+            nextSendTime = earliest;
+        }
+        long wait;
+        while ((wait = nextSendTime - System.nanoTime()) > 0) {
+            if (wait > SPIN_NANOS) {
+                LockSupport.parkNanos(wait - SPIN_NANOS);
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+        nextSendTime += (long) (bytes / rate);
+    }
+}
@@ -1,41 +1,83 @@
 package com.project2;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Represents the receiver side of a TCP and potentially RBUDP file transfer.
+ * Represents the receiver side of TCP and RBUDP file transfers. Listens on one
+ * TCP port and serves every sender that connects in its own ReceiverSession,
+ * so several senders can transfer files at the same time. Every connection
+ * starts with a magic number saying whether it is a sender's control
+ * connection or a data connection of a parallel TCP transfer; data connections
+ * carry the token of the session they belong to and are handed to it.
+ *
+ * Connections are served by one of two engines. THREADS gives every sender a
+ * thread and every data connection and UDP port a reader thread. SELECTOR
+ * multiplexes them all on one SelectorEngine event loop, with a fixed pool of
+ * workers running sessions only while they handle a command, so the thread
+ * count stays the same however many senders are connected.
  */
 public class Receiver {
-    private volatile static ServerSocket serverSocket;
-    private volatile Socket socket;
-    private volatile GUI_Receiver guiReceiver;
-    private volatile int UDPPort;
-    private volatile DatagramSocket datagramSocket;
-    private volatile BufferedWriter bufWrite;
-    private volatile BufferedReader bufRead;
+    private volatile ServerSocketChannel serverSocket;
+    private final TransferListener listener; // Told about the files received by every session.
+    private volatile int maxPacketSize; // Largest RBUDP payload offered, 0 to follow the MTU.
+    private volatile int udpChannels = defaultUDPChannels(); // Number of UDP ports opened per sender.
+    private volatile int maxSessions = DEFAULT_MAX_SESSIONS; // Senders served at the same time.
+    private volatile Engine engine = defaultEngine(); // How connections are served.
+    private volatile SelectorEngine selectorEngine; // The event loop of the selector engine, null for threads.
+    private volatile ExecutorService sessionExecutor; // Runs the sessions, a virtual thread each where available.
+    private final Set<ReceiverSession> sessions = ConcurrentHashMap.newKeySet(); // Sessions being served.
+    // Data connections waiting to be taken by the parallel TCP transfer holding their token.
+    private final Map<Long, BlockingQueue<SocketChannel>> streamRoutes = new ConcurrentHashMap<>();
+    private final SecureRandom tokens = new SecureRandom(); // Source of stream tokens.
 
-    // Default directory for storing received files.
-    private static final String TEMP_DIR = System.getProperty("java.io.tmpdir") + File.separator + "receivedFiles";
+    // Most UDP ports, and reader threads, used for one sender.
+    public static final int MAX_UDP_CHANNELS = 16;
+
+    // First bytes of a sender's control connection, "CTRL".
+    public static final int CONTROL_MAGIC = 0x4354524C;
+
+    // Senders served at the same time on platform threads unless set otherwise; later senders wait their turn.
+    public static final int DEFAULT_MAX_SESSIONS = 64;
+
+    // How long a connection may take to say what it is.
+    private static final int ROUTE_TIMEOUT_MS = 10_000;
+
+    // How long a parallel TCP transfer waits for each of its data connections.
+    private static final long STREAM_TIMEOUT_MS = 30_000;
+
+    // System property choosing the engine, "threads" or "selector".
+    public static final String ENGINE_PROPERTY = "project2.receiver.engine";
+
+    /**
+     * The ways the receiver can serve its connections.
+     */
+    public enum Engine {
+        THREADS, // A thread per sender, data connection and UDP port.
+        SELECTOR // One event loop for every channel and a fixed pool of session workers.
+    }
 
     /**
-     * Constructs a new Receiver with the specified GUI interface.
+     * Constructs a new Receiver that reports to a listener, such as
+     * GUI_Receiver or the receiver daemon.
      *
-     * @param guiReceiver the GUI interface associated with this Receiver.
+     * @param listener The listener of the receiver's progress and events.
      */
-    public Receiver(GUI_Receiver guiReceiver) {
-        this.guiReceiver = guiReceiver;
+    public Receiver(TransferListener listener) {
+        this.listener = listener;
     }
 
     /**
@@ -47,8 +89,17 @@ public class Receiver {
      */
     public Boolean startTCPConnection(int port) {
         try {
-            serverSocket = new ServerSocket(port);
-            waitForSender();
+            // Opened through a channel so accepted sockets support FileChannel.transferFrom
+            serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(port));
+            if (engine == Engine.SELECTOR) {
+                selectorEngine = new SelectorEngine();
+                sessionExecutor = Executors.newFixedThreadPool(SelectorEngine.DEFAULT_WORKERS);
+                serverSocket.configureBlocking(false);
+                selectorEngine.accept(serverSocket, this::routeOnLoop);
+            } else {
+                sessionExecutor = TransferScope.newSessionExecutor(maxSessions);
+                waitForSenders();
+            }
             return true;
         } catch (IOException e) {
             e.printStackTrace();
@@ -58,409 +109,326 @@ public class Receiver {
     }
 
     /**
-     * Waits for an incoming connection from a sender and starts listening for data.
+     * Accepts connections until the server socket is closed, routing each one
+     * on its own short-lived thread so a slow connection cannot hold up the
+     * others. Threads are virtual where the runtime allows.
      */
-    public void waitForSender() {
-        new Thread(() -> {
-            try {
-                socket = serverSocket.accept();
-                bufWrite = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-                bufRead = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                guiReceiver.showDialog("Sender Connected");
-                setupUDPConnection();
-                waitForSending();
-            } catch (IOException e) {
-                e.printStackTrace();
-                // closeResources();
+    private void waitForSenders() {
+        ServerSocketChannel server = serverSocket;
+        TransferScope.start(() -> {
+            while (server.isOpen()) {
+                try {
+                    SocketChannel channel = server.accept();
+                    TransferScope.start(() -> route(channel));
+                } catch (IOException e) {
+                    if (server.isOpen()) {
+                        e.printStackTrace();
+                    }
+                }
             }
-        }).start();
+        });
     }
 
     /**
-     * Sets up UDP connection by assigning a UDP port.
+     * Reads the magic number of a new connection and hands it to a new
+     * session, or to the parallel transfer whose token it carries.
+     *
+     * @param channel The accepted connection.
      */
-    private void setupUDPConnection() {
-        UDPPort = 4000;
-        while (true) {
-            try {
-                datagramSocket = new DatagramSocket(UDPPort);
-                break;
-            } catch (IOException e) {
-                UDPPort++; // Increment UDP port if the current one is already in use.
-            }
-        }
+    private void route(SocketChannel channel) {
         try {
-            bufWrite.write(Integer.toString(UDPPort));
-            bufWrite.newLine();
-            bufWrite.flush();
+            channel.socket().setSoTimeout(ROUTE_TIMEOUT_MS);
+            int magic = readHeader(channel, Integer.BYTES).getInt();
+            if (magic == CONTROL_MAGIC) {
+                channel.socket().setSoTimeout(0);
+                startSession(channel);
+            } else if (magic == ParallelTCPTransfer.STREAM_MAGIC) {
+                long token = readHeader(channel, Long.BYTES).getLong();
+                BlockingQueue<SocketChannel> route = streamRoutes.get(token);
+                if (route == null) {
+                    System.out.println("Data connection for unknown transfer " + token + " refused");
+                    channel.close();
+                    return;
+                }
+                channel.socket().setSoTimeout(0);
+                route.add(channel);
+            } else {
+                System.out.println("Connection with unknown magic number " + Integer.toHexString(magic)
+                        + " refused");
+                channel.close();
+            }
         } catch (IOException e) {
-            closeResources(); // Close resources on error
+            System.out.println("Unable to route connection: " + e.getMessage());
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // The connection is being dropped anyway
+            }
         }
     }
 
     /**
-     * Waits for incoming data to process based on the predetermined sending method.
+     * Reads the magic number of a new connection on the selector engine's
+     * loop, then hands a control connection to a new session on a worker, or
+     * leaves a data connection with the loop and queues it for the parallel
+     * transfer whose token it carries.
+     *
+     * @param channel The accepted connection, non-blocking.
      */
-    private void waitForSending() {
-        new Thread(() -> {
-            while (true) {
-                try {
-                    String incomingMethod = bufRead.readLine();
-                    if ("##SENDINGTCPFILE".equals(incomingMethod)) {
-                        TCPReceiveFile();
-                    } else if ("##SENDINGRBUDPFILE".equals(incomingMethod)) {
-                        // Placeholder for RBUDP receiving logic.
-                        System.out.println("Starting RBUDP Receive");
-                        RBUDPReceiveFile();
+    private void routeOnLoop(SocketChannel channel) {
+        SelectorEngine loop = selectorEngine;
+        loop.read(channel, ByteBuffer.allocate(Integer.BYTES), magic -> {
+            int value = magic.getInt();
+            if (value == CONTROL_MAGIC) {
+                loop.release(channel, () -> startSession(channel));
+            } else if (value == ParallelTCPTransfer.STREAM_MAGIC) {
+                loop.read(channel, ByteBuffer.allocate(Long.BYTES), token -> {
+                    BlockingQueue<SocketChannel> route = streamRoutes.get(token.getLong());
+                    if (route == null) {
+                        System.out.println("Data connection for unknown transfer refused");
+                        closeQuietly(channel);
                     } else {
-                        bufWrite.write("##NOTHINGNOTRECEIVED");
-                        bufWrite.newLine();
-                        bufWrite.flush();
+                        route.add(channel);
                     }
-                } catch (IOException e) {
-                    guiReceiver.showErrorDialog("Sender disconnected");
-                    // closeResources();
-                    break; // Exit the loop if there's an error.
-                }
+                }, e -> System.out.println("Unable to route connection: " + e.getMessage()));
+            } else {
+                System.out.println("Connection with unknown magic number " + Integer.toHexString(value)
+                        + " refused");
+                closeQuietly(channel);
             }
-        }).start();
+        }, e -> System.out.println("Unable to route connection: " + e.getMessage()));
     }
 
     /**
-     * Handles receiving a file over TCP, saving it to a temporary directory, and
-     * updating the GUI.
+     * Closes a connection that is being refused.
      */
-    private void TCPReceiveFile() {
+    private static void closeQuietly(SocketChannel channel) {
         try {
-            // Read the file name and expected size.
-            String fileName = bufRead.readLine();
-            long fileSize = Long.parseLong(bufRead.readLine());
-
-            // Ensure the temporary directory exists.
-            File tempDir = new File(TEMP_DIR);
-            if (!tempDir.exists()) {
-                tempDir.mkdirs();
-            }
+            channel.close();
+        } catch (IOException ignored) {
+            // The connection is being dropped anyway
+        }
+    }
 
-            // Create a new file output stream for the incoming file.
-            File file = new File(tempDir, fileName);
-            try (FileOutputStream fos = new FileOutputStream(file)) {
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                long totalRead = 0;
-
-                // Read the file data from the socket and write it to the file.
-                while (totalRead < fileSize && (bytesRead = socket.getInputStream().read(buffer)) != -1) {
-                    fos.write(buffer, 0, bytesRead);
-                    totalRead += bytesRead;
-                    final double progress = totalRead / (double) fileSize;
-                    guiReceiver.updateProgressBar(progress); // Update the GUI's progress bar.
-                }
-                System.out.println("File " + fileName + " received and stored temporarily.");
-                guiReceiver.updateReceivedList(file.getAbsolutePath()); // Add the received file to the GUI's list.
+    /**
+     * Reads a fixed number of bytes from the start of a connection. The socket
+     * is read through its stream, so the read timeout applies.
+     */
+    private static ByteBuffer readHeader(SocketChannel channel, int length) throws IOException {
+        byte[] header = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = channel.socket().getInputStream().read(header, read, length - read);
+            if (n < 0) {
+                throw new EOFException("Connection closed before its header");
             }
-        } catch (IOException e) {
-            closeResources();
-            e.printStackTrace();
+            read += n;
         }
+        return ByteBuffer.wrap(header);
     }
 
-    // global variables for RBUDP receiving
-    private int packetSize = 8192;
-    private volatile int size, sequenceNumber, finalSequenceNumber, numberOfPackets;
-    private volatile Boolean finalPacket;
-    private volatile ArrayList<Integer> sequencesReceived;
-    private volatile HashMap<Integer, byte[]> partsOfFile;
-    private volatile Boolean finishedReceiving;
-    private volatile Boolean UDPStillReciving;
-
     /**
-     * Receives a file using Reliable Broadcast UDP (RBUDP) protocol.
+     * Queues a session for a sender's control connection on the session
+     * executor.
      */
-    private void RBUDPReceiveFile() {
+    private void startSession(SocketChannel channel) {
+        ReceiverSession session = new ReceiverSession(this, channel.socket(), listener, udpChannels,
+                maxPacketSize);
+        sessions.add(session);
         try {
-
-            // Read the file name from the input buffer
-            String fileName = bufRead.readLine();
-
-            // Read the size of the file from the input buffer
-            size = Integer.parseInt(bufRead.readLine());
-
-            // Calculates the number of packets needed to receive the file
-            numberOfPackets = (int) Math.ceil(
-                    (double) size / packetSize);
-
-            // Print a message indicating the file being received
-            System.out.println("RBUDP: Receiving file: " + fileName + "\n");
-
-            // Initialize lists and variables for managing received data
-            sequencesReceived = new ArrayList<>();
-            partsOfFile = new HashMap<>();
-            finalPacket = false;
-            finishedReceiving = false;
-            UDPStillReciving = true;
-
-            sequenceListsReceived(); // Receive lists from the sender
-            receivePackets(); // Receive the file packets
-            writeFileTemp(fileName); // Write received data to a temporary file
-
-        } catch (Exception ex) {
-            // Display an error message if the sender disconnects unexpectedly
-            closeResources();
-            guiReceiver.showErrorDialog("Sender disconnected");
+            sessionExecutor.execute(session::run);
+        } catch (RuntimeException e) {
+            // The executor has been shut down, the receiver is closing
+            session.close();
         }
     }
 
     /**
-     * Receives packets and constructs the file from received data.
-     * Updates the progress bar as packets are received.
+     * Hands a session whose sender has sent a command back to a worker of the
+     * selector engine.
+     *
+     * @param session The session, parked while idle.
      */
-    private void receivePackets() {
+    void resumeSession(ReceiverSession session) {
+        try {
+            sessionExecutor.execute(session::resume);
+        } catch (RuntimeException e) {
+            // The executor has been shut down, the receiver is closing
+            session.close();
+        }
+    }
 
-        // Initialize packet counter to track progress
-        int packetCounter = 0;
+    /**
+     * Forgets a session once its sender has gone.
+     *
+     * @param session The session.
+     */
+    void sessionEnded(ReceiverSession session) {
+        sessions.remove(session);
+    }
 
-        // Make progress bar visible and set initial progress
-        guiReceiver.barProgress.setVisible(true);
-        guiReceiver.barProgress.setProgress(0);
+    /**
+     * @return The event loop of the selector engine, or null when every
+     *         connection has its own thread.
+     */
+    public SelectorEngine getSelectorEngine() {
+        return selectorEngine;
+    }
 
-        // Continuously receive packets until finished
+    /**
+     * Opens a route for the data connections of a parallel TCP transfer.
+     *
+     * @return The token the sender puts in the header of each data connection.
+     */
+    public long openStreamRoute() {
         while (true) {
-
-            try {
-
-                // Create a byte array to hold incoming packet data
-                byte[] message = new byte[packetSize + 5];
-                byte[] filePartBytes;
-
-                // Check if finished receiving all packets
-                if (finishedReceiving) {
-                    System.out.println("Done receiving");
-                    break;
-                }
-
-                // Create a DatagramPacket to receive incoming data
-                DatagramPacket datagramPacket = new DatagramPacket(message,
-                        message.length);
-
-                try {
-                    // Receive the packet
-                    datagramSocket.receive(datagramPacket);
-                    packetCounter++;
-                } catch (Exception e) {
-                    // Break loop if an exception occurs
-                    closeResources();
-                    System.out.println("Sender Disconnected");
-                    break;
-                }
-
-                // Extract data from the received packet
-                message = datagramPacket.getData();
-
-                // Extract sequence number from the received packet
-                sequenceNumber = ((message[0] & 0xff) << 16) +
-                        ((message[1] & 0xff) << 8) + (message[2] & 0xff);
-
-                // Extract final packet size from the received packet
-                int finalPacketSize = ((message[3] & 0xff) << 8) + (message[4] & 0xff);
-
-                finalPacket = (finalPacketSize != 0);
-
-                System.out.println("Received: " + sequenceNumber);
-
-                // Allocate byte array for the file part based on final packet flag
-                if (finalPacket) {
-                    filePartBytes = new byte[finalPacketSize];
-                    System.arraycopy(message, 5, filePartBytes,
-                            0, finalPacketSize);
-                    finalSequenceNumber = sequenceNumber;
-                } else {
-                    filePartBytes = new byte[packetSize];
-                    System.arraycopy(message, 5, filePartBytes,
-                            0, packetSize);
-                }
-
-                // Store the received file part in the map
-                partsOfFile.put(sequenceNumber, filePartBytes);
-
-                // Add the sequence number to the list of received sequences
-                sequencesReceived.add(sequenceNumber);
-
-                // Reset final packet flag
-                finalPacket = false;
-
-                // Calculate progress and update the progress bar
-                final double progress = packetCounter / (double) numberOfPackets;
-                guiReceiver.updateProgressBar(progress); // Update the GUI's progress bar.
-
-            } catch (Exception e) {
-                System.out.println("Exception happened");
-                closeResources();
-                guiReceiver.showErrorDialog("Sender disconnected");
-                ;
-
+            long token = tokens.nextLong();
+            if (streamRoutes.putIfAbsent(token, new LinkedBlockingQueue<>()) == null) {
+                return token;
             }
         }
-
-        // Update status flag and print message
-        UDPStillReciving = false;
-        System.out.println("finished receiving file");
     }
 
     /**
-     * Writes received file parts to a temporary file.
+     * Waits for the next data connection carrying a token.
      *
-     * @param fileName The name of the file to be written.
+     * @param token The token returned by openStreamRoute.
+     * @return The data connection, its magic number and token already read.
+     * @throws IOException If no connection arrives in time or the route is
+     *                     closed.
      */
-    private void writeFileTemp(String fileName) {
+    public SocketChannel awaitStream(long token) throws IOException {
+        BlockingQueue<SocketChannel> route = streamRoutes.get(token);
+        if (route == null) {
+            throw new IOException("No transfer is waiting for token " + token);
+        }
         try {
-
-            // Create a directory for temporary files if it doesn't exist
-            File tempDir = new File(TEMP_DIR);
-            if (!tempDir.exists()) {
-                tempDir.mkdirs();
+            SocketChannel channel = route.poll(STREAM_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (channel == null) {
+                throw new IOException("Timed out waiting for a data connection");
             }
+            return channel;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for a data connection", e);
+        }
+    }
 
-            // Create a File object for the received file
-            File fileReceived = new File(TEMP_DIR + fileName);
-            FileOutputStream fileOutputStream = new FileOutputStream(fileReceived);
-
-            // Write each received file part to the temporary file
-            for (int i = 1; i <= finalSequenceNumber; i++) {
-                // Write the file part data to the output stream
-                fileOutputStream.write(partsOfFile.get(i));
-                // Print confirmation that the file part has been written
-                System.out.println("wrote: " + i);
-
+    /**
+     * Closes the route of a parallel TCP transfer and any data connections
+     * still waiting on it.
+     *
+     * @param token The token returned by openStreamRoute.
+     */
+    public void closeStreamRoute(long token) {
+        BlockingQueue<SocketChannel> route = streamRoutes.remove(token);
+        if (route == null) {
+            return;
+        }
+        for (SocketChannel channel : route) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            // Print a message indicating that writing is finished
-            System.out.println("Finished writing");
-            // Update the GUI with the path of the received file
-            guiReceiver.updateReceivedList(fileReceived.getAbsolutePath());
-
-            // Close the FileOutputStream
-            fileOutputStream.close();
-        } catch (Exception e) {
-            closeResources();
-            guiReceiver.showErrorDialog("Error Writing File");
         }
     }
 
     /**
-     * Handles receiving and processing sequence lists from the sender.
-     * Checks which sequences have not been received and sends the list back to the
-     * sender.
+     * Sets the number of UDP ports opened for each sender. Each port is drained
+     * by its own reader thread, so receiving can use more than one core.
+     *
+     * @param channels The number of UDP ports, 1 to MAX_UDP_CHANNELS.
      */
-    private void sequenceListsReceived() {
-        System.out.println("List: Receive sequence list started");
-
-        // Start a new thread to handle receiving and processing sequence lists
-        new Thread(new Runnable() {
-
-            @Override
-            public void run() {
-
-                // Loop to continuously receive and process sequence lists
-                while (true) {
-                    // Initialize variables
-                    String sequencesNotReceived = "";
-                    String[] sequencesToCheck;
-
-                    // Print a message indicating waiting for list
-                    System.out.println("List: Waiting for list");
-                    try {
-                        // Read a sequence list from the input buffer
-                        String message = bufRead.readLine();
-                        // Print the received sequence list
-                        System.out.println("List: Received list: " + message + "\n");
-                        // Check if the received message indicates finishing sending
-                        if (message == null || message.equals("##FINISHEDSENDING")) {
-                            // Print a message indicating finishing receiving and exit the loop
-                            System.out.println("List: Done receiving, exiting list receive");
-                            // Set finishedReceiving flag to true
-                            finishedReceiving = true;
-                            // Send a confirmation message to the sender
-                            while (UDPStillReciving) {
-                                bufWrite.write("##SENDMORE");
-                                bufWrite.newLine();
-                                bufWrite.flush();
-                                Thread.sleep(50);
-                            }
-                            bufWrite.write("##DONE");
-                            bufWrite.newLine();
-                            bufWrite.flush();
-                            break;
-                        }
-                        // Remove leading period if present in the received message
-                        if (message.startsWith(".")) {
-                            message = message.substring(1);
-                        }
-                        // Split the message into an array of sequences to check
-                        sequencesToCheck = message.split("\\.");
-                    } catch (Exception ex) {
-                        // Print a message indicating sender disconnected
-                        System.out.println("List: Sender disconnected");
-                        closeResources();
-                        guiReceiver.showErrorDialog("Sender disconnected");
-                        break;
-                    }
+    public void setUDPChannels(int channels) {
+        udpChannels = Math.max(1, Math.min(MAX_UDP_CHANNELS, channels));
+    }
 
-                    // Iterate through sequences to check if they have been received
-                    for (int i = 0; i < sequencesToCheck.length; i++) {
-                        if (!sequencesReceived.contains(Integer.parseInt(sequencesToCheck[i]))) {
-                            // If sequence not received, add it to the list of sequences not received
-                            System.out.println("List: Did not receive: " + sequencesToCheck[i]);
-                            sequencesNotReceived = sequencesNotReceived + "." + sequencesToCheck[i];
-                        }
-                    }
+    /**
+     * @return One UDP port per available processor, up to MAX_UDP_CHANNELS.
+     */
+    private static int defaultUDPChannels() {
+        return Math.min(MAX_UDP_CHANNELS, Runtime.getRuntime().availableProcessors());
+    }
 
-                    // If no sequences were not received, set a flag to indicate that
-                    if (sequencesNotReceived.equals("")) {
-                        sequencesNotReceived = "##NOTHINGNOTRECEIVED";
-                    }
+    /**
+     * Sets the largest RBUDP payload size offered to senders.
+     *
+     * @param packetSize The payload size in bytes, 0 to size packets to the MTU
+     *                   of the network interface.
+     */
+    public void setMaxPacketSize(int packetSize) {
+        maxPacketSize = packetSize;
+    }
 
-                    try {
-                        // Print a message indicating sending back the list of not received sequences
-                        System.out.println("List: Sending list back: " + sequencesNotReceived);
-                        // Write the list of not received sequences to the output buffer back to sender
-                        bufWrite.write(sequencesNotReceived);
-                        bufWrite.newLine();
-                        bufWrite.flush();
-                    } catch (Exception e) {
-                        // Print a message indicating sender is offline
-                        System.out.println("List: Sender disconnected");
-                        closeResources();
-                        guiReceiver.showErrorDialog("Sender disconnected");
+    /**
+     * Chooses how connections are served. Takes effect when the receiver
+     * starts listening.
+     *
+     * @param engine The engine.
+     */
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
 
-                    }
-                }
+    /**
+     * @return The engine named by the ENGINE_PROPERTY system property, THREADS
+     *         unless it says "selector".
+     */
+    private static Engine defaultEngine() {
+        return "selector".equalsIgnoreCase(System.getProperty(ENGINE_PROPERTY)) ? Engine.SELECTOR : Engine.THREADS;
+    }
 
-            }
-        }).start();
+    /**
+     * Sets how many senders are served at the same time when sessions run on
+     * platform threads. Senders connecting beyond that wait until a session
+     * ends. With virtual threads every sender is served at once. Takes effect
+     * when the receiver starts listening.
+     *
+     * @param sessions The number of senders, at least 1.
+     */
+    public void setMaxSessions(int sessions) {
+        maxSessions = Math.max(1, sessions);
+    }
+
+    /**
+     * @return The TCP port the receiver listens on, or -1 if it is not
+     *         listening.
+     */
+    public int getPort() {
+        return serverSocket != null ? serverSocket.socket().getLocalPort() : -1;
+    }
+
+    /**
+     * @return The number of senders connected, including those waiting for a
+     *         free session.
+     */
+    public int getSessionCount() {
+        return sessions.size();
     }
 
     /**
-     * Closes resources related to the receiver.
+     * Closes the server socket and every session.
      */
     public void closeResources() {
         try {
-            if (bufWrite != null) {
-                bufWrite.close();
-            }
-            if (bufRead != null) {
-                bufRead.close();
-            }
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
-            }
-            if (datagramSocket != null && !datagramSocket.isClosed()) {
-                datagramSocket.close();
-            }
-            if (serverSocket != null && !serverSocket.isClosed()) {
+            if (serverSocket != null) {
                 serverSocket.close();
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
+        if (sessionExecutor != null) {
+            sessionExecutor.shutdownNow();
+        }
+        if (selectorEngine != null) {
+            selectorEngine.close();
+        }
+        for (ReceiverSession session : sessions) {
+            session.close();
+        }
+        for (Long token : streamRoutes.keySet()) {
+            closeStreamRoute(token);
+        }
     }
 }
@@ -0,0 +1,1458 @@
+package com.project2;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One sender's connection to the receiver: its control socket, its UDP ports
+ * and the state of the transfer in progress. Every session runs on its own
+ * thread of the receiver's session executor, so several senders can transfer
+ * files at the same time. The extra threads of a transfer run in a
+ * TransferScope, which closing the session cancels.
+ */
+public class ReceiverSession {
+    private final Receiver server; // The receiver that accepted this sender.
+    private final Socket socket; // The sender's control connection.
+    private final TransferListener listener; // Told about the progress and the files received.
+    private final int maxPacketSize; // Largest RBUDP payload offered, 0 to follow the MTU.
+    private volatile DatagramChannel[] datagramChannels; // Channels the RBUDP datagrams arrive on, one per port.
+    private final int udpChannels; // Number of UDP ports opened for the sender.
+    private volatile DatagramBufferPool bufferPool; // Reused datagram buffers, sized for the packet size.
+    private volatile BufferedWriter bufWrite;
+    private volatile BufferedReader bufRead;
+    private volatile TransferScope transfer; // Threads of the transfer in progress, null between transfers.
+    private final TransferMetrics metrics = TransferMetrics.forRole("receiver"); // Counters of every receive.
+
+    // Default directory for storing received files.
+    static final String TEMP_DIR = System.getProperty("java.io.tmpdir") + File.separator + "receivedFiles";
+
+    // Times corrupt TCP chunks are fetched again before the file is given up on.
+    private static final int MAX_REFETCHES = 3;
+
+    // How long the path probe waits for further probe datagrams.
+    private static final int PROBE_TIMEOUT_MS = 300;
+
+    // Pooled buffers kept for parity payloads waiting for their block's list, beyond one per UDP port.
+    private static final int PARITY_BUFFERS = 1024;
+
+    /**
+     * Constructs the session of a sender whose control connection has been
+     * accepted.
+     *
+     * @param server        The receiver that accepted the sender.
+     * @param socket        The sender's control connection.
+     * @param listener      The listener of the receiver's progress and events.
+     * @param udpChannels   The number of UDP ports to open for the sender.
+     * @param maxPacketSize The largest RBUDP payload to offer, 0 to follow the
+     *                      MTU.
+     */
+    public ReceiverSession(Receiver server, Socket socket, TransferListener listener, int udpChannels,
+            int maxPacketSize) {
+        this.server = server;
+        this.socket = socket;
+        this.listener = listener;
+        this.udpChannels = udpChannels;
+        this.maxPacketSize = maxPacketSize;
+    }
+
+    /**
+     * Serves the sender until it disconnects: agrees on the UDP ports and the
+     * payload size, then receives every file the sender sends. On the selector
+     * engine it returns whenever the sender is idle, and resume carries on
+     * once the sender sends its next command.
+     */
+    public void run() {
+        try {
+            bufWrite = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            bufRead = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeConnection();
+            return;
+        }
+        listener.info("Sender Connected");
+        setupUDPConnection();
+        serveCommands(false);
+    }
+
+    /**
+     * Carries on serving the sender on the selector engine once its
+     * connection has something to read, or has closed.
+     */
+    void resume() {
+        serveCommands(true);
+    }
+
+    /**
+     * Sets up UDP connection by assigning the UDP ports and agreeing on the
+     * RBUDP payload size with the sender. The ports are sent to the sender as a
+     * comma separated list.
+     */
+    private void setupUDPConnection() {
+        DatagramChannel[] channels = new DatagramChannel[udpChannels];
+        StringBuilder ports = new StringBuilder();
+        int port = 4000;
+        for (int i = 0; i < channels.length; i++) {
+            channels[i] = openUDPChannel(port);
+            port = channels[i].socket().getLocalPort();
+            ports.append(i == 0 ? "" : ",").append(port);
+            port++;
+        }
+        datagramChannels = channels;
+        try {
+            bufWrite.write(ports.toString());
+            bufWrite.newLine();
+            bufWrite.flush();
+            negotiatePacketSize();
+        } catch (IOException | NumberFormatException e) {
+            closeConnection(); // Close resources on error
+        }
+    }
+
+    /**
+     * Opens a datagram channel on the first free UDP port from the given port
+     * upwards.
+     *
+     * @param port The first port to try.
+     * @return The bound datagram channel.
+     */
+    private DatagramChannel openUDPChannel(int port) {
+        while (true) {
+            DatagramChannel channel = null;
+            try {
+                channel = DatagramChannel.open();
+                channel.bind(new InetSocketAddress(port));
+                return channel;
+            } catch (IOException e) {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                        // Nothing was bound, so there is nothing to release
+                    }
+                }
+                port++; // Increment UDP port if the current one is already in use.
+            }
+        }
+    }
+
+    /**
+     * Offers the largest payload size this side accepts, answers the sender's
+     * path probe if it runs one, and reads the payload size the sender chose.
+     *
+     * @throws IOException If the sender's answers cannot be read or are invalid.
+     */
+    private void negotiatePacketSize() throws IOException {
+        int offered = maxPacketSize > 0 ? PacketSizing.clamp(maxPacketSize)
+                : PacketSizing.payloadForInterface(socket.getLocalAddress());
+        bufWrite.write("##PACKETSIZE " + offered);
+        bufWrite.newLine();
+        bufWrite.flush();
+
+        String answer = bufRead.readLine();
+        if ("##PROBE".equals(answer)) {
+            bufWrite.write("##PROBED " + receiveProbes());
+            bufWrite.newLine();
+            bufWrite.flush();
+            answer = bufRead.readLine();
+        }
+        if (answer == null || !answer.startsWith("##PACKETSIZE ")) {
+            throw new IOException("Expected the chosen packet size, got: " + answer);
+        }
+        int chosen = Integer.parseInt(answer.substring("##PACKETSIZE ".length()));
+        if (chosen < PacketSizing.MIN_PACKET_SIZE || chosen > offered) {
+            throw new IOException("Sender chose an invalid packet size: " + chosen);
+        }
+        packetSize = chosen;
+        bufferPool = DatagramBufferPool.forPacketSize(
+                datagramChannels.length * SelectorEngine.DATAGRAM_BATCH + PARITY_BUFFERS, packetSize);
+        System.out.println("Packet size: " + packetSize);
+    }
+
+    /**
+     * Receives the sender's probe datagrams until none arrive for a while.
+     *
+     * @return The size of the largest datagram received, 0 if none arrived.
+     * @throws IOException If the datagram socket fails.
+     */
+    private int receiveProbes() throws IOException {
+        byte[] probe = new byte[65535];
+        DatagramPacket datagramPacket = new DatagramPacket(probe, probe.length);
+        int largest = 0;
+        DatagramSocket probeSocket = datagramChannels[0].socket();
+        probeSocket.setSoTimeout(PROBE_TIMEOUT_MS);
+        try {
+            while (true) {
+                datagramPacket.setLength(probe.length);
+                probeSocket.receive(datagramPacket);
+                largest = Math.max(largest, datagramPacket.getLength());
+            }
+        } catch (SocketTimeoutException e) {
+            // No more probes
+        } finally {
+            probeSocket.setSoTimeout(0);
+        }
+        return largest;
+    }
+
+    /**
+     * Waits for incoming data to process based on the predetermined sending
+     * method, until the sender disconnects. The sender can connect again to
+     * resume an interrupted transfer. On the selector engine an idle session
+     * gives its worker back and waits on the event loop for the next command.
+     *
+     * @param readable Whether the connection is known to be readable, so the
+     *                 next read will not block for long.
+     */
+    private void serveCommands(boolean readable) {
+        SelectorEngine loop = server.getSelectorEngine();
+        while (true) {
+            try {
+                if (loop != null && !readable && !bufRead.ready()) {
+                    loop.awaitReadable(socket.getChannel(), () -> server.resumeSession(this));
+                    return;
+                }
+                readable = false;
+                String incomingMethod = bufRead.readLine();
+                if (incomingMethod == null) {
+                    throw new EOFException("Sender closed the connection");
+                }
+                if ("##SENDINGTCPFILE".equals(incomingMethod)) {
+                    TCPReceiveFile();
+                } else if ("##SENDINGPARALLELTCPFILE".equals(incomingMethod)) {
+                    parallelTCPReceiveFile();
+                } else if ("##SENDINGBATCH".equals(incomingMethod)) {
+                    batchReceiveFiles();
+                } else if ("##SENDINGRBUDPFILE".equals(incomingMethod)) {
+                    // Placeholder for RBUDP receiving logic.
+                    System.out.println("Starting RBUDP Receive");
+                    RBUDPReceiveFile();
+                } else {
+                    bufWrite.write("##NOTHINGNOTRECEIVED");
+                    bufWrite.newLine();
+                    bufWrite.flush();
+                }
+            } catch (IOException e) {
+                listener.error("Sender disconnected");
+                closeConnection();
+                break; // Exit the loop if there's an error, the sender can connect again to resume.
+            }
+        }
+    }
+
+    /**
+     * Handles receiving a file over TCP, saving it to a temporary directory, and
+     * reporting it to the listener. Resumes from the file's journal if an earlier transfer
+     * of the same file was interrupted.
+     */
+    private void TCPReceiveFile() {
+        try {
+            // Read the file name, expected size and the sender's version of the file.
+            String fileName = bufRead.readLine();
+            long fileSize = Long.parseLong(bufRead.readLine());
+            long version = Long.parseLong(bufRead.readLine());
+            boolean compressed = readCodec();
+
+            File file = tempFileFor(fileName);
+            TransferJournal journal = new TransferJournal(file);
+            ByteRangeSet completed = startTCPJournal(journal, file, fileSize, version);
+            String actualDigest;
+            boolean verified;
+
+            // Size the file so missing ranges can be written at their offsets.
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+                    TransferProgress progress = new TransferProgress(listener, fileSize, completed.totalLength())) {
+                randomAccessFile.setLength(fileSize);
+                FileChannel fileChannel = randomAccessFile.getChannel();
+                ByteRangeSet missing = completed.complement(fileSize);
+
+                // Tell the sender to start streaming, and which ranges it still has to send.
+                bufWrite.write(completed.isEmpty() ? "##READY" : "##RESUME " + missing.encode());
+                bufWrite.newLine();
+                bufWrite.flush();
+
+                SocketChannel socketChannel = socket.getChannel();
+                FileDigest digest = new FileDigest(fileSize, FileDigest.TCP_CHUNK_SIZE);
+                ChunkCompressor compressor = compressed ? new ChunkCompressor() : null;
+                ParallelTCPTransfer.RangeWritten written = (offset, length, data) -> {
+                    metrics.addBytes(length);
+                    completed.add(offset, offset + length);
+                    digest.update(offset, data);
+                    progress.add(length); // Count how much of the file has arrived.
+                    if (journal.isSaveDue()) {
+                        saveTCPJournal(journal, completed, fileChannel);
+                    }
+                };
+                try {
+                    // Write the file data at its offsets as it arrives, or inflate it frame by
+                    // frame, hashing each buffer before it leaves memory.
+                    for (long[] range : missing.toList()) {
+                        if (compressor != null) {
+                            compressor.receiveRange(socketChannel, fileChannel, range[0], range[1], written);
+                        } else {
+                            ParallelTCPTransfer.receiveRaw(socketChannel, fileChannel, range[0], range[1], written);
+                        }
+                    }
+                } catch (IOException e) {
+                    // Keep what has been written so the transfer can be resumed.
+                    saveTCPJournal(journal, completed, fileChannel);
+                    throw e;
+                } finally {
+                    if (compressor != null) {
+                        compressor.end();
+                    }
+                }
+
+                // Chunks written before a resume are hashed from the file.
+                digest.hashRemaining(fileChannel);
+                verified = checkChunks(readChecksums(journal, completed, fileChannel), digest, fileChannel,
+                        fileName);
+                actualDigest = digest.digest();
+            }
+            if (!verified) {
+                rejectFile(file, journal, actualDigest);
+                return;
+            }
+            journal.delete();
+            bufWrite.write("##RECEIVED");
+            bufWrite.newLine();
+            bufWrite.flush();
+            System.out.println("File " + fileName + " received and stored temporarily.");
+            listener.fileReceived(file.getAbsolutePath()); // Report the received file.
+        } catch (IOException e) {
+            closeConnection();
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Handles receiving a file whose ranges arrive over several TCP connections
+     * at once, writing each range at its offset in the temporary file. Resumes
+     * from the file's journal like TCPReceiveFile.
+     */
+    private void parallelTCPReceiveFile() {
+        try {
+            // Read the file name, expected size, version and number of data connections.
+            String fileName = bufRead.readLine();
+            long fileSize = Long.parseLong(bufRead.readLine());
+            long version = Long.parseLong(bufRead.readLine());
+            int streams = Integer.parseInt(bufRead.readLine());
+            if (streams < 1 || streams > ParallelTCPTransfer.MAX_STREAMS) {
+                throw new IOException("Invalid number of streams: " + streams);
+            }
+            boolean compressed = readCodec();
+
+            File file = tempFileFor(fileName);
+            TransferJournal journal = new TransferJournal(file);
+            ByteRangeSet completed = startTCPJournal(journal, file, fileSize, version);
+            String actualDigest;
+            boolean verified;
+
+            // Size the file up front so every range can be written at its offset.
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+                    TransferProgress progress = new TransferProgress(listener, fileSize, completed.totalLength())) {
+                randomAccessFile.setLength(fileSize);
+                FileChannel fileChannel = randomAccessFile.getChannel();
+                ByteRangeSet missing = completed.complement(fileSize);
+
+                // Data connections arrive on the shared server socket, the token routes them here.
+                long token = server.openStreamRoute();
+                FileDigest digest = new FileDigest(fileSize, FileDigest.TCP_CHUNK_SIZE);
+                SelectorEngine loop = server.getSelectorEngine();
+                try (TransferScope scope = new TransferScope()) {
+                    transfer = scope;
+                    bufWrite.write("##STREAMTOKEN " + token);
+                    bufWrite.newLine();
+                    bufWrite.write(completed.isEmpty() ? "##READY" : "##RESUME " + missing.encode());
+                    bufWrite.newLine();
+                    bufWrite.flush();
+
+                    // Both sides split the missing ranges the same way, one connection per piece.
+                    int connections = ParallelTCPTransfer.split(missing.toList(), streams).size();
+                    ParallelTCPTransfer.RangeWritten onWritten = (offset, length, data) -> {
+                        metrics.addBytes(length);
+                        digest.update(offset, data);
+                        completed.add(offset, offset + length);
+                        progress.add(length); // Count how much of the file has arrived.
+                        if (journal.isSaveDue()) {
+                            saveTCPJournal(journal, completed, fileChannel);
+                        }
+                    };
+
+                    // Both engines route the data connections here by the token
+                    if (loop != null) {
+                        loop.receiveRanges(scope, () -> server.awaitStream(token), fileChannel, fileSize, connections,
+                                compressed, onWritten);
+                    } else {
+                        ParallelTCPTransfer.receiveRanges(scope, () -> server.awaitStream(token), fileChannel,
+                                fileSize, connections, compressed, onWritten);
+                    }
+                } catch (IOException e) {
+                    // Keep what has been written so the transfer can be resumed.
+                    saveTCPJournal(journal, completed, fileChannel);
+                    throw e;
+                } finally {
+                    transfer = null;
+                    server.closeStreamRoute(token);
+                }
+
+                // Chunks split between ranges, or written before a resume, are hashed from the file.
+                digest.hashRemaining(fileChannel);
+                verified = checkChunks(readChecksums(journal, completed, fileChannel), digest, fileChannel,
+                        fileName);
+                actualDigest = digest.digest();
+            }
+            if (!verified) {
+                rejectFile(file, journal, actualDigest);
+                return;
+            }
+            journal.delete();
+
+            bufWrite.write("##RECEIVED");
+            bufWrite.newLine();
+            bufWrite.flush();
+            System.out.println("File " + fileName + " received over " + streams + " streams.");
+            listener.fileReceived(file.getAbsolutePath()); // Report the received file.
+        } catch (IOException e) {
+            closeConnection();
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Handles receiving a batch of files sent by Sender.sendBatch: reads the
+     * manifest, then splits the batch stream back into its files as it
+     * arrives. Files holding a chunk that fails its checksum are discarded,
+     * the others are kept. A batch is not resumed, an interrupted batch keeps
+     * only the files it completed.
+     */
+    private void batchReceiveFiles() {
+        try {
+            boolean compressed = readCodec();
+            BatchManifest manifest = BatchManifest.read(bufRead);
+            long totalSize = manifest.getTotalSize();
+            System.out.println("Receiving batch of " + manifest.getEntries().size() + " files, " + totalSize
+                    + " bytes");
+
+            BatchWriter writer = new BatchWriter(manifest, new File(TEMP_DIR));
+            bufWrite.write("##READY");
+            bufWrite.newLine();
+            bufWrite.flush();
+
+            listener.transferStarted();
+            SocketChannel socketChannel = socket.getChannel();
+            FileDigest digest = new FileDigest(totalSize, BatchManifest.STREAM_CHUNK_SIZE);
+            ByteBuffer chunk = ByteBuffer.allocateDirect(BatchManifest.STREAM_CHUNK_SIZE);
+            ChunkCompressor compressor = compressed ? new ChunkCompressor() : null;
+            try (TransferProgress progress = new TransferProgress(listener, totalSize, 0)) {
+                // Read the stream a chunk at a time, the same chunks the sender hashed
+                for (int chunkIndex = 0; (long) chunkIndex * chunk.capacity() < totalSize; chunkIndex++) {
+                    int length = (int) Math.min(chunk.capacity(), totalSize - (long) chunkIndex * chunk.capacity());
+                    chunk.clear().limit(length);
+                    if (compressor != null) {
+                        for (int offset = 0; offset < length; offset += ChunkCompressor.FRAME_SIZE) {
+                            compressor.readFrame(socketChannel, chunk, offset,
+                                    Math.min(ChunkCompressor.FRAME_SIZE, length - offset));
+                        }
+                    } else {
+                        while (chunk.hasRemaining()) {
+                            if (socketChannel.read(chunk) < 0) {
+                                throw new EOFException("Sender closed the connection during the batch");
+                            }
+                        }
+                    }
+                    digest.update(chunkIndex, chunk, 0, length);
+                    chunk.limit(length).position(0);
+                    long writeStarted = System.nanoTime();
+                    writer.write(chunk);
+                    metrics.addDiskWrite(System.nanoTime() - writeStarted);
+                    metrics.addBytes(length);
+                    progress.add(length); // Count how much of the batch has arrived.
+                }
+                writer.finish();
+            } catch (IOException e) {
+                writer.abort();
+                throw e;
+            } finally {
+                if (compressor != null) {
+                    compressor.end();
+                }
+            }
+
+            // Discard the files a corrupt chunk falls in, keep the rest
+            String checksums = bufRead.readLine();
+            ByteRangeSet corrupt;
+            try {
+                if (checksums == null || !checksums.startsWith("##CHECKSUMS ")) {
+                    throw new IllegalArgumentException("Expected the checksums of the batch, got: " + checksums);
+                }
+                String encoded = checksums.substring(checksums.indexOf(' ') + 1);
+                corrupt = digest.mismatchedChunks(FileDigest.decodeChecksums(encoded));
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+                corrupt = new ByteRangeSet();
+                corrupt.add(0, totalSize);
+            }
+            Set<File> discarded = new HashSet<>(writer.filesIn(corrupt));
+            for (File file : discarded) {
+                if (!file.delete()) {
+                    System.out.println("Unable to delete " + file.getPath());
+                }
+            }
+            bufWrite.write(discarded.isEmpty() ? "##RECEIVED" : "##DIGESTMISMATCH " + digest.digest());
+            bufWrite.newLine();
+            bufWrite.flush();
+
+            for (File file : writer.getFiles()) {
+                if (!discarded.contains(file)) {
+                    listener.fileReceived(file.getAbsolutePath()); // Report the received file.
+                }
+            }
+            System.out.println("Batch received, " + discarded.size() + " of " + writer.getFiles().size()
+                    + " files failed verification.");
+            if (!discarded.isEmpty()) {
+                listener.error(discarded.size()
+                        + " files of the batch failed verification and were discarded");
+            }
+        } catch (IOException e) {
+            closeConnection();
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads the codec line of a file header. A codec this receiver cannot
+     * decode is refused with ##UNSUPPORTEDCODEC.
+     *
+     * @return true if the file data arrives deflated chunk by chunk.
+     * @throws IOException If the codec is not supported or cannot be read.
+     */
+    private boolean readCodec() throws IOException {
+        String codec = bufRead.readLine();
+        if (!ChunkCompressor.isSupported(codec)) {
+            bufWrite.write("##UNSUPPORTEDCODEC " + codec);
+            bufWrite.newLine();
+            bufWrite.flush();
+            throw new IOException("Unsupported codec: " + codec);
+        }
+        return ChunkCompressor.DEFLATE.equals(codec);
+    }
+
+    /**
+     * Reads the sender's ##CHECKSUMS line after the data of a TCP transfer. If
+     * the sender is gone, the complete file is kept in the journal for
+     * resuming.
+     *
+     * @param journal     The journal of the file being received.
+     * @param completed   The ranges that have been written.
+     * @param fileChannel The channel of the file being received.
+     * @return The sender's ##CHECKSUMS line.
+     * @throws IOException If the sender disconnected before sending it.
+     */
+    private String readChecksums(TransferJournal journal, ByteRangeSet completed, FileChannel fileChannel)
+            throws IOException {
+        try {
+            String line = bufRead.readLine();
+            if (line == null) {
+                throw new EOFException("Sender closed the connection before sending the checksums");
+            }
+            return line;
+        } catch (IOException e) {
+            saveTCPJournal(journal, completed, fileChannel);
+            throw e;
+        }
+    }
+
+    /**
+     * Checks every chunk of a TCP transfer against the CRCs the sender sent.
+     * Corrupt chunks are asked for again with ##REFETCH and arrive over the
+     * control connection, up to MAX_REFETCHES times, so a corrupt chunk costs
+     * one chunk rather than the whole file.
+     *
+     * @param checksums   The sender's ##CHECKSUMS line.
+     * @param digest      The digest of the written file, one chunk per 1 MB.
+     * @param fileChannel The channel of the file being received.
+     * @param fileName    The name of the file.
+     * @return true if every chunk matches.
+     * @throws IOException If the chunks cannot be fetched again.
+     */
+    private boolean checkChunks(String checksums, FileDigest digest, FileChannel fileChannel, String fileName)
+            throws IOException {
+        if (!checksums.startsWith("##CHECKSUMS ")) {
+            System.out.println("Expected the checksums of " + fileName + ", got: " + checksums);
+            return false;
+        }
+        int[] expected;
+        try {
+            expected = FileDigest.decodeChecksums(checksums.substring(checksums.indexOf(' ') + 1));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid checksums for " + fileName + ": " + checksums);
+            return false;
+        }
+
+        SocketChannel socketChannel = socket.getChannel();
+        for (int attempt = 0;; attempt++) {
+            ByteRangeSet corrupt = digest.mismatchedChunks(expected);
+            if (corrupt.isEmpty()) {
+                System.out.println("File " + fileName + " verified, digest " + digest.digest());
+                return true;
+            }
+            if (attempt == MAX_REFETCHES) {
+                System.out.println("File " + fileName + " still has " + corrupt.totalLength()
+                        + " corrupt bytes after " + MAX_REFETCHES + " attempts");
+                return false;
+            }
+
+            System.out.println("File " + fileName + ": " + corrupt.totalLength()
+                    + " bytes failed their checksum, fetching them again");
+            bufWrite.write("##REFETCH " + corrupt.encode());
+            bufWrite.newLine();
+            bufWrite.flush();
+            for (long[] range : corrupt.toList()) {
+                long position = range[0];
+                while (position < range[1]) {
+                    long bytesRead = fileChannel.transferFrom(socketChannel, position, range[1] - position);
+                    if (bytesRead <= 0) {
+                        throw new EOFException("Sender closed the connection during a refetch of " + fileName);
+                    }
+                    position += bytesRead;
+                }
+                digest.rehashRange(fileChannel, range[0], range[1]);
+            }
+        }
+    }
+
+    /**
+     * Compares the digest the sender sent with the digest of what was written.
+     *
+     * @param expected The sender's ##DIGEST line.
+     * @param actual   The digest of the written file.
+     * @param fileName The name of the file.
+     * @return true if the digests match.
+     */
+    private boolean checkDigest(String expected, String actual, String fileName) {
+        if (expected != null && expected.equals("##DIGEST " + actual)) {
+            System.out.println("File " + fileName + " verified, digest " + actual);
+            return true;
+        }
+        System.out.println("File " + fileName + " failed verification, sender sent " + expected
+                + ", written file has " + actual);
+        return false;
+    }
+
+    /**
+     * Throws away a file whose digest did not match, so neither the listener nor a
+     * later resume trusts it, and tells the sender.
+     *
+     * @param file    The received file.
+     * @param journal The journal of the file.
+     * @param actual  The digest of the written file.
+     * @throws IOException If the sender cannot be told.
+     */
+    private void rejectFile(File file, TransferJournal journal, String actual) throws IOException {
+        journal.delete();
+        if (!file.delete()) {
+            System.out.println("Unable to delete " + file.getPath());
+        }
+        bufWrite.write("##DIGESTMISMATCH " + actual);
+        bufWrite.newLine();
+        bufWrite.flush();
+        listener.error("File " + file.getName() + " failed verification and was discarded");
+    }
+
+    /**
+     * Loads the journal of an interrupted TCP transfer of the same file, or
+     * starts a new one.
+     *
+     * @param journal  The journal of the file being received.
+     * @param file     The file being received.
+     * @param fileSize The size of the file.
+     * @param version  The sender's version of the file.
+     * @return The ranges of the file that have already been written.
+     */
+    private ByteRangeSet startTCPJournal(TransferJournal journal, File file, long fileSize, long version) {
+        if (journal.resume("tcp", fileSize, version, file)) {
+            try {
+                ByteRangeSet completed = ByteRangeSet.decode(journal.get("completed"));
+                System.out.println("Resuming " + file.getName() + ": " + completed.totalLength() + " of "
+                        + fileSize + " bytes already received.");
+                return completed;
+            } catch (IllegalArgumentException e) {
+                System.out.println("Ignoring damaged journal for " + file.getName());
+            }
+        }
+        journal.begin("tcp", fileSize, version);
+        return new ByteRangeSet();
+    }
+
+    /**
+     * Forces the written ranges to disk and records them in the journal.
+     *
+     * @param journal     The journal of the file being received.
+     * @param completed   The ranges that have been written.
+     * @param fileChannel The channel of the file being received.
+     */
+    private void saveTCPJournal(TransferJournal journal, ByteRangeSet completed, FileChannel fileChannel) {
+        try {
+            fileChannel.force(false);
+            journal.put("completed", completed.encode());
+            journal.save();
+        } catch (IOException e) {
+            System.out.println("Unable to save transfer journal: " + e.getMessage());
+        }
+    }
+
+    // global variables for RBUDP receiving
+    private volatile int packetSize = PacketSizing.DEFAULT_PACKET_SIZE; // Negotiated with the sender.
+    private volatile long size;
+    private volatile int numberOfPackets;
+    private volatile TransferProgress progress; // Progress of the file, counted by all readers.
+    private final AtomicInteger corruptPackets = new AtomicInteger(); // Datagrams dropped for a bad checksum.
+    private volatile SequenceTracker sequencesReceived;
+    private volatile File fileReceived; // The file the packets are written into.
+    private volatile FileChannel fileChannel; // Channel used to write packets at their offsets.
+    private volatile TransferJournal journal; // Journal of the file being received.
+    private volatile Boolean finishedReceiving;
+    private volatile Boolean UDPStillReciving;
+    private volatile int fecDataPackets; // Data packets per FEC group of the current file.
+    private volatile int fecParityPackets; // Parity packets per FEC group, 0 when the sender sends none.
+    private volatile boolean packetsDeflated; // Whether payloads of the current file may arrive deflated.
+    private final Map<Long, ByteBuffer> pendingParity = new ConcurrentHashMap<>(); // Parity payloads not yet used.
+    private ByteBuffer recoveryBuffer; // Payload read back from the file while rebuilding a packet.
+    private volatile FileDigest digest; // Digest of the file, one chunk per packet.
+    private volatile String expectedDigest; // The sender's ##DIGEST line for the file.
+    private volatile boolean fileVerified; // Whether the written file matched the sender's digest.
+    private int packetsRecovered; // Packets of the current file rebuilt from parity.
+    private int packetsRequested; // Packets of the current file the sender was asked to resend.
+    private int highestBlockChecked; // Highest block whose list has been answered, later lists are repeats.
+
+    /**
+     * Receives a file using Reliable Broadcast UDP (RBUDP) protocol.
+     */
+    private void RBUDPReceiveFile() {
+        try {
+
+            // Read the file name from the input buffer
+            String fileName = bufRead.readLine();
+
+            // Read the size of the file from the input buffer
+            size = Long.parseLong(bufRead.readLine());
+
+            // Read the sender's version of the file
+            long version = Long.parseLong(bufRead.readLine());
+
+            // Read the FEC group shape, data and parity packets per group
+            String[] fec = bufRead.readLine().split(" ");
+            fecDataPackets = Integer.parseInt(fec[0]);
+            fecParityPackets = Integer.parseInt(fec[1]);
+
+            // Read the codec of the payloads
+            packetsDeflated = readCodec();
+            releaseParity();
+            recoveryBuffer = fecParityPackets > 0 ? ByteBuffer.allocateDirect(packetSize) : null;
+            packetsRecovered = 0;
+            packetsRequested = 0;
+            highestBlockChecked = -1;
+
+            // Calculates the number of packets needed to receive the file
+            numberOfPackets = (int) ((size + packetSize - 1) / packetSize);
+
+            // Print a message indicating the file being received
+            System.out.println("RBUDP: Receiving file: " + fileName + "\n");
+
+            // Initialize lists and variables for managing received data
+            sequencesReceived = new SequenceTracker(numberOfPackets);
+            digest = new FileDigest(size, packetSize, false);
+            expectedDigest = null;
+            fileVerified = false;
+            corruptPackets.set(0);
+            finishedReceiving = false;
+            UDPStillReciving = true;
+
+            // Open the temporary file the packets are written into, resuming an
+            // interrupted transfer of the same file
+            boolean resumed = openFileTemp(fileName, version);
+            if (resumed) {
+                hashKeptPackets();
+            }
+            progress = new TransferProgress(listener, size, (long) sequencesReceived.receivedCount() * packetSize);
+
+            try {
+                // Tell the sender to start blasting, and which packets it still has to send
+                bufWrite.write(resumed ? sequencesReceived.missing().encode("##RESUME") : "##READY");
+                bufWrite.newLine();
+                bufWrite.flush();
+
+                // The list thread and the packet readers belong to the file's scope
+                SelectorEngine loop = server.getSelectorEngine();
+                try (TransferScope scope = new TransferScope()) {
+                    transfer = scope;
+                    if (loop != null) {
+                        receiveOnLoop(loop); // The loop writes the packets while this thread answers the lists
+                    } else {
+                        sequenceListsReceived(scope); // Receive lists from the sender
+                        receivePackets(scope); // Receive the file packets straight to disk
+                        scope.join();
+                    }
+                } finally {
+                    transfer = null;
+                }
+                System.out.println("RBUDP: " + packetsRecovered + " packets recovered by FEC, "
+                        + packetsRequested + " retransmitted, " + corruptPackets.get() + " corrupt");
+                verifyRBUDPFile(fileName);
+            } finally {
+                progress.close();
+                releaseParity();
+                closeFileTemp(); // The file is complete once the last packet is written
+            }
+
+        } catch (Exception ex) {
+            // Display an error message if the sender disconnects unexpectedly
+            closeConnection();
+            listener.error("Sender disconnected");
+        }
+    }
+
+    /**
+     * Receives packets on every UDP port and writes each payload straight to
+     * its offset in the temporary file. Each port is drained by its own reader
+     * thread, and all of them mark packets in the same sequence tracker.
+     * Returns once every reader has stopped.
+     *
+     * @param scope The scope of the file, the extra readers are forked into it.
+     * @throws InterruptedException If interrupted while waiting for the readers.
+     */
+    private void receivePackets(TransferScope scope) throws InterruptedException {
+
+        // Make progress bar visible and set initial progress
+        listener.transferStarted();
+
+        DatagramChannel[] channels = datagramChannels;
+        Thread[] readers = new Thread[channels.length - 1];
+        for (int i = 0; i < readers.length; i++) {
+            final DatagramChannel channel = channels[i + 1];
+            readers[i] = scope.fork(() -> receivePackets(channel));
+        }
+        receivePackets(channels[0]);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        // Update status flag and print message
+        UDPStillReciving = false;
+        System.out.println("finished receiving file");
+    }
+
+    /**
+     * Receives a file on the selector engine: the event loop drains every UDP
+     * port and its I/O workers write the packets while this thread answers the
+     * sender's lists, so the transfer needs no reader or list threads of its
+     * own.
+     *
+     * @param loop The event loop of the selector engine.
+     */
+    private void receiveOnLoop(SelectorEngine loop) {
+        listener.transferStarted();
+
+        List<Closeable> readers = new ArrayList<>();
+        List<ByteBuffer> messages = new ArrayList<>();
+        List<ChunkCompressor> compressors = new ArrayList<>();
+        for (DatagramChannel channel : datagramChannels) {
+            List<ByteBuffer> batch = new ArrayList<>();
+            for (int i = 0; i < SelectorEngine.DATAGRAM_BATCH; i++) {
+                batch.add(bufferPool.acquire());
+            }
+            ChunkCompressor compressor = packetsDeflated ? new ChunkCompressor() : null;
+            ByteBuffer inflated = packetsDeflated ? ByteBuffer.allocateDirect(packetSize) : null;
+            messages.addAll(batch);
+            if (compressor != null) {
+                compressors.add(compressor);
+            }
+            readers.add(loop.receiveDatagrams(channel, batch, datagram -> {
+                try {
+                    handlePacket(datagram, compressor, inflated);
+                } catch (IOException e) {
+                    System.out.println("Unable to write packet: " + e.getMessage());
+                    closeConnection();
+                    listener.error("Error Writing File");
+                }
+            }));
+        }
+
+        // No reader blocks on a port, so the sender need not send datagrams to wake one
+        UDPStillReciving = false;
+        try {
+            receiveSequenceLists();
+        } finally {
+            for (Closeable reader : readers) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            messages.forEach(bufferPool::release);
+            compressors.forEach(ChunkCompressor::end);
+        }
+        System.out.println("finished receiving file");
+    }
+
+    /**
+     * Receives packets from one UDP port until the file is finished, writing
+     * each payload at its offset in the temporary file. Counts the progress
+     * of the file as packets are received.
+     *
+     * @param channel The channel of the port to drain.
+     */
+    private void receivePackets(DatagramChannel channel) {
+
+        // One pooled direct buffer takes every datagram, payloads are written to
+        // disk straight from it so receiving allocates nothing per packet
+        ByteBuffer message = bufferPool.acquire();
+
+        // Deflated payloads are inflated into a buffer of this reader's own
+        ChunkCompressor compressor = packetsDeflated ? new ChunkCompressor() : null;
+        ByteBuffer inflated = packetsDeflated ? ByteBuffer.allocateDirect(packetSize) : null;
+
+        // Continuously receive packets until finished
+        while (true) {
+
+            try {
+
+                // Check if finished receiving all packets
+                if (finishedReceiving) {
+                    System.out.println("Done receiving");
+                    break;
+                }
+
+                try {
+                    // Receive the packet
+                    message.clear();
+                    channel.receive(message);
+                } catch (Exception e) {
+                    // Break loop if an exception occurs
+                    closeConnection();
+                    System.out.println("Sender Disconnected");
+                    break;
+                }
+
+                handlePacket(message, compressor, inflated);
+
+            } catch (Exception e) {
+                System.out.println("Exception happened");
+                closeConnection();
+                listener.error("Sender disconnected");
+                break;
+            }
+        }
+        bufferPool.release(message);
+        if (compressor != null) {
+            compressor.end();
+        }
+    }
+
+    /**
+     * Checks one datagram and writes its payload at its offset in the
+     * temporary file, or keeps it if it is parity. Corrupt datagrams and
+     * datagrams of other files are dropped.
+     *
+     * @param message    The datagram, from index 0 to the buffer's position.
+     * @param compressor The reader's compressor, null if payloads are not
+     *                   deflated.
+     * @param inflated   The reader's buffer for inflated payloads.
+     * @throws IOException If the payload cannot be written.
+     */
+    private void handlePacket(ByteBuffer message, ChunkCompressor compressor, ByteBuffer inflated)
+            throws IOException {
+        // Ignore datagrams too short to carry a header
+        if (message.position() < PacketSizing.HEADER_SIZE) {
+            return;
+        }
+
+        // Extract sequence number and final packet size from the header
+        int sequenceNumber = RBUDPPacket.sequenceNumber(message);
+        int finalPacketSize = RBUDPPacket.finalPacketSize(message);
+
+        // Parity is kept until its block's list shows what was lost
+        if (RBUDPPacket.isParity(message)) {
+            if (RBUDPPacket.isIntact(message, packetSize)) {
+                keepParity(message, sequenceNumber, finalPacketSize);
+            } else {
+                corruptPackets.incrementAndGet();
+            }
+            return;
+        }
+
+        // Ignore datagrams that do not belong to this file
+        if (sequenceNumber < 1 || sequenceNumber > numberOfPackets) {
+            return;
+        }
+
+        // Work out the payload length based on final packet flag
+        int payloadLength = finalPacketSize != 0 ? finalPacketSize : packetSize;
+
+        // A corrupt packet counts as not received, the block's list asks for it again
+        ByteBuffer payload = message;
+        int payloadOffset = PacketSizing.HEADER_SIZE;
+        if (payloadLength > packetSize) {
+            corruptPackets.incrementAndGet();
+            return;
+        } else if (RBUDPPacket.isDeflated(message)) {
+            if (compressor == null
+                    || !compressor.decompress(message, PacketSizing.HEADER_SIZE,
+                            message.position() - PacketSizing.HEADER_SIZE, inflated, 0, payloadLength)
+                    || !RBUDPPacket.isIntact(message, inflated, payloadLength)) {
+                corruptPackets.incrementAndGet();
+                return;
+            }
+            payload = inflated;
+            payloadOffset = 0;
+        } else if (!RBUDPPacket.isIntact(message, payloadLength)) {
+            corruptPackets.incrementAndGet();
+            return;
+        }
+
+        // Write the payload at its final position in the file
+        payload.limit(payloadOffset + payloadLength).position(payloadOffset);
+        long position = (long) (sequenceNumber - 1) * packetSize;
+        long writeStarted = System.nanoTime();
+        while (payload.hasRemaining()) {
+            position += fileChannel.write(payload, position);
+        }
+        metrics.addDiskWrite(System.nanoTime() - writeStarted);
+        metrics.addPacket(payloadLength);
+
+        // The verified checksum goes into the digest, then mark the sequence number as received
+        digest.set(sequenceNumber - 1, RBUDPPacket.checksum(message));
+        if (sequencesReceived.markReceived(sequenceNumber)) {
+            progress.add(payloadLength); // Count how much of the file has arrived.
+        }
+    }
+
+    /**
+     * Checks a received file against the sender's digest and gives the sender
+     * the final answer: ##DONE, or ##DIGESTMISMATCH when the file will be
+     * discarded or, with "incomplete", when packets are still missing and the
+     * file is kept for resuming.
+     *
+     * @param fileName The name of the file.
+     * @throws IOException If the file cannot be read or the sender told.
+     */
+    private void verifyRBUDPFile(String fileName) throws IOException {
+        String actual;
+        if (!sequencesReceived.isComplete()) {
+            System.out.println("File " + fileName + " is incomplete, " + sequencesReceived.receivedCount() + " of "
+                    + numberOfPackets + " packets received");
+            actual = "incomplete";
+        } else {
+            actual = digest.digest();
+            fileVerified = checkDigest(expectedDigest, actual, fileName);
+        }
+        bufWrite.write(fileVerified ? "##DONE" : "##DIGESTMISMATCH " + actual);
+        bufWrite.newLine();
+        bufWrite.flush();
+    }
+
+    /**
+     * Hashes the packets kept from before a resume by reading them back from
+     * the file, before any new packet arrives, so the digest is built in file
+     * order as the rest come in.
+     *
+     * @throws IOException If the file cannot be read.
+     */
+    private void hashKeptPackets() throws IOException {
+        for (int seq = 1; seq <= numberOfPackets; seq++) {
+            if (sequencesReceived.isReceived(seq)) {
+                long start = (long) (seq - 1) * packetSize;
+                digest.hashRange(fileChannel, start, Math.min(size, start + packetSize));
+            }
+        }
+    }
+
+    /**
+     * Keeps the payload of a parity packet until the list of its block
+     * arrives.
+     *
+     * @param datagram    The received parity packet.
+     * @param groupFirst  The sequence number of the first packet of its group.
+     * @param parityIndex The index of the parity packet within the group.
+     */
+    private void keepParity(ByteBuffer datagram, int groupFirst, int parityIndex) {
+        if (fecParityPackets == 0 || groupFirst < 1 || groupFirst > numberOfPackets
+                || datagram.position() < PacketSizing.HEADER_SIZE + packetSize) {
+            return;
+        }
+        ByteBuffer payload = bufferPool.acquire();
+        payload.put(0, datagram, PacketSizing.HEADER_SIZE, packetSize);
+        if (pendingParity.putIfAbsent(parityKey(groupFirst, parityIndex), payload) != null) {
+            bufferPool.release(payload); // A duplicate of parity already kept
+        }
+    }
+
+    /**
+     * Hands the parity payloads still waiting, whose groups were never
+     * recovered, back to the buffer pool.
+     */
+    private void releaseParity() {
+        for (Long key : pendingParity.keySet()) {
+            ByteBuffer parity = pendingParity.remove(key);
+            if (parity != null) {
+                bufferPool.release(parity);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the lost packets of a block from its parity packets. Each
+     * parity packet can rebuild one lost packet of the interleaved set it
+     * covers: the XOR of the parity and the set's other payloads, read back
+     * from the file. The block's parity is discarded afterwards.
+     *
+     * @param block The list of the block the sender sent.
+     * @throws IOException If the file cannot be read or written.
+     */
+    private void recoverLostPackets(BlockBitmap block) throws IOException {
+        if (fecParityPackets == 0) {
+            return;
+        }
+        int last = Math.min(numberOfPackets, block.getFirstSequence() + block.getCount() - 1);
+        for (int groupFirst = block.getFirstSequence(); groupFirst <= last; groupFirst += fecDataPackets) {
+            int groupLast = Math.min(last, groupFirst + fecDataPackets - 1);
+            for (int j = 0; j < fecParityPackets; j++) {
+                ByteBuffer parity = pendingParity.remove(parityKey(groupFirst, j));
+                if (parity == null) {
+                    continue;
+                }
+                try {
+                    // Only a set with exactly one packet lost can be rebuilt
+                    int lost = -1;
+                    int lostCount = 0;
+                    for (int seq = groupFirst + j; seq <= groupLast; seq += fecParityPackets) {
+                        if (!sequencesReceived.isReceived(seq)) {
+                            lost = seq;
+                            lostCount++;
+                        }
+                    }
+                    if (lostCount != 1) {
+                        continue;
+                    }
+
+                    for (int seq = groupFirst + j; seq <= groupLast; seq += fecParityPackets) {
+                        if (seq != lost) {
+                            int length = readPayload(seq, recoveryBuffer);
+                            XORParity.xor(parity, recoveryBuffer, 0, length);
+                        }
+                    }
+                    long position = (long) (lost - 1) * packetSize;
+                    int length = (int) Math.min(packetSize, size - position);
+                    parity.limit(length);
+                    while (parity.hasRemaining()) {
+                        position += fileChannel.write(parity, position);
+                    }
+                    digest.update(lost - 1, parity, 0, length);
+                    if (sequencesReceived.markReceived(lost)) {
+                        progress.add(length);
+                    }
+                    packetsRecovered++;
+                } finally {
+                    bufferPool.release(parity);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a received packet's payload back from the temporary file.
+     *
+     * @param sequenceNumber The sequence number of the packet.
+     * @param buffer         The buffer the payload is read into, from index 0.
+     * @return The payload length.
+     * @throws IOException If the file cannot be read.
+     */
+    private int readPayload(int sequenceNumber, ByteBuffer buffer) throws IOException {
+        long position = (long) (sequenceNumber - 1) * packetSize;
+        buffer.clear().limit((int) Math.min(packetSize, size - position));
+        while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Packet " + sequenceNumber + " is past the end of the file");
+            }
+        }
+        return buffer.limit();
+    }
+
+    /**
+     * @return The key of a parity packet in pendingParity.
+     */
+    private static long parityKey(int groupFirst, int parityIndex) {
+        return ((long) groupFirst << 8) | parityIndex;
+    }
+
+    /**
+     * Opens the temporary file that received packets are written into. If the
+     * journal shows an interrupted transfer of the same file, the packets it
+     * records are marked as received and the partial file is kept.
+     *
+     * @param fileName The name of the file to be written.
+     * @param version  The sender's version of the file.
+     * @return true if an interrupted transfer is being resumed.
+     * @throws IOException If the file cannot be opened.
+     */
+    private boolean openFileTemp(String fileName, long version) throws IOException {
+        // Create a File object for the received file
+        fileReceived = tempFileFor(fileName);
+        journal = new TransferJournal(fileReceived);
+
+        boolean resumed = false;
+        if (journal.resume("rbudp", size, version, fileReceived)
+                && Integer.toString(packetSize).equals(journal.get("packetSize"))) {
+            try {
+                sequencesReceived.markReceived(BlockBitmap.decode(journal.get("received")));
+                resumed = true;
+                System.out.println("Resuming " + fileName + ": " + sequencesReceived.receivedCount() + " of "
+                        + numberOfPackets + " packets already received.");
+            } catch (IllegalArgumentException | NullPointerException e) {
+                System.out.println("Ignoring damaged journal for " + fileName);
+            }
+        }
+        if (!resumed) {
+            journal.begin("rbudp", size, version);
+            journal.put("packetSize", Integer.toString(packetSize));
+        }
+
+        // Readable as well, FEC reads received payloads back to rebuild lost ones
+        fileChannel = resumed
+                ? FileChannel.open(fileReceived.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(fileReceived.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        return resumed;
+    }
+
+    /**
+     * Forces the received packets to disk and records them in the journal.
+     */
+    private void saveRBUDPJournal() {
+        try {
+            fileChannel.force(false);
+            journal.put("received", sequencesReceived.received().encode("##RECEIVED"));
+            journal.save();
+        } catch (IOException e) {
+            System.out.println("Unable to save transfer journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Closes the temporary file once packets stop arriving. A complete file is
+     * added to the received list, an incomplete one keeps its journal so the
+     * transfer can be resumed.
+     */
+    private void closeFileTemp() {
+        try {
+            if (!sequencesReceived.isComplete()) {
+                saveRBUDPJournal();
+                fileChannel.close();
+                System.out.println("Transfer interrupted, kept " + sequencesReceived.receivedCount() + " of "
+                        + numberOfPackets + " packets for resuming");
+                return;
+            }
+            fileChannel.close();
+            journal.delete();
+            if (!fileVerified) {
+                if (!fileReceived.delete()) {
+                    System.out.println("Unable to delete " + fileReceived.getPath());
+                }
+                listener.error("File " + fileReceived.getName()
+                        + " failed verification and was discarded");
+                return;
+            }
+            // Print a message indicating that writing is finished
+            System.out.println("Finished writing");
+            // Report the path of the received file
+            listener.fileReceived(fileReceived.getAbsolutePath());
+        } catch (Exception e) {
+            closeConnection();
+            listener.error("Error Writing File");
+        }
+    }
+
+    /**
+     * Returns the location of a received file in the temporary directory,
+     * creating the directory if it doesn't exist.
+     *
+     * @param fileName The name of the received file.
+     * @return The file in the temporary directory.
+     */
+    private File tempFileFor(String fileName) {
+        File tempDir = new File(TEMP_DIR);
+        if (!tempDir.exists()) {
+            tempDir.mkdirs();
+        }
+        return new File(tempDir, new File(fileName).getName());
+    }
+
+    /**
+     * Handles receiving and processing sequence lists from the sender.
+     * Checks which sequences of each block have not been received and sends the
+     * bitmap of missing sequences back to the sender.
+     *
+     * @param scope The scope of the file, the list thread is forked into it.
+     *              The thread ends after ##FINISHEDSENDING.
+     */
+    private void sequenceListsReceived(TransferScope scope) {
+        System.out.println("List: Receive sequence list started");
+
+        // Start a new thread to handle receiving and processing sequence lists
+        scope.fork(this::receiveSequenceLists);
+    }
+
+    /**
+     * Receives the sender's sequence lists and answers each with the packets
+     * of its block still missing, until ##FINISHEDSENDING.
+     */
+    private void receiveSequenceLists() {
+        // Loop to continuously receive and process sequence lists
+        while (true) {
+            // Initialize variables
+            String sequencesNotReceived;
+            BlockBitmap sequencesToCheck;
+
+            try {
+                // Read a sequence list from the input buffer
+                String message = bufRead.readLine();
+                // Check if the received message indicates finishing sending
+                // Keep the digest of the file, it is checked once every packet is written
+                if (message != null && message.startsWith("##DIGEST ")) {
+                    expectedDigest = message;
+                    continue;
+                }
+                if (message == null || message.equals("##FINISHEDSENDING")) {
+                    // Print a message indicating finishing receiving and exit the loop
+                    System.out.println("List: Done receiving, exiting list receive");
+                    // Set finishedReceiving flag to true
+                    finishedReceiving = true;
+                    // Send a confirmation message to the sender
+                    while (UDPStillReciving) {
+                        bufWrite.write("##SENDMORE");
+                        bufWrite.newLine();
+                        bufWrite.flush();
+                        Thread.sleep(50);
+                    }
+                    // The final answer follows once the file has been verified
+                    break;
+                }
+                // Decode the bitmap of sequences the sender sent for the block
+                sequencesToCheck = BlockBitmap.decode(message);
+                // Rebuild what the block's parity can before checking it
+                recoverLostPackets(sequencesToCheck);
+            } catch (Exception ex) {
+                // Print a message indicating sender disconnected
+                System.out.println("List: Sender disconnected");
+                closeConnection();
+                listener.error("Sender disconnected");
+                break;
+            }
+
+            // Check which of the sequences sent have not been received
+            BlockBitmap missing = sequencesReceived.missingFrom(sequencesToCheck);
+
+            // The first list of a block tells how many of its packets were lost
+            if (missing.getBlockId() > highestBlockChecked) {
+                highestBlockChecked = missing.getBlockId();
+                metrics.addBlock(missing.cardinality(), sequencesToCheck.cardinality());
+            }
+
+            // If no sequences were not received, set a flag to indicate that
+            if (missing.isEmpty()) {
+                sequencesNotReceived = "##NOTHINGNOTRECEIVED " + missing.getBlockId();
+                if (journal.isSaveDue()) {
+                    saveRBUDPJournal();
+                }
+            } else {
+                sequencesNotReceived = missing.encode(BlockBitmap.MISSING_HEADER);
+                packetsRequested += missing.cardinality();
+                metrics.addRetransmissions(missing.cardinality());
+            }
+
+            try {
+                // Write the list of not received sequences to the output buffer back to sender
+                bufWrite.write(sequencesNotReceived);
+                bufWrite.newLine();
+                bufWrite.flush();
+            } catch (Exception e) {
+                // Print a message indicating sender is offline
+                System.out.println("List: Sender disconnected");
+                closeConnection();
+                listener.error("Sender disconnected");
+
+            }
+        }
+    }
+
+    /**
+     * Closes the resources of the sender's connection, leaving the server
+     * socket open for the next sender.
+     */
+    private void closeConnection() {
+        server.sessionEnded(this);
+        try {
+            if (bufWrite != null) {
+                bufWrite.close();
+            }
+            if (bufRead != null) {
+                bufRead.close();
+            }
+            if (socket != null && !socket.isClosed()) {
+                socket.close();
+            }
+            DatagramChannel[] channels = datagramChannels;
+            if (channels != null) {
+                for (DatagramChannel channel : channels) {
+                    channel.close();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Ends the session from another thread. The transfer in progress is
+     * cancelled and the socket closed first, so threads blocked reading from
+     * the sender are released.
+     */
+    public void close() {
+        TransferScope scope = transfer;
+        if (scope != null) {
+            scope.cancel();
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        closeConnection();
+    }
+}
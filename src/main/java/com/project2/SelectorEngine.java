@@ -0,0 +1,773 @@
+package com.project2;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Event loop of the receiver's selector engine. One thread multiplexes the
+ * server socket, connections still saying what they are, idle control
+ * connections, the data connections of parallel TCP transfers and the UDP
+ * ports of RBUDP transfers, so the number of threads stays fixed however many
+ * senders are connected: the loop, plus the workers that run a session while
+ * it handles a command.
+ *
+ * Channels are non-blocking while the loop owns them. A channel handed back
+ * to a worker is deregistered and made blocking again first. Everything that
+ * touches the selector runs on the loop thread; other threads queue work with
+ * execute.
+ *
+ * The loop only moves bytes off the sockets. Inflating frames, checking
+ * datagrams and writing to files runs on a small pool of I/O workers, so a
+ * slow disk or a large compressed stream does not hold up other senders.
+ * Each data connection or UDP port has at most one piece of work on the pool
+ * at a time, and is not read while it waits, so its bytes stay in order and
+ * its socket buffer absorbs what arrives meanwhile.
+ */
+public class SelectorEngine {
+
+    // Threads that run sessions while they handle a command.
+    public static final int DEFAULT_WORKERS = Math.max(2, 2 * Runtime.getRuntime().availableProcessors());
+
+    // Bytes of a data connection read and written per event, so every connection gets its turn.
+    private static final int STREAM_BUFFER_SIZE = ChunkCompressor.FRAME_SIZE;
+
+    // Datagrams drained from a UDP port per event and handed to a worker together.
+    public static final int DATAGRAM_BATCH = 16;
+
+    // Threads that inflate, check and write what the loop has read.
+    private static final int IO_WORKERS = Runtime.getRuntime().availableProcessors();
+
+    private final Selector selector; // Selects the channels that are ready.
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>(); // Work queued for the loop thread.
+    private final List<Runnable> released = new ArrayList<>(); // Run once their channels are deregistered.
+    private final Thread loop; // The event loop thread.
+    private final ExecutorService workers; // Inflate, check and write what the loop has read.
+    private volatile boolean running = true; // Cleared by close.
+
+    /**
+     * What the loop does when a channel is ready. Runs on the loop thread and
+     * must not block.
+     */
+    private interface Handler {
+        void ready(SelectionKey key) throws IOException;
+
+        void failed(IOException e);
+    }
+
+    /**
+     * Handles a datagram received by the loop.
+     */
+    public interface DatagramHandler {
+        /**
+         * @param datagram The datagram, from index 0 to the buffer's position.
+         */
+        void received(ByteBuffer datagram);
+    }
+
+    /**
+     * Opens the selector and starts the event loop.
+     *
+     * @throws IOException If the selector cannot be opened.
+     */
+    public SelectorEngine() throws IOException {
+        selector = Selector.open();
+        workers = Executors.newFixedThreadPool(IO_WORKERS, task -> {
+            Thread thread = new Thread(task, "selector-io");
+            thread.setDaemon(true);
+            return thread;
+        });
+        loop = new Thread(this::loop);
+        loop.start();
+    }
+
+    /**
+     * Runs a task on the loop thread.
+     *
+     * @param task The task, which must not block.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Accepts connections on a server socket, handing each one to the callback
+     * on the loop thread, non-blocking and not registered yet.
+     *
+     * @param server     The server socket.
+     * @param onAccepted Called with each accepted connection.
+     */
+    public void accept(ServerSocketChannel server, Consumer<SocketChannel> onAccepted) {
+        execute(() -> register(server, SelectionKey.OP_ACCEPT, new Handler() {
+            @Override
+            public void ready(SelectionKey key) throws IOException {
+                SocketChannel channel = server.accept();
+                if (channel != null) {
+                    channel.configureBlocking(false);
+                    onAccepted.accept(channel);
+                }
+            }
+
+            @Override
+            public void failed(IOException e) {
+                if (server.isOpen()) {
+                    e.printStackTrace();
+                }
+            }
+        }));
+    }
+
+    /**
+     * Fills a buffer from a connection owned by the loop. Once it is full the
+     * connection stops being read and the callback runs on the loop thread.
+     * Must be called on the loop thread.
+     *
+     * @param channel   The connection.
+     * @param buffer    The buffer to fill.
+     * @param onFull    Called with the flipped buffer once it is full.
+     * @param onFailure Called if the connection fails or closes first, after
+     *                  the connection has been closed.
+     */
+    public void read(SocketChannel channel, ByteBuffer buffer, Consumer<ByteBuffer> onFull,
+            Consumer<IOException> onFailure) {
+        register(channel, SelectionKey.OP_READ, new Handler() {
+            @Override
+            public void ready(SelectionKey key) throws IOException {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Connection closed");
+                }
+                if (!buffer.hasRemaining()) {
+                    key.interestOps(0);
+                    onFull.accept(buffer.flip());
+                }
+            }
+
+            @Override
+            public void failed(IOException e) {
+                closeQuietly(channel);
+                onFailure.accept(e);
+            }
+        });
+    }
+
+    /**
+     * Waits, without a thread, for an idle connection to have something to
+     * read, then hands it back blocking. The callback runs on the loop thread
+     * and should only pass the connection on.
+     *
+     * @param channel    The idle connection, blocking.
+     * @param onReadable Called once the connection is readable and blocking
+     *                   again, or has closed.
+     */
+    public void awaitReadable(SocketChannel channel, Runnable onReadable) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+            } catch (IOException e) {
+                onReadable.run(); // The worker finds the connection broken
+                return;
+            }
+            register(channel, SelectionKey.OP_READ, new Handler() {
+                @Override
+                public void ready(SelectionKey key) {
+                    release(channel, onReadable);
+                }
+
+                @Override
+                public void failed(IOException e) {
+                    onReadable.run();
+                }
+            });
+        });
+    }
+
+    /**
+     * Deregisters a channel and makes it blocking again, then runs a task on
+     * the loop thread. Must be called on the loop thread.
+     *
+     * @param channel The channel.
+     * @param then    The task, which must not block.
+     */
+    public void release(SelectableChannel channel, Runnable then) {
+        SelectionKey key = channel.keyFor(selector);
+        if (key != null) {
+            key.cancel();
+        }
+        released.add(() -> {
+            try {
+                if (channel.isOpen()) {
+                    channel.configureBlocking(true);
+                }
+            } catch (IOException e) {
+                closeQuietly(channel);
+            }
+            then.run();
+        });
+    }
+
+    /**
+     * Receives the ranges of a parallel TCP transfer on the loop, writing each
+     * to its offset in the file, and waits until every range has been written.
+     * Does what ParallelTCPTransfer.receiveRanges does, without a thread per
+     * connection.
+     *
+     * @param scope       The scope of the transfer, the connections are closed
+     *                    if it is cancelled.
+     * @param streams     The data connections routed to this transfer, owned
+     *                    by the loop with their magic number and token read.
+     * @param file        The channel of the destination file, already sized to
+     *                    the full file length.
+     * @param size        The size of the file.
+     * @param connections The number of data connections to take.
+     * @param compressed  Whether the ranges arrive as ChunkCompressor frames.
+     * @param onWritten   Called on an I/O worker as the ranges are written.
+     * @throws IOException If a connection fails or sends an invalid range.
+     */
+    public void receiveRanges(TransferScope scope, ParallelTCPTransfer.StreamSource streams, FileChannel file,
+            long size, int connections, boolean compressed, ParallelTCPTransfer.RangeWritten onWritten)
+            throws IOException {
+        RangeGroup group = scope.closeOnCancel(new RangeGroup(connections));
+        try {
+            for (int i = 0; i < connections && !scope.isCancelled(); i++) {
+                SocketChannel channel = scope.closeOnCancel(streams.next());
+                RangeReader reader = new RangeReader(group, channel, file, size, compressed, onWritten);
+                execute(() -> register(channel, SelectionKey.OP_READ, reader));
+            }
+            group.await();
+        } catch (IOException e) {
+            scope.cancel();
+            throw e;
+        } finally {
+            // No reader or worker may touch the file once the transfer has returned
+            sync();
+            group.awaitIdle();
+        }
+    }
+
+    /**
+     * Receives datagrams on a UDP port until the returned handle is closed.
+     * The loop drains up to one batch of datagrams at a time, then a worker
+     * hands them to the handler while the port waits.
+     *
+     * @param channel The port, blocking.
+     * @param buffers The buffers a batch of datagrams is received into.
+     * @param handler Called on an I/O worker with each datagram, in the order
+     *                they arrived, never on two threads at once for one port.
+     * @return The handle that stops receiving, waiting until the handler has
+     *         returned for the last time and the port is blocking again.
+     */
+    public Closeable receiveDatagrams(DatagramChannel channel, List<ByteBuffer> buffers, DatagramHandler handler) {
+        DatagramReader reader = new DatagramReader(channel, buffers, handler);
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+            } catch (IOException e) {
+                System.out.println("Unable to receive on " + channel + ": " + e.getMessage());
+                return;
+            }
+            register(channel, SelectionKey.OP_READ, reader);
+        });
+        return () -> {
+            CountDownLatch done = new CountDownLatch(1);
+            execute(() -> reader.stop(done::countDown));
+            awaitUninterruptibly(done);
+        };
+    }
+
+    /**
+     * Waits until the loop has finished what it was doing when called.
+     */
+    private void sync() {
+        if (Thread.currentThread() == loop || !running) {
+            return;
+        }
+        CountDownLatch done = new CountDownLatch(1);
+        execute(done::countDown);
+        awaitUninterruptibly(done);
+    }
+
+    /**
+     * Registers a channel with the selector, or swaps the handler of a channel
+     * already registered. Runs on the loop thread.
+     */
+    private void register(SelectableChannel channel, int ops, Handler handler) {
+        try {
+            SelectionKey key = channel.keyFor(selector);
+            if (key != null && key.isValid()) {
+                key.interestOps(ops);
+                key.attach(handler);
+            } else {
+                channel.register(selector, ops, handler);
+            }
+        } catch (IOException | RuntimeException e) {
+            handler.failed(e instanceof IOException ? (IOException) e : new IOException(e));
+        }
+    }
+
+    /**
+     * Selects ready channels and runs queued tasks until closed.
+     */
+    private void loop() {
+        while (running) {
+            try {
+                selector.select(this::dispatch);
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                while (!released.isEmpty()) {
+                    // Flushes the cancelled keys, so their channels can block again
+                    selector.selectNow(this::dispatch);
+                    List<Runnable> toRun = new ArrayList<>(released);
+                    released.clear();
+                    toRun.forEach(Runnable::run);
+                }
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Selector engine error: " + e);
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Runs the handler of a ready channel.
+     */
+    private void dispatch(SelectionKey key) {
+        Handler handler = (Handler) key.attachment();
+        if (!key.isValid() || handler == null) {
+            return;
+        }
+        try {
+            handler.ready(key);
+        } catch (IOException e) {
+            key.cancel();
+            handler.failed(e);
+        }
+    }
+
+    /**
+     * Stops the event loop. Channels still registered are left open for their
+     * owners to close.
+     */
+    public void close() {
+        running = false;
+        selector.wakeup();
+        workers.shutdown();
+    }
+
+    /**
+     * Waits for a latch, keeping the interrupt for later.
+     */
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Closes a channel, ignoring failures as it is being abandoned.
+     */
+    private static void closeQuietly(Closeable channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Unable to close " + channel + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * The data connections of one parallel transfer, counted down as their
+     * ranges are written.
+     */
+    private static final class RangeGroup implements Closeable {
+        private int remaining; // Connections whose range is not written yet.
+        private int busy; // Pieces of the ranges being written by workers.
+        private IOException failure; // First failure of a connection.
+
+        RangeGroup(int connections) {
+            this.remaining = connections;
+        }
+
+        /**
+         * Counts down a connection whose range has been written.
+         */
+        synchronized void finished() {
+            remaining--;
+            notifyAll();
+        }
+
+        /**
+         * Fails the transfer, keeping the first failure.
+         */
+        synchronized void failed(IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+            notifyAll();
+        }
+
+        /**
+         * Counts a piece handed to a worker.
+         */
+        synchronized void begin() {
+            busy++;
+        }
+
+        /**
+         * Counts down a piece a worker has finished with.
+         */
+        synchronized void end() {
+            busy--;
+            notifyAll();
+        }
+
+        /**
+         * Waits until no worker is writing a piece of the transfer.
+         */
+        synchronized void awaitIdle() {
+            boolean interrupted = false;
+            while (busy > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Fails the transfer when its scope is cancelled.
+         */
+        @Override
+        public void close() {
+            failed(new IOException("Transfer cancelled"));
+        }
+
+        /**
+         * Waits until every range has been written or a connection failed.
+         */
+        synchronized void await() throws IOException {
+            while (remaining > 0 && failure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for range streams", e);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Drains a UDP port a batch at a time, handing each batch to a worker and
+     * reading the port again once the worker is done with it.
+     */
+    private final class DatagramReader implements Handler {
+        private final DatagramChannel channel; // The port.
+        private final List<ByteBuffer> buffers; // A batch of datagrams is received into these.
+        private final DatagramHandler handler; // Handles each datagram on a worker.
+        private boolean busy; // Whether a worker has the batch. Loop thread only.
+        private Runnable onStopped; // Set by stop while a worker has the batch. Loop thread only.
+
+        DatagramReader(DatagramChannel channel, List<ByteBuffer> buffers, DatagramHandler handler) {
+            this.channel = channel;
+            this.buffers = buffers;
+            this.handler = handler;
+        }
+
+        @Override
+        public void ready(SelectionKey key) throws IOException {
+            int received = 0;
+            while (received < buffers.size()) {
+                ByteBuffer buffer = buffers.get(received).clear();
+                if (channel.receive(buffer) == null) {
+                    break;
+                }
+                received++;
+            }
+            if (received == 0) {
+                return;
+            }
+            key.interestOps(0);
+            busy = true;
+            int count = received;
+            workers.execute(() -> {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        handler.received(buffers.get(i));
+                    }
+                } finally {
+                    execute(() -> batchDone(key));
+                }
+            });
+        }
+
+        /**
+         * Reads the port again, or lets it go if it was stopped meanwhile.
+         * Runs on the loop thread.
+         */
+        private void batchDone(SelectionKey key) {
+            busy = false;
+            if (onStopped != null) {
+                release(channel, onStopped);
+            } else if (key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Stops receiving once no worker has the batch. Runs on the loop
+         * thread.
+         *
+         * @param then Run once the port is blocking again.
+         */
+        void stop(Runnable then) {
+            if (busy) {
+                onStopped = then;
+            } else {
+                release(channel, then);
+            }
+        }
+
+        @Override
+        public void failed(IOException e) {
+            System.out.println("Stopped receiving on " + channel + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads one data connection as it becomes readable: the rest of its
+     * header, then its range, raw or as frames. Each full buffer or frame is
+     * handed to a worker, which inflates it and writes it at its offset in
+     * the file, and the connection is read again once the worker is done.
+     */
+    private final class RangeReader implements Handler {
+        private final RangeGroup group; // The transfer the connection belongs to.
+        private final SocketChannel channel; // The data connection.
+        private final FileChannel file; // The destination file.
+        private final long size; // Size of the file.
+        private final boolean compressed; // Whether the range arrives as frames.
+        private final ParallelTCPTransfer.RangeWritten onWritten; // Told about written bytes.
+        private final ByteBuffer header = ByteBuffer.allocate(
+                ParallelTCPTransfer.STREAM_HEADER_SIZE - ParallelTCPTransfer.ROUTE_HEADER_SIZE);
+        private ByteBuffer wire; // Bytes as they arrive, a frame at a time when compressed.
+        private ByteBuffer frameData; // The data of a decoded frame.
+        private ChunkCompressor compressor; // Decodes frames, null for raw ranges.
+        private long offset; // First byte of the range.
+        private long length; // Length of the range.
+        private long written; // Bytes of the range written to the file, updated by the workers.
+
+        RangeReader(RangeGroup group, SocketChannel channel, FileChannel file, long size, boolean compressed,
+                ParallelTCPTransfer.RangeWritten onWritten) {
+            this.group = group;
+            this.channel = channel;
+            this.file = file;
+            this.size = size;
+            this.compressed = compressed;
+            this.onWritten = onWritten;
+        }
+
+        @Override
+        public void ready(SelectionKey key) throws IOException {
+            if (header.hasRemaining()) {
+                readHeader();
+                if (header.hasRemaining()) {
+                    return;
+                }
+                if (length == 0) {
+                    finished(key);
+                    return;
+                }
+            }
+            if (compressed ? readFrame() : readRaw()) {
+                key.interestOps(0);
+                group.begin();
+                workers.execute(() -> {
+                    try {
+                        if (compressed) {
+                            writeFrame();
+                        } else {
+                            wire.flip();
+                            write(wire);
+                        }
+                        execute(() -> resume(key));
+                    } catch (IOException e) {
+                        execute(() -> {
+                            key.cancel();
+                            failed(e);
+                        });
+                    } finally {
+                        group.end();
+                    }
+                });
+            }
+        }
+
+        /**
+         * Reads the offset and length of the range.
+         */
+        private void readHeader() throws IOException {
+            if (channel.read(header) < 0) {
+                throw new EOFException("Data connection closed before its header");
+            }
+            if (header.hasRemaining()) {
+                return;
+            }
+            offset = header.getLong(0);
+            length = header.getLong(Long.BYTES);
+            if (offset < 0 || length < 0 || offset + length > size) {
+                throw new IOException("Invalid range stream header");
+            }
+            if (compressed) {
+                compressor = new ChunkCompressor();
+                wire = ByteBuffer.allocateDirect(ChunkCompressor.FRAME_HEADER_SIZE + ChunkCompressor.FRAME_SIZE);
+                wire.limit(ChunkCompressor.FRAME_HEADER_SIZE);
+                frameData = ByteBuffer.allocateDirect(ChunkCompressor.FRAME_SIZE);
+            } else {
+                wire = ByteBuffer.allocateDirect((int) Math.min(STREAM_BUFFER_SIZE, Math.max(1, length)));
+                wire.limit((int) Math.min(wire.capacity(), length));
+            }
+        }
+
+        /**
+         * Reads what has arrived of a raw range.
+         *
+         * @return true once the buffer is full and can be written.
+         */
+        private boolean readRaw() throws IOException {
+            if (channel.read(wire) < 0) {
+                throw new EOFException("Data connection closed inside its range");
+            }
+            return !wire.hasRemaining();
+        }
+
+        /**
+         * Reads what has arrived of the current frame.
+         *
+         * @return true once the whole frame is in and can be written.
+         */
+        private boolean readFrame() throws IOException {
+            if (channel.read(wire) < 0) {
+                throw new EOFException("Data connection closed inside its range");
+            }
+            if (wire.hasRemaining()) {
+                return false;
+            }
+            if (wire.limit() == ChunkCompressor.FRAME_HEADER_SIZE) {
+                // Header in, the body follows
+                wire.limit(ChunkCompressor.FRAME_HEADER_SIZE + ChunkCompressor.frameBodyLength(wire, frameLength()));
+            }
+            return !wire.hasRemaining();
+        }
+
+        /**
+         * @return The length of the data of the current frame.
+         */
+        private int frameLength() {
+            return (int) Math.min(ChunkCompressor.FRAME_SIZE, length - written);
+        }
+
+        /**
+         * Decodes the frame read and writes its data. Runs on a worker.
+         */
+        private void writeFrame() throws IOException {
+            int frameLength = frameLength();
+            compressor.decodeFrame(wire, frameData, 0, frameLength);
+            frameData.clear().limit(frameLength);
+            write(frameData);
+        }
+
+        /**
+         * Writes bytes of the range at their offset in the file, then hands
+         * them to the transfer. Runs on a worker.
+         */
+        private void write(ByteBuffer data) throws IOException {
+            long start = written;
+            while (data.hasRemaining()) {
+                written += file.write(data, offset + written);
+            }
+            data.position(0);
+            onWritten.written(offset + start, written - start, data);
+        }
+
+        /**
+         * Reads the connection again once a worker has written what was read,
+         * or finishes it at the end of its range. Runs on the loop thread.
+         */
+        private void resume(SelectionKey key) {
+            if (!key.isValid()) {
+                finish(); // The transfer was cancelled meanwhile
+            } else if (written == length) {
+                finished(key);
+            } else {
+                if (compressed) {
+                    wire.clear().limit(ChunkCompressor.FRAME_HEADER_SIZE);
+                } else {
+                    wire.clear().limit((int) Math.min(wire.capacity(), length - written));
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Closes the connection once its whole range has been written.
+         */
+        private void finished(SelectionKey key) {
+            key.cancel();
+            finish();
+            group.finished();
+        }
+
+        /**
+         * Releases what the reader holds and closes the connection.
+         */
+        private void finish() {
+            if (compressor != null) {
+                compressor.end();
+            }
+            closeQuietly(channel);
+        }
+
+        @Override
+        public void failed(IOException e) {
+            finish();
+            group.failed(e);
+        }
+    }
+}
@@ -3,14 +3,24 @@ package com.project2;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Represents the sender side in a file transfer system, capable of sending
@@ -18,22 +28,31 @@ import java.net.Socket;
  */
 public class Sender {
 
-    private GUI_Sender guiSender; // The GUI layer associated with this sender.
+    private final TransferListener listener; // Told about errors and lost connections.
     private Socket socket; // TCP socket for communication.
     private int port; // Port number for the TCP connection.
     private String address; // IP address for the TCP connection.
-    private volatile DatagramSocket datagramSocket; // Datagram socket for UDP communication.
-    private volatile int UDPPort; // Port number for the UDP communication.
+    private volatile DatagramChannel[] datagramChannels; // Datagram channels connected to the receiver's UDP ports.
+    private volatile DatagramBufferPool bufferPool; // Reused datagram buffers, sized for the packet size.
     private volatile BufferedWriter bufWrite; // Writer for sending data over TCP.
     private volatile BufferedReader bufRead; // Reader for receiving data over TCP.
+    private volatile int requestedPacketSize; // RBUDP payload size asked for, 0 to follow the MTU.
+    private volatile boolean probePath; // Whether to probe the path for the payload size.
+    private volatile boolean compression; // Whether file data is deflated chunk by chunk.
+    private volatile TransferScope transfer; // Threads of the transfer in progress, null between transfers.
+    private final TransferMetrics metrics = TransferMetrics.forRole("sender"); // Counters of every send.
+
+    private static final int PROBE_COPIES = 3; // Datagrams sent per probe size.
+    private static final int POOLED_BUFFERS = 4; // Datagram buffers kept for reuse.
 
     /**
-     * Constructs a Sender object associated with a GUI_Sender instance.
+     * Constructs a Sender that reports to a listener, such as GUI_Sender or
+     * the command-line sender.
      *
-     * @param guiSender The associated GUI_Sender instance.
+     * @param listener The listener of the sender's events.
      */
-    public Sender(GUI_Sender guiSender) {
-        this.guiSender = guiSender;
+    public Sender(TransferListener listener) {
+        this.listener = listener;
     }
 
     /**
@@ -47,7 +66,14 @@ public class Sender {
         try {
             this.port = port;
             this.address = address;
-            socket = new Socket(this.address, this.port);
+            // Opened through a channel so files can be sent with FileChannel.transferTo
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(this.address, this.port));
+            // Tells the receiver this is a control connection, not a parallel TCP data connection
+            ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES).putInt(Receiver.CONTROL_MAGIC).flip();
+            while (magic.hasRemaining()) {
+                channel.write(magic);
+            }
+            socket = channel.socket();
             bufWrite = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
             bufRead = new BufferedReader(new InputStreamReader(socket.getInputStream()));
             return true;
@@ -58,15 +84,24 @@ public class Sender {
     }
 
     /**
-     * Sets up UDP communication by reading the UDP port sent by the receiver.
+     * Sets up UDP communication by reading the UDP ports sent by the receiver
+     * and negotiating the RBUDP payload size. Packets are spread across the
+     * ports by sequence number.
      */
     public void setupUDP() {
         try {
-            String sUDPPort = bufRead.readLine(); // Read the UDP port from the receiver.
-            System.out.println("Received: " + sUDPPort);
-            UDPPort = Integer.parseInt(sUDPPort); // Parse the received UDP port.
-            datagramSocket = new DatagramSocket(); // Initialize the datagram socket for UDP.
-            System.out.println("UDP has been setup");
+            String sUDPPorts = bufRead.readLine(); // Read the UDP ports from the receiver.
+            System.out.println("Received: " + sUDPPorts);
+            String[] ports = sUDPPorts.split(","); // Parse the received UDP ports.
+            // Connect a datagram channel to each port so sends skip the per-packet address lookup
+            datagramChannels = new DatagramChannel[ports.length];
+            for (int i = 0; i < ports.length; i++) {
+                datagramChannels[i] = DatagramChannel.open();
+                datagramChannels[i].connect(new InetSocketAddress(address, Integer.parseInt(ports[i].trim())));
+            }
+            negotiatePacketSize();
+            bufferPool = DatagramBufferPool.forPacketSize(POOLED_BUFFERS, packetSize);
+            System.out.println("UDP has been setup, packet size: " + packetSize);
         } catch (Exception e) {
             System.out.println("Printing ERROR");
             closeResources();
@@ -74,12 +109,110 @@ public class Sender {
         }
     }
 
+    /**
+     * Sets the RBUDP payload size to ask the receiver for.
+     *
+     * @param packetSize The payload size in bytes, 0 to size packets to the
+     *                   MTU of the network interface.
+     */
+    public void setPacketSize(int packetSize) {
+        requestedPacketSize = packetSize;
+    }
+
+    /**
+     * @return The RBUDP payload size negotiated in setupUDP.
+     */
+    public int getPacketSize() {
+        return packetSize;
+    }
+
+    /**
+     * Turns the path probe on or off. When on, datagrams of decreasing sizes
+     * are sent to the receiver while connecting, and the payload size is capped
+     * to the largest datagram that arrived.
+     *
+     * @param probe true to probe the path while connecting.
+     */
+    public void setProbePath(boolean probe) {
+        probePath = probe;
+    }
+
+    /**
+     * Turns per-chunk compression on or off for the files sent from now on.
+     * Each RBUDP packet or TCP frame is deflated on its own, and sent as it is
+     * when deflating does not make it smaller.
+     *
+     * @param compress true to deflate file data.
+     */
+    public void setCompression(boolean compress) {
+        compression = compress;
+    }
+
+    /**
+     * Agrees on the RBUDP payload size with the receiver: the smaller of the
+     * size wanted here and the largest the receiver offers, optionally capped
+     * by the path probe.
+     *
+     * @throws IOException If the receiver's offer cannot be read.
+     */
+    private void negotiatePacketSize() throws IOException {
+        String offer = bufRead.readLine();
+        if (offer == null || !offer.startsWith("##PACKETSIZE ")) {
+            throw new IOException("Expected a packet size offer, got: " + offer);
+        }
+        int receiverMax = Integer.parseInt(offer.substring("##PACKETSIZE ".length()));
+        int wanted = requestedPacketSize > 0 ? PacketSizing.clamp(requestedPacketSize)
+                : PacketSizing.payloadForInterface(socket.getLocalAddress());
+        int chosen = Math.min(wanted, receiverMax);
+        if (probePath) {
+            chosen = Math.min(chosen, probePacketSize(chosen));
+        }
+        packetSize = chosen;
+        bufWrite.write("##PACKETSIZE " + packetSize);
+        bufWrite.newLine();
+        bufWrite.flush();
+    }
+
+    /**
+     * Sends probe datagrams of decreasing sizes to the receiver, which answers
+     * with the largest one that arrived.
+     *
+     * @param maxPacketSize The largest payload worth probing.
+     * @return The largest payload that got through, at least MIN_PACKET_SIZE.
+     * @throws IOException If the probe cannot be sent or answered.
+     */
+    private int probePacketSize(int maxPacketSize) throws IOException {
+        bufWrite.write("##PROBE");
+        bufWrite.newLine();
+        bufWrite.flush();
+
+        InetAddress receiverAddress = InetAddress.getByName(address);
+        for (int size : PacketSizing.probeSizes(maxPacketSize, receiverAddress instanceof Inet6Address)) {
+            // Probes carry sequence number 0, which no file packet uses
+            byte[] probe = new byte[size];
+            for (int copy = 0; copy < PROBE_COPIES; copy++) {
+                datagramChannels[0].write(ByteBuffer.wrap(probe));
+            }
+        }
+
+        String reply = bufRead.readLine();
+        if (reply == null || !reply.startsWith("##PROBED ")) {
+            throw new IOException("Expected a probe result, got: " + reply);
+        }
+        int largest = Integer.parseInt(reply.substring("##PROBED ".length())) - PacketSizing.HEADER_SIZE;
+        System.out.println("Path probe: largest payload received " + largest);
+        return Math.max(PacketSizing.MIN_PACKET_SIZE, largest);
+    }
+
     /**
      * Sends a file over TCP to the connected receiver.
      *
      * @param file The file to be sent.
      */
     public void sendTCP(File file) {
+        if (!isSendable(file)) {
+            return;
+        }
         try {
             bufWrite.write("##SENDINGTCPFILE");
             bufWrite.newLine();
@@ -87,7 +220,7 @@ public class Sender {
             sendTCPMethod(file); // Perform the actual file sending over TCP.
             System.out.println("Started TCP send");
         } catch (IOException e) {
-            closeResources();
+            connectionLost();
             e.printStackTrace();
         }
     }
@@ -98,43 +231,416 @@ public class Sender {
      * @param file The file to be sent.
      */
     private void sendTCPMethod(File file) {
-        if (file == null) {
-            System.err.println("File is null, cannot send over TCP.");
-            return;
+        // Send the file content over TCP.
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = fileChannel.size();
+            bufWrite.write(file.getName());
+            bufWrite.newLine();
+            bufWrite.write(Long.toString(size));
+            bufWrite.newLine();
+            bufWrite.write(Long.toString(file.lastModified()));
+            bufWrite.newLine();
+            bufWrite.write(compression ? ChunkCompressor.DEFLATE : ChunkCompressor.NONE);
+            bufWrite.newLine();
+            bufWrite.flush();
+
+            // Wait until the receiver has read the header, otherwise its text
+            // reader could buffer the first bytes of the file
+            ByteRangeSet missing = readMissingRanges(file, size);
+            if (missing == null) {
+                return;
+            }
+
+            // Let the kernel copy the missing ranges straight to the socket, hashing them from
+            // a mapping of the page cache, or deflate them frame by frame
+            FileDigest digest = new FileDigest(size, FileDigest.TCP_CHUNK_SIZE);
+            SocketChannel socketChannel = socket.getChannel();
+            ChunkCompressor compressor = compression ? new ChunkCompressor() : null;
+            ParallelTCPTransfer.RangeWritten sent = (offset, length, data) -> {
+                metrics.addBytes(length);
+                digest.update(offset, data);
+            };
+            long started = System.nanoTime();
+            for (long[] range : missing.toList()) {
+                if (compressor != null) {
+                    compressor.sendRange(fileChannel, range[0], range[1], socketChannel, sent);
+                } else {
+                    ParallelTCPTransfer.sendRaw(fileChannel, range[0], range[1], socketChannel, sent);
+                }
+            }
+            if (compressor != null) {
+                if (compressor.getRawBytes() > 0) {
+                    System.out.println("TCP: " + compressor.describeGain(System.nanoTime() - started));
+                }
+                compressor.end();
+            }
+
+            // Chunks a resume skipped are hashed from the file
+            digest.hashRemaining(fileChannel);
+            String received = sendChecksums(fileChannel, digest);
+            if ("##RECEIVED".equals(received)) {
+                System.out.println("File " + file.getName() + " sent successfully.");
+            } else {
+                reportFailedVerification(file, received);
+            }
+        } catch (IOException e) {
+            connectionLost();
+            e.printStackTrace();
         }
+    }
 
-        if (!file.exists()) {
-            System.err.println("File does not exist: " + file.getPath());
+    /**
+     * Sends a file over TCP split into ranges that travel over several
+     * connections at once.
+     *
+     * @param file    The file to be sent.
+     * @param streams The number of parallel connections to use.
+     */
+    public void sendParallelTCP(File file, int streams) {
+        if (!isSendable(file)) {
             return;
         }
+        try {
+            bufWrite.write("##SENDINGPARALLELTCPFILE");
+            bufWrite.newLine();
+            bufWrite.flush();
+            sendParallelTCPMethod(file, streams); // Perform the actual file sending over TCP.
+            System.out.println("Started parallel TCP send");
+        } catch (IOException e) {
+            connectionLost();
+            e.printStackTrace();
+        }
+    }
 
-        // Send the file content over TCP.
-        try (FileInputStream fis = new FileInputStream(file)) {
+    /**
+     * Handles the actual file sending over parallel TCP connections.
+     *
+     * @param file    The file to be sent.
+     * @param streams The number of parallel connections to use.
+     */
+    private void sendParallelTCPMethod(File file, int streams) {
+        streams = Math.max(1, Math.min(streams, ParallelTCPTransfer.MAX_STREAMS));
+
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                TransferScope scope = new TransferScope()) {
+            transfer = scope;
+            long size = fileChannel.size();
             bufWrite.write(file.getName());
             bufWrite.newLine();
-            bufWrite.write(Long.toString(file.length()));
+            bufWrite.write(Long.toString(size));
+            bufWrite.newLine();
+            bufWrite.write(Long.toString(file.lastModified()));
+            bufWrite.newLine();
+            bufWrite.write(Integer.toString(streams));
+            bufWrite.newLine();
+            bufWrite.write(compression ? ChunkCompressor.DEFLATE : ChunkCompressor.NONE);
             bufWrite.newLine();
             bufWrite.flush();
 
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                socket.getOutputStream().write(buffer, 0, bytesRead);
+            // The token lets the receiver route the data connections to this transfer
+            String tokenLine = bufRead.readLine();
+            if (tokenLine == null || !tokenLine.startsWith("##STREAMTOKEN ")) {
+                reportFailure("Receiver did not accept " + file.getName() + ": " + tokenLine);
+                return;
+            }
+            long token = Long.parseLong(tokenLine.substring("##STREAMTOKEN ".length()));
+
+            // Wait until the receiver is ready to accept the data connections
+            ByteRangeSet missing = readMissingRanges(file, size);
+            if (missing == null) {
+                return;
+            }
+
+            // Both sides split the missing ranges the same way, one connection per piece
+            FileDigest digest = new FileDigest(size, FileDigest.TCP_CHUNK_SIZE);
+            long started = System.nanoTime();
+            long wireBytes = ParallelTCPTransfer.sendRanges(scope, fileChannel,
+                    ParallelTCPTransfer.split(missing.toList(), streams), new InetSocketAddress(address, port),
+                    token, compression, (offset, length, data) -> {
+                        metrics.addBytes(length);
+                        digest.update(offset, data);
+                    });
+            if (compression && !missing.isEmpty()) {
+                System.out.println("Parallel TCP: " + ChunkCompressor.describeGain(missing.totalLength(), wireBytes,
+                        System.nanoTime() - started));
+            }
+
+            // Wait for the receiver to confirm every range has been written and verified
+            digest.hashRemaining(fileChannel);
+            String received = sendChecksums(fileChannel, digest);
+            if ("##RECEIVED".equals(received)) {
+                System.out.println("File " + file.getName() + " sent successfully over " + streams + " streams.");
+            } else {
+                reportFailedVerification(file, received);
             }
-            socket.getOutputStream().flush();
-            System.out.println("File " + file.getName() + " sent successfully.");
         } catch (IOException e) {
-            closeResources();
+            connectionLost();
             e.printStackTrace();
+        } finally {
+            transfer = null;
+        }
+    }
+
+    /**
+     * Sends the digest of the file just sent, which the receiver compares with
+     * the digest of what it wrote.
+     *
+     * @param digest The digest of the whole file.
+     * @throws IOException If the digest cannot be sent.
+     */
+    private void sendDigest(FileDigest digest) throws IOException {
+        bufWrite.write("##DIGEST " + digest.digest());
+        bufWrite.newLine();
+        bufWrite.flush();
+    }
+
+    /**
+     * Sends the CRC of every chunk of a TCP transfer, then sends again the
+     * chunks the receiver found corrupt, over the control connection, until it
+     * has them all or gives up.
+     *
+     * @param fileChannel The channel of the file being sent.
+     * @param digest      The digest of the whole file, one chunk per 1 MB.
+     * @return The receiver's final answer.
+     * @throws IOException If the connection fails.
+     */
+    private String sendChecksums(FileChannel fileChannel, FileDigest digest) throws IOException {
+        bufWrite.write("##CHECKSUMS " + digest.encodeChecksums());
+        bufWrite.newLine();
+        bufWrite.flush();
+
+        String verdict = bufRead.readLine();
+        while (verdict != null && verdict.startsWith("##REFETCH ")) {
+            ByteRangeSet corrupt = ByteRangeSet.decode(verdict.substring("##REFETCH ".length()));
+            System.out.println("Receiver found corrupt chunks, sending " + corrupt.totalLength() + " bytes again");
+            SocketChannel socketChannel = socket.getChannel();
+            for (long[] range : corrupt.toList()) {
+                long position = range[0];
+                while (position < range[1]) {
+                    position += fileChannel.transferTo(position, range[1] - position, socketChannel);
+                }
+            }
+            verdict = bufRead.readLine();
+        }
+        return verdict;
+    }
+
+    /**
+     * Reports a file the receiver did not store, most likely because its
+     * digest did not match.
+     *
+     * @param file    The file that was sent.
+     * @param verdict The receiver's answer.
+     */
+    private void reportFailedVerification(File file, String verdict) {
+        if (verdict != null && verdict.startsWith("##DIGESTMISMATCH")) {
+            System.err.println("Receiver failed to store " + file.getName() + ": " + verdict);
+            listener.error("File " + file.getName() + " failed verification at the receiver");
+        } else {
+            reportFailure("Receiver failed to store " + file.getName() + ": " + verdict);
+        }
+    }
+
+    /**
+     * Checks that a file can be sent, before its command is written, so the
+     * receiver is never left waiting for the header of a file that is not
+     * coming.
+     *
+     * @param file The file to be sent.
+     * @return true if the file exists.
+     */
+    private boolean isSendable(File file) {
+        if (file == null) {
+            System.err.println("File is null, cannot send it.");
+            return false;
+        }
+        if (!file.exists()) {
+            reportFailure("File does not exist: " + file.getPath());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reports a send that could not go ahead or did not complete.
+     *
+     * @param message What went wrong.
+     */
+    private void reportFailure(String message) {
+        System.err.println(message);
+        listener.error(message);
+    }
+
+    /**
+     * Reads the receiver's answer to a TCP file header: ##READY when the whole
+     * file is wanted, or ##RESUME with the ranges still missing when an
+     * interrupted transfer of the same file is being resumed.
+     *
+     * @param file The file being sent.
+     * @param size The size of the file.
+     * @return The ranges to send, or null if the receiver refused the file.
+     * @throws IOException If the answer cannot be read.
+     */
+    private ByteRangeSet readMissingRanges(File file, long size) throws IOException {
+        String ready = bufRead.readLine();
+        if ("##READY".equals(ready)) {
+            ByteRangeSet missing = new ByteRangeSet();
+            missing.add(0, size);
+            return missing;
+        }
+        if (ready != null && ready.startsWith("##RESUME ")) {
+            ByteRangeSet missing = ByteRangeSet.decode(ready.substring("##RESUME ".length()));
+            System.out.println("Resuming " + file.getName() + ": " + missing.totalLength() + " of " + size
+                    + " bytes still to send.");
+            return missing;
+        }
+        reportFailure("Receiver did not accept " + file.getName() + ": " + ready);
+        return null;
+    }
+
+    /**
+     * Sends a list of files and directory trees over TCP as one batch: a
+     * manifest of every file up front, then the contents of all the files back
+     * to back, so small files share large writes instead of each paying a
+     * header round trip.
+     *
+     * @param files The files and directories to send.
+     */
+    public void sendBatch(List<File> files) {
+        try {
+            BatchManifest manifest = new BatchManifest();
+            for (File file : files) {
+                manifest.addTree(file);
+            }
+            bufWrite.write("##SENDINGBATCH");
+            bufWrite.newLine();
+            bufWrite.flush();
+            sendBatchMethod(manifest); // Perform the actual batch sending over TCP.
+            System.out.println("Started batch send");
+        } catch (IOException e) {
+            connectionLost();
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Handles the actual sending of a batch. The files are read one after the
+     * other into a buffer that is sent, and hashed, each time it fills, so the
+     * batch stream is cut into the same 1 MB chunks whatever the file sizes.
+     *
+     * @param manifest The files of the batch.
+     * @throws IOException If a file cannot be read or the connection fails.
+     */
+    private void sendBatchMethod(BatchManifest manifest) throws IOException {
+        bufWrite.write(compression ? ChunkCompressor.DEFLATE : ChunkCompressor.NONE);
+        bufWrite.newLine();
+        manifest.write(bufWrite);
+        bufWrite.flush();
+
+        // Wait until the receiver has read the manifest before streaming
+        String ready = bufRead.readLine();
+        if (!"##READY".equals(ready)) {
+            reportFailure("Receiver did not accept the batch: " + ready);
+            return;
+        }
+
+        FileDigest digest = new FileDigest(manifest.getTotalSize(), BatchManifest.STREAM_CHUNK_SIZE);
+        ByteBuffer chunk = ByteBuffer.allocateDirect(BatchManifest.STREAM_CHUNK_SIZE);
+        ChunkCompressor compressor = compression ? new ChunkCompressor() : null;
+        SocketChannel socketChannel = socket.getChannel();
+        int chunkIndex = 0;
+        long started = System.nanoTime();
+        try {
+            for (BatchManifest.Entry entry : manifest.getEntries()) {
+                try (FileChannel fileChannel = FileChannel.open(entry.getSource().toPath(), StandardOpenOption.READ)) {
+                    // Never read past the size in the manifest, even if the file has grown since
+                    long position = 0;
+                    while (position < entry.getSize()) {
+                        chunk.limit((int) Math.min(chunk.capacity(), chunk.position() + entry.getSize() - position));
+                        int bytesRead = fileChannel.read(chunk, position);
+                        if (bytesRead < 0) {
+                            throw new IOException(entry.getSource().getPath() + " shrank while being sent");
+                        }
+                        position += bytesRead;
+                        if (chunk.position() == chunk.capacity()) {
+                            sendBatchChunk(chunk, chunkIndex++, digest, compressor, socketChannel);
+                        }
+                    }
+                }
+            }
+            if (chunk.position() > 0) {
+                sendBatchChunk(chunk, chunkIndex, digest, compressor, socketChannel);
+            }
+            if (compressor != null && compressor.getRawBytes() > 0) {
+                System.out.println("Batch: " + compressor.describeGain(System.nanoTime() - started));
+            }
+        } finally {
+            if (compressor != null) {
+                compressor.end();
+            }
+        }
+
+        // The receiver checks the stream's chunks and discards any file they show corrupt
+        bufWrite.write("##CHECKSUMS " + digest.encodeChecksums());
+        bufWrite.newLine();
+        bufWrite.flush();
+        String received = bufRead.readLine();
+        if ("##RECEIVED".equals(received)) {
+            System.out.println("Batch of " + manifest.getEntries().size() + " files sent successfully.");
+        } else {
+            if (received != null && received.startsWith("##DIGESTMISMATCH")) {
+                System.err.println("Receiver failed to store the batch: " + received);
+                listener.error("Some files of the batch failed verification at the receiver");
+            } else {
+                reportFailure("Receiver failed to store the batch: " + received);
+            }
         }
     }
 
+    /**
+     * Hashes and sends one full or final chunk of a batch stream, raw or as
+     * frames deflated on their own, then empties the buffer.
+     *
+     * @param chunk         The buffer holding the chunk from index 0 to its
+     *                      position.
+     * @param chunkIndex    The index of the chunk in the stream.
+     * @param digest        The digest of the batch stream.
+     * @param compressor    The compressor, null to send the chunk raw.
+     * @param socketChannel The connection to send it on.
+     * @throws IOException If the connection fails.
+     */
+    private void sendBatchChunk(ByteBuffer chunk, int chunkIndex, FileDigest digest, ChunkCompressor compressor,
+            SocketChannel socketChannel) throws IOException {
+        int length = chunk.position();
+        digest.update(chunkIndex, chunk, 0, length);
+        metrics.addBytes(length);
+        if (compressor != null) {
+            for (int offset = 0; offset < length; offset += ChunkCompressor.FRAME_SIZE) {
+                compressor.writeFrame(chunk, offset, Math.min(ChunkCompressor.FRAME_SIZE, length - offset),
+                        socketChannel);
+            }
+        } else {
+            chunk.flip();
+            while (chunk.hasRemaining()) {
+                socketChannel.write(chunk);
+            }
+        }
+        chunk.clear();
+    }
+
     /**
      * Placeholder for sending a file using RBUDP protocol.
      *
      * @param file The file to be sent using RBUDP.
      */
     public void sendRBUDP(File file) {
+        if (!isSendable(file)) {
+            return;
+        }
+        if ((file.length() + packetSize - 1) / packetSize > RBUDPPacket.MAX_SEQUENCE_NUMBER) {
+            reportFailure("File is too large to send over RBUDP: " + file.getPath());
+            return;
+        }
         try {
             bufWrite.write("##SENDINGRBUDPFILE");
             bufWrite.newLine();
@@ -142,18 +648,115 @@ public class Sender {
             sendRBUDPMethod(file); // Placeholder method for actual RBUDP file sending.
             System.out.println("Started RBUDP send");
         } catch (IOException e) {
-            closeResources();
+            connectionLost();
             e.printStackTrace();
         }
     }
 
     // Global variables for RBUDP
-    private InetAddress inetAddress;
-    private static byte[] bytesOfFile;
-    private volatile Boolean EOF;
-    private volatile String sequencesSent;
+    private volatile FileChannel fileChannel; // Channel the packet payloads are read from.
+    private volatile MappedByteBuffer fileWindow; // Currently mapped region of the file.
+    private volatile long windowStart; // File offset at which fileWindow begins.
+    private volatile long fileSize; // Size of the file being sent.
+    private volatile BlockBitmap sequencesSent; // Sequences sent for the current block.
+    private int blockId; // Index of the current block.
+    private BlockingQueue<String> replies; // Control lines from the receiver during an RBUDP send.
+    private Map<Integer, Integer> awaitingFirstAnswer; // Blasted packet counts of blocks not yet answered.
+    private Map<Integer, Long> listSentAt; // When the last list of each unanswered block was sent.
+    private int blocksInFlight; // Blocks whose packets have not all been confirmed.
+    private int pipelineWindow = 4; // Most blocks allowed in flight at once.
     private int listSize = 1000;
-    private int packetSize = 8192;
+    private volatile int packetSize = PacketSizing.DEFAULT_PACKET_SIZE; // Negotiated in setupUDP.
+    private final RatePacer pacer = new RatePacer(0); // Spaces out datagrams at the target rate.
+    private volatile double lastBlockLoss; // Fraction of the last block's packets that were lost.
+    private volatile double targetRate; // Target rate in Mbit/s, 0 for no pacing.
+    private volatile boolean adaptiveRate; // Whether the rate follows the measured loss.
+    private RateController rateController; // Adjusts the rate during an adaptive send.
+    private volatile int fecDataPackets; // Data packets per FEC group.
+    private volatile int fecParityPackets; // Parity packets per FEC group, 0 for no FEC.
+    private int parityPacketsSent; // Parity packets sent for the current file.
+    private int packetsRetransmitted; // Packets resent for the current file.
+    private volatile LossyDatagramShim datagramShim; // Damages datagrams in tests, null to send them as they are.
+    private ChunkCompressor packetCompressor; // Deflates the payloads of the current file, null to send them raw.
+    private static final long WINDOW_SIZE = 64L * 1024 * 1024; // Mapped bytes, rounded down to whole packets.
+    private static final String END_OF_REPLIES = "##ENDOFREPLIES"; // Queued when the control channel closes.
+
+    /**
+     * Routes the RBUDP datagrams through a shim that loses, duplicates,
+     * reorders or delays them, to measure retransmission without a lossy
+     * network.
+     *
+     * @param shim The shim, or null to send datagrams as they are.
+     */
+    public void setDatagramShim(LossyDatagramShim shim) {
+        datagramShim = shim;
+    }
+
+    /**
+     * @return The packets resent for the last file sent with RBUDP.
+     */
+    public int getPacketsRetransmitted() {
+        return packetsRetransmitted;
+    }
+
+    /**
+     * Sets the rate RBUDP datagrams are blasted at.
+     *
+     * @param megabitsPerSecond The target rate in Mbit/s, 0 for no pacing.
+     */
+    public void setTargetRate(double megabitsPerSecond) {
+        targetRate = megabitsPerSecond;
+        pacer.setRate(megabitsPerSecond);
+        metrics.setPacingRate(pacer.getRate());
+    }
+
+    /**
+     * Turns adaptive rate control on or off. When on, the blast rate starts at
+     * the target rate (or a default when none is set) and is adjusted after
+     * every block from the loss the receiver reports.
+     *
+     * @param adaptive true to adjust the rate automatically.
+     */
+    public void setAdaptiveRate(boolean adaptive) {
+        adaptiveRate = adaptive;
+    }
+
+    /**
+     * Turns forward error correction on or off. With FEC on, every group of
+     * dataPackets packets is followed by parityPackets XOR parity packets, so
+     * the receiver can rebuild lost packets without asking for a resend.
+     *
+     * @param dataPackets   The number of data packets per group.
+     * @param parityPackets The number of parity packets per group, 0 for no
+     *                      FEC.
+     */
+    public void setFEC(int dataPackets, int parityPackets) {
+        if (parityPackets <= 0 || dataPackets <= 0) {
+            fecDataPackets = 0;
+            fecParityPackets = 0;
+        } else {
+            fecDataPackets = Math.min(dataPackets, listSize);
+            fecParityPackets = Math.min(Math.min(parityPackets, fecDataPackets), XORParity.MAX_PARITY_PACKETS);
+        }
+    }
+
+    /**
+     * Sets how many RBUDP blocks may be blasted before the oldest one has been
+     * confirmed by the receiver.
+     *
+     * @param blocks The number of blocks allowed in flight, at least 1.
+     */
+    public void setPipelineWindow(int blocks) {
+        pipelineWindow = Math.max(1, blocks);
+    }
+
+    /**
+     * @return The fraction of packets lost in the last block, as reported by
+     *         the receiver before any resends.
+     */
+    public double getLastBlockLoss() {
+        return lastBlockLoss;
+    }
 
     /**
      * Sends a file using the Reliable Broadcast UDP (RBUDP) protocol.
@@ -162,15 +765,14 @@ public class Sender {
      */
     private void sendRBUDPMethod(File file) {
 
-        try {
-            // Get the InetAddress for the destination address
-            inetAddress = InetAddress.getByName(address);
-
-            // Read the contents of the file into a byte array
-            bytesOfFile = new byte[(int) file.length()];
-            FileInputStream fileInputStream = new FileInputStream(file);
-            fileInputStream.read(bytesOfFile);
-            fileInputStream.close();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                TransferScope scope = new TransferScope()) {
+            transfer = scope;
+            // Payloads are read on demand from a mapped window of the file, so
+            // the heap use does not grow with the file size
+            fileChannel = channel;
+            fileWindow = null;
+            fileSize = channel.size();
 
             // Write the file name to the output buffer
             bufWrite.write(file.getName());
@@ -178,166 +780,457 @@ public class Sender {
             bufWrite.flush();
 
             // Write the file size to the output buffer
-            bufWrite.write(Integer.toString(bytesOfFile.length));
+            bufWrite.write(Long.toString(fileSize));
+            bufWrite.newLine();
+            bufWrite.flush();
+
+            // Write the version of the file, used by the receiver to resume
+            bufWrite.write(Long.toString(file.lastModified()));
+            bufWrite.newLine();
+            bufWrite.flush();
+
+            // Write the FEC group shape, data and parity packets per group
+            int dataPackets = fecDataPackets;
+            int parityPackets = fecParityPackets;
+            bufWrite.write(dataPackets + " " + parityPackets);
+            bufWrite.newLine();
+            bufWrite.flush();
+
+            // Write the codec of the payloads, each packet is deflated on its own
+            packetCompressor = compression ? new ChunkCompressor() : null;
+            bufWrite.write(compression ? ChunkCompressor.DEFLATE : ChunkCompressor.NONE);
             bufWrite.newLine();
             bufWrite.flush();
 
             // Print a message indicating the file name and size sent
             System.out.println("RBUDP: Sent filename: " + file.getName()
-                    + "\nRBUDP: Sent file size:" + bytesOfFile.length);
+                    + "\nRBUDP: Sent file size:" + fileSize);
+
+            // The receiver lists the packets it still needs when resuming
+            String ready = bufRead.readLine();
+            BlockBitmap missing = null;
+            if (ready != null && ready.startsWith("##RESUME")) {
+                missing = BlockBitmap.decode(ready);
+                System.out.println("RBUDP: Resuming, " + missing.cardinality() + " packets still to send");
+            } else if (!"##READY".equals(ready)) {
+                throw new IOException("Receiver did not accept " + file.getName() + ": " + ready);
+            }
+
+            // Start adaptive rate control from the target rate
+            if (adaptiveRate) {
+                rateController = new RateController(targetRate);
+                pacer.setRate(rateController.getRate());
+                metrics.setPacingRate(pacer.getRate());
+            } else {
+                rateController = null;
+                pacer.setRate(targetRate);
+                metrics.setPacingRate(pacer.getRate());
+            }
+
+            // Replies are read on their own thread, so blasting never waits on a
+            // block's round trip unless the window of blocks in flight is full
+            replies = new LinkedBlockingQueue<>();
+            awaitingFirstAnswer = new HashMap<>();
+            listSentAt = new HashMap<>();
+            blocksInFlight = 0;
+            readReplies(scope);
 
             // Initialize sequence number and sequences sent
             int sequenceNr = 0;
-            sequencesSent = "";
-            EOF = false;
+            blockId = 0;
+            sequencesSent = new BlockBitmap(blockId, 1, listSize);
+
+            // Parity covers every packet of a group, even those a resume skips,
+            // and is only sent for groups with packets sent
+            XORParity parity = parityPackets > 0 ? new XORParity(dataPackets, parityPackets, packetSize) : null;
+            boolean groupSent = false;
+            FileDigest digest = new FileDigest(fileSize, packetSize, false);
+            parityPacketsSent = 0;
+            packetsRetransmitted = 0;
 
             // Loop through the file data and send packets
-            for (int i = 0; i < bytesOfFile.length; i += packetSize) {
+            long started = System.nanoTime();
+            for (long offset = 0; offset < fileSize; offset += packetSize) {
+
+                // Fold retransmissions for earlier blocks into the stream
+                String reply;
+                while ((reply = replies.poll()) != null) {
+                    handleReply(reply);
+                }
 
                 // Increment sequence number
                 sequenceNr += 1;
-                // Send packet with current sequence number
-                sendPacket(i, sequenceNr);
-                // Print a message indicating the sequence number sent
-                System.out.println("Sent: " +
-                        sequenceNr);
-                // Add sequence number to list of sequences sent
-                sequencesSent = sequencesSent + "." + sequenceNr;
+                if (missing == null || missing.get(sequenceNr)) {
+                    // Wait for a free slot before starting a new block
+                    if (sequencesSent.isEmpty()) {
+                        while (blocksInFlight >= pipelineWindow) {
+                            handleReply(replies.take());
+                        }
+                    }
+                    // Send packet with current sequence number, its checksum goes into the digest
+                    digest.set(sequenceNr - 1, sendPacket(offset, sequenceNr));
+                    // Add sequence number to list of sequences sent
+                    sequencesSent.set(sequenceNr);
+                    groupSent = true;
+                } else {
+                    // Packets a resume skips are hashed too
+                    hashPacket(digest, sequenceNr, offset);
+                }
+
+                // Groups never cross a block, so their parity is sent before the block's list
+                if (parity != null) {
+                    int index = (sequenceNr - 1) % listSize % dataPackets;
+                    addToParity(parity, index, offset);
+                    if (index == dataPackets - 1 || sequenceNr % listSize == 0 || offset + packetSize >= fileSize) {
+                        if (groupSent) {
+                            sendParity(parity, sequenceNr - index);
+                        }
+                        parity.reset();
+                        groupSent = false;
+                    }
+                }
 
                 // Check if it's time to send a sequence list or if it's end of file
-                if (sequenceNr % listSize == 0 || EOF) {
-                    // Send the sequence list
-                    sendList();
-                    sequencesSent = ""; // Clear the list of sequences sent
+                if (sequenceNr % listSize == 0 || offset + packetSize >= fileSize) {
+                    // Send the sequence list, blocks received before a resume have none
+                    if (!sequencesSent.isEmpty()) {
+                        awaitingFirstAnswer.put(blockId, sequencesSent.cardinality());
+                        blocksInFlight++;
+                        sendList(sequencesSent);
+                    }
+                    // Start the list of sequences sent for the next block
+                    blockId++;
+                    sequencesSent = new BlockBitmap(blockId, blockId * listSize + 1, listSize);
                 }
 
             }
 
+            // Resend until every block has been confirmed
+            while (blocksInFlight > 0) {
+                handleReply(replies.take());
+            }
+
             // Print a message indicating file sending completion
-            System.out.println("FIle sending complete. File size: " + bytesOfFile.length);
+            System.out.println("FIle sending complete. File size: " + fileSize);
+            System.out.println("RBUDP: " + packetsRetransmitted + " packets retransmitted, "
+                    + parityPacketsSent + " parity packets sent");
+            if (packetCompressor != null && packetCompressor.getRawBytes() > 0) {
+                System.out.println("RBUDP: " + packetCompressor.describeGain(System.nanoTime() - started));
+            }
 
-            // Signal the end of file sending to the receiver
+            // Send the digest of the file, then signal the end of file sending to the receiver
+            sendDigest(digest);
             bufWrite.write("##FINISHEDSENDING");
             bufWrite.newLine();
             bufWrite.flush();
 
             // Continue sending packets if receiver requests more
             while (true) {
-                String finalCheck = bufRead.readLine();
+                String finalCheck = replies.take();
                 if (finalCheck.equals("##SENDMORE")) {
-                    sendPacket(0, 1);
+                    // Every port's reader is waiting for a datagram to see the end
+                    for (int port = 0; port < datagramChannels.length; port++) {
+                        sendPacket(0, 1, port);
+                    }
                 } else {
+                    if (!finalCheck.equals("##DONE")) {
+                        reportFailedVerification(file, finalCheck);
+                    }
                     break;
                 }
             }
+            scope.join();
 
         } catch (Exception ex) {
-            closeResources();
-            guiSender.showErrorDialog("Receiver Disconnected");
+            connectionLost();
+            listener.error("Receiver Disconnected");
+        } finally {
+            transfer = null;
+            fileChannel = null;
+            fileWindow = null;
+            if (packetCompressor != null) {
+                packetCompressor.end();
+                packetCompressor = null;
+            }
         }
 
     }
 
     /**
-     * Sends a packet containing a portion of the file data.
+     * Sends a packet containing a portion of the file data. The datagram is
+     * built in a pooled direct buffer, so sending allocates nothing. With
+     * compression on, the payload is deflated straight from the mapped window
+     * into the datagram and the datagram shrinks to fit it.
      *
-     * @param index      The starting index of the portion of the file data to send.
+     * @param offset     The file offset of the portion of the file data to send.
      * @param sequenceNr The sequence number of the packet.
+     * @return The CRC32C of the packet's payload.
      */
-    private void sendPacket(int index, int sequenceNr) {
-        // Create a byte array to hold the packet data
-        byte[] message = new byte[5 + packetSize];
+    private int sendPacket(long offset, int sequenceNr) {
+        return sendPacket(offset, sequenceNr, sequenceNr % datagramChannels.length);
+    }
 
-        // Set the sequence number in the packet header
-        message[0] = (byte) (sequenceNr >> 16);
-        message[1] = (byte) (sequenceNr >> 8);
-        message[2] = (byte) sequenceNr;
+    /**
+     * Sends a packet containing a portion of the file data to one of the
+     * receiver's UDP ports.
+     *
+     * @param offset     The file offset of the portion of the file data to send.
+     * @param sequenceNr The sequence number of the packet.
+     * @param channel    The index of the receiver port to send it to.
+     * @return The CRC32C of the packet's payload.
+     */
+    private int sendPacket(long offset, int sequenceNr, int channel) {
+        ByteBuffer message = bufferPool.acquire();
+        int crc;
+        int datagramLength = bufferPool.getBufferSize();
+        try {
+            int length = (int) Math.max(0, Math.min(packetSize, fileSize - offset));
 
-        // Set the final packet size in the packet header
-        message[3] = (byte) 0 >> 8;
-        message[4] = (byte) 0;
+            // Set the sequence number and, on the last packet, the final packet size
+            if ((offset + packetSize) >= fileSize) {
+                RBUDPPacket.writeHeader(message, sequenceNr, length);
+            } else {
+                RBUDPPacket.writeHeader(message, sequenceNr, 0);
+            }
 
-        // Check if it's the last packet
-        if ((index + packetSize) >= bytesOfFile.length) {
-            EOF = true;
+            // Deflate or copy file data from the mapped window behind the header
+            int compressed = -1;
+            if (length > 0) {
+                ByteBuffer window = windowFor(offset);
+                int windowOffset = (int) (offset - windowStart);
+                if (packetCompressor != null) {
+                    compressed = packetCompressor.compress(window, windowOffset, length, message,
+                            PacketSizing.HEADER_SIZE);
+                }
+                if (compressed < 0) {
+                    message.put(PacketSizing.HEADER_SIZE, window, windowOffset, length);
+                } else {
+                    RBUDPPacket.writeDeflated(message, FileDigest.crc32c(window, windowOffset, length));
+                    datagramLength = PacketSizing.HEADER_SIZE + compressed;
+                }
+            }
+            crc = compressed < 0 ? RBUDPPacket.writeChecksum(message, length) : RBUDPPacket.checksum(message);
+        } catch (IOException e) {
+            bufferPool.release(message);
+            closeResources();
+            System.out.println("Unable to read file data for packet " + sequenceNr);
+            return 0;
+        }
 
-            // Set the final packet size in the packet header
-            message[3] = (byte) ((bytesOfFile.length - index) >> 8);
-            message[4] = (byte) (bytesOfFile.length - index);
+        sendDatagram(message, datagramLength, channel);
+        return crc;
+    }
 
-            // Copy file data to the message array
-            System.arraycopy(bytesOfFile, index, message,
-                    5, bytesOfFile.length - index);
-        } else {
-            // Copy file data to the message array
-            System.arraycopy(bytesOfFile, index, message,
-                    5, packetSize);
+    /**
+     * Adds a packet's payload to the digest of the file, reading it from the
+     * mapped window the packet was sent from.
+     *
+     * @param digest     The digest of the file, one chunk per packet.
+     * @param sequenceNr The sequence number of the packet.
+     * @param offset     The file offset of the packet.
+     * @throws IOException If the file region cannot be mapped.
+     */
+    private void hashPacket(FileDigest digest, int sequenceNr, long offset) throws IOException {
+        int length = (int) Math.min(packetSize, fileSize - offset);
+        ByteBuffer window = windowFor(offset);
+        digest.update(sequenceNr - 1, window, (int) (offset - windowStart), length);
+    }
+
+    /**
+     * Adds a packet's payload to the parity of its FEC group.
+     *
+     * @param parity The parity of the current group.
+     * @param index  The position of the packet within the group.
+     * @param offset The file offset of the packet.
+     * @throws IOException If the file region cannot be mapped.
+     */
+    private void addToParity(XORParity parity, int index, long offset) throws IOException {
+        int length = (int) Math.min(packetSize, fileSize - offset);
+        ByteBuffer window = windowFor(offset);
+        parity.add(index, window, (int) (offset - windowStart), length);
+    }
+
+    /**
+     * Sends the parity packets of a finished FEC group.
+     *
+     * @param parity     The parity of the group.
+     * @param groupFirst The sequence number of the first packet of the group.
+     */
+    private void sendParity(XORParity parity, int groupFirst) {
+        for (int j = 0; j < parity.getParityPackets(); j++) {
+            ByteBuffer message = bufferPool.acquire();
+            RBUDPPacket.writeParityHeader(message, groupFirst, j);
+            message.put(PacketSizing.HEADER_SIZE, parity.get(j), 0, packetSize);
+            RBUDPPacket.writeChecksum(message, packetSize);
+            sendDatagram(message, bufferPool.getBufferSize(), (groupFirst + j) % datagramChannels.length);
+            parityPacketsSent++;
         }
+    }
 
-        // Create a DatagramPacket with the message and send it
-        DatagramPacket sendPacket = new DatagramPacket(
-                message, message.length, inetAddress,
-                UDPPort);
+    /**
+     * Paces and sends a datagram built in a pooled buffer, then hands the
+     * buffer back to the pool.
+     *
+     * @param message The datagram, header and payload from index 0.
+     * @param length  The length of the datagram.
+     * @param channel The index of the receiver port to send it to.
+     */
+    private void sendDatagram(ByteBuffer message, int length, int channel) {
+        // Raw datagrams are full size, the receiver trims the last payload
+        message.position(0).limit(length);
+        pacer.pace(message.limit());
         try {
-            datagramSocket.send(sendPacket);
+            LossyDatagramShim shim = datagramShim;
+            if (shim != null) {
+                shim.send(datagramChannels[channel], message);
+            } else {
+                datagramChannels[channel].write(message);
+            }
+            metrics.addPacket(length - PacketSizing.HEADER_SIZE);
         } catch (IOException e) {
+            // Report only the first failure, the packets after it fail on the closed channels
+            if (datagramChannels[channel].isOpen()) {
+                System.out.println("Packet unable to be sent: " + e.getMessage());
+            }
             closeResources();
-            // Print a message if the packet cannot be sent
-            System.out.println("Packet unable to be sent");
+        } finally {
+            bufferPool.release(message);
         }
-
     }
 
     /**
-     * Sends a list of sequence numbers to the receiver and handles resending
-     * missing packets.
+     * Returns the mapped window of the file that contains the given offset,
+     * remapping the window when the offset falls outside the current one.
+     *
+     * @param offset The file offset that must be readable from the window.
+     * @return The mapped window containing the offset.
+     * @throws IOException If the file region cannot be mapped.
      */
-    private void sendList() {
-        // Print a message indicating sending sequence number list
-        System.out.println("Sending sequence number list");
+    private ByteBuffer windowFor(long offset) throws IOException {
+        MappedByteBuffer window = fileWindow;
+        if (window == null || offset < windowStart || offset >= windowStart + window.capacity()) {
+            // Windows hold whole packets, so a packet never straddles two of them
+            long windowBytes = WINDOW_SIZE / packetSize * packetSize;
+            long start = offset - (offset % windowBytes);
+            window = fileChannel.map(FileChannel.MapMode.READ_ONLY, start,
+                    Math.min(windowBytes, fileSize - start));
+            windowStart = start;
+            fileWindow = window;
+        }
+        return window;
+    }
 
-        // Continuously send and handle missing packets until all packets are received
-        while (true) {
+    /**
+     * Starts a thread that queues every line the receiver sends during an RBUDP
+     * transfer, up to and including the final ##DONE, or ##DIGESTMISMATCH when
+     * the file failed verification. END_OF_REPLIES is queued
+     * if the connection closes first.
+     *
+     * @param scope The scope of the transfer the thread belongs to.
+     */
+    private void readReplies(TransferScope scope) {
+        BlockingQueue<String> queue = replies;
+        scope.fork(() -> {
             try {
-                // Send the list of sequence numbers that have been sent
-                System.out.println("Sending list :" + sequencesSent);
-                bufWrite.write(sequencesSent);
-                bufWrite.newLine();
-                bufWrite.flush();
-                String sequencesNotSent = bufRead.readLine();
-
-                System.out.println("received list: " + sequencesNotSent);
-
-                // Reset the list of sequences sent
-                sequencesSent = "";
-
-                // Check if there are missing packets to be resent
-                if (!sequencesNotSent.equals("##NOTHINGNOTRECEIVED")) {
-                    // Remove leading period if present
-                    if (sequencesNotSent.startsWith("."))
-                        sequencesNotSent = sequencesNotSent.substring(1);
-                    // Split the list into individual sequence numbers
-                    String[] parts = sequencesNotSent.split("\\.");
-                    // Resend missing packets
-                    for (int i = 0; i < parts.length; i++) {
-                        int sequenceNumber_ = Integer.parseInt(parts[i]);
-                        sendPacket(sequenceNumber_ * packetSize - packetSize, sequenceNumber_);
-                        sequencesSent = sequencesSent + "." + parts[i];
-                        System.out.println("Resending: " + parts[i]);
+                String line;
+                while ((line = bufRead.readLine()) != null) {
+                    queue.add(line);
+                    if (line.equals("##DONE") || line.startsWith("##DIGESTMISMATCH")) {
+                        return;
                     }
-                } else {
-                    // Print a message indicating all packets have been resent
-                    System.out.println("Resending completed");
-                    break;
                 }
+            } catch (IOException e) {
+                System.out.println("Reply reader stopped: " + e.getMessage());
+            }
+            queue.add(END_OF_REPLIES);
+        });
+    }
+
+    /**
+     * Sends the bitmap of sequence numbers sent for a block to the receiver.
+     *
+     * @param sent The sequences sent for the block.
+     * @throws IOException If the receiver disconnects.
+     */
+    private void sendList(BlockBitmap sent) throws IOException {
+        long started = System.nanoTime();
+        listSentAt.put(sent.getBlockId(), started);
+        bufWrite.write(sent.encode(BlockBitmap.BLOCK_HEADER));
+        bufWrite.newLine();
+        bufWrite.flush();
+        metrics.addSendListBlocked(System.nanoTime() - started);
+    }
+
+    /**
+     * Handles the receiver's answer to a block's list: a confirmed block frees a
+     * slot in the window, missing packets are resent straight away followed by
+     * a new list for the same block.
+     *
+     * @param reply The line received from the receiver.
+     * @throws IOException If the receiver disconnects.
+     */
+    private void handleReply(String reply) throws IOException {
+        if (reply.equals(END_OF_REPLIES)) {
+            throw new IOException("Receiver closed the connection");
+        }
+        boolean clean = reply.startsWith("##NOTHINGNOTRECEIVED");
+        BlockBitmap missing = clean ? null : BlockBitmap.decode(reply);
+        int answeredBlock = clean ? Integer.parseInt(reply.substring(reply.indexOf(' ') + 1))
+                : missing.getBlockId();
+        Long listSent = listSentAt.remove(answeredBlock);
+        if (listSent != null) {
+            metrics.addControlRoundTrip(System.nanoTime() - listSent);
+        }
 
-            } catch (Exception ex) {
-                // Print a stack trace if an exception occurs and exit the program
-                closeResources();
-                ex.printStackTrace();
-                System.exit(0);
+        // The first answer for a block tells how many of its packets were lost
+        Integer blastedPackets = awaitingFirstAnswer.remove(answeredBlock);
+        if (blastedPackets != null) {
+            int lost = clean ? 0 : missing.cardinality();
+            lastBlockLoss = lost / (double) blastedPackets;
+            metrics.addBlock(lost, blastedPackets);
+            if (rateController != null) {
+                pacer.setRate(rateController.onBlockLoss(lastBlockLoss));
+                metrics.setPacingRate(pacer.getRate());
             }
         }
+
+        if (clean) {
+            // Every packet of the block has arrived
+            blocksInFlight--;
+            return;
+        }
+
+        // Resend missing packets and ask again for the same block
+        metrics.addRetransmissions(missing.cardinality());
+        for (int seq = missing.nextSetBit(missing.getFirstSequence()); seq != -1; seq = missing
+                .nextSetBit(seq + 1)) {
+            sendPacket((long) (seq - 1) * packetSize, seq);
+            packetsRetransmitted++;
+        }
+        sendList(missing);
+    }
+
+    /**
+     * Closes sender resources after the connection to the receiver failed and
+     * lets the listener offer to connect again, so the transfer can be resumed.
+     */
+    private void connectionLost() {
+        closeResources();
+        listener.connectionLost();
+    }
+
+    /**
+     * Cancels the transfer in progress, if any, from another thread. The
+     * connection to the receiver is closed, which stops the transfer's threads;
+     * the receiver keeps what it has written, so the file can be resumed after
+     * reconnecting.
+     */
+    public void cancelTransfer() {
+        TransferScope scope = transfer;
+        if (scope != null) {
+            scope.cancel();
+        }
+        closeResources();
     }
 
     /**
@@ -354,8 +1247,13 @@ public class Sender {
             if (socket != null) {
                 socket.close();
             }
-            if (datagramSocket != null) {
-                datagramSocket.close();
+            DatagramChannel[] channels = datagramChannels;
+            if (channels != null) {
+                for (DatagramChannel channel : channels) {
+                    if (channel != null) {
+                        channel.close();
+                    }
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -0,0 +1,131 @@
+package com.project2;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tracks which RBUDP sequence numbers of a file have been received.
+ * 
+ * One bit per packet, so lookups are constant time and a file of a million
+ * packets costs 128 KB. Bits are set with atomic word updates because packets
+ * are marked by the packet reader while the list thread checks them.
+ */
+public class SequenceTracker {
+
+    private final AtomicLongArray words; // One bit per sequence number, bit 0 unused.
+    private final int numberOfPackets; // The highest sequence number tracked.
+
+    /**
+     * Constructs a tracker for a file of the given number of packets.
+     *
+     * @param numberOfPackets The number of packets in the file, sequence numbers
+     *                        run from 1 to numberOfPackets.
+     */
+    public SequenceTracker(int numberOfPackets) {
+        this.words = new AtomicLongArray((numberOfPackets >>> 6) + 1);
+        this.numberOfPackets = numberOfPackets;
+    }
+
+    /**
+     * Marks a sequence number as received.
+     *
+     * @param sequenceNumber The sequence number of the received packet.
+     * @return true if the packet had not been received before.
+     */
+    public boolean markReceived(int sequenceNumber) {
+        int index = sequenceNumber >>> 6;
+        long mask = 1L << sequenceNumber;
+        long word;
+        do {
+            word = words.get(index);
+            if ((word & mask) != 0) {
+                return false;
+            }
+        } while (!words.compareAndSet(index, word, word | mask));
+        return true;
+    }
+
+    /**
+     * Checks whether a sequence number has been received.
+     *
+     * @param sequenceNumber The sequence number to check.
+     * @return true if the packet has been received.
+     */
+    public boolean isReceived(int sequenceNumber) {
+        return (words.get(sequenceNumber >>> 6) & (1L << sequenceNumber)) != 0;
+    }
+
+    /**
+     * Works out which of the sequences the sender blasted for a block have not
+     * been received.
+     *
+     * @param sent The sequences the sender sent for the block.
+     * @return The sequences of the block that are still missing.
+     */
+    public BlockBitmap missingFrom(BlockBitmap sent) {
+        BlockBitmap missing = new BlockBitmap(sent.getBlockId(), sent.getFirstSequence(), sent.getCount());
+        for (int seq = sent.nextSetBit(sent.getFirstSequence()); seq != -1; seq = sent.nextSetBit(seq + 1)) {
+            if (!isReceived(seq)) {
+                missing.set(seq);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * @return The number of distinct sequence numbers received.
+     */
+    public int receivedCount() {
+        int total = 0;
+        for (int i = 0; i < words.length(); i++) {
+            total += Long.bitCount(words.get(i));
+        }
+        return total;
+    }
+
+    /**
+     * @return true if every packet of the file has been received.
+     */
+    public boolean isComplete() {
+        return receivedCount() == numberOfPackets;
+    }
+
+    /**
+     * @return A bitmap of every received sequence number of the file.
+     */
+    public BlockBitmap received() {
+        BlockBitmap received = new BlockBitmap(0, 1, numberOfPackets);
+        for (int seq = 1; seq <= numberOfPackets; seq++) {
+            if (isReceived(seq)) {
+                received.set(seq);
+            }
+        }
+        return received;
+    }
+
+    /**
+     * @return A bitmap of every sequence number of the file not yet received.
+     */
+    public BlockBitmap missing() {
+        BlockBitmap missing = new BlockBitmap(0, 1, numberOfPackets);
+        for (int seq = 1; seq <= numberOfPackets; seq++) {
+            if (!isReceived(seq)) {
+                missing.set(seq);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Marks every sequence number in a bitmap as received, used to restore the
+     * state of a resumed transfer.
+     *
+     * @param received The sequence numbers already received.
+     */
+    public void markReceived(BlockBitmap received) {
+        for (int seq = received.nextSetBit(1); seq != -1; seq = received.nextSetBit(seq + 1)) {
+            if (seq <= numberOfPackets) {
+                markReceived(seq);
+            }
+        }
+    }
+}
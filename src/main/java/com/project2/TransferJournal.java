@@ -0,0 +1,116 @@
+package com.project2;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * A small on-disk record of how much of a partially received file has been
+ * written, kept next to the partial file so an interrupted transfer can be
+ * resumed.
+ * 
+ * The journal identifies the transfer by mode, size and the sender's version
+ * of the file (its last modified time) and stores the progress under
+ * mode-specific keys. It is replaced atomically on every save and only saved
+ * after the file data it describes has been forced to disk.
+ */
+public class TransferJournal {
+
+    public static final String SUFFIX = ".journal"; // Appended to the partial file's name.
+    public static final long SAVE_INTERVAL_MS = 1000; // Minimum time between periodic saves.
+
+    private final File journalFile; // Where the journal is stored.
+    private final Properties state = new Properties(); // The journal contents.
+    private long lastSaved; // When the journal was last saved, in milliseconds.
+
+    /**
+     * Constructs the journal belonging to a partially received file.
+     *
+     * @param partialFile The file being received.
+     */
+    public TransferJournal(File partialFile) {
+        this.journalFile = new File(partialFile.getParentFile(), partialFile.getName() + SUFFIX);
+    }
+
+    /**
+     * Loads the journal and checks that it describes the same transfer.
+     *
+     * @param mode        The transfer mode, "tcp" or "rbudp".
+     * @param size        The size of the file being sent.
+     * @param version     The sender's version of the file.
+     * @param partialFile The partially received file.
+     * @return true if the transfer can be resumed from the journal.
+     */
+    public boolean resume(String mode, long size, long version, File partialFile) {
+        if (!journalFile.exists() || !partialFile.exists()) {
+            return false;
+        }
+        try (InputStream in = new FileInputStream(journalFile)) {
+            state.clear();
+            state.load(in);
+        } catch (IOException | IllegalArgumentException e) {
+            return false;
+        }
+        return mode.equals(state.getProperty("mode"))
+                && Long.toString(size).equals(state.getProperty("size"))
+                && Long.toString(version).equals(state.getProperty("version"));
+    }
+
+    /**
+     * Starts a fresh journal for a transfer, discarding any earlier state.
+     *
+     * @param mode    The transfer mode, "tcp" or "rbudp".
+     * @param size    The size of the file being sent.
+     * @param version The sender's version of the file.
+     */
+    public void begin(String mode, long size, long version) {
+        state.clear();
+        state.setProperty("mode", mode);
+        state.setProperty("size", Long.toString(size));
+        state.setProperty("version", Long.toString(version));
+        lastSaved = System.currentTimeMillis();
+    }
+
+    public String get(String key) {
+        return state.getProperty(key);
+    }
+
+    public void put(String key, String value) {
+        state.setProperty(key, value);
+    }
+
+    /**
+     * @return true if the periodic save interval has passed since the last save.
+     */
+    public boolean isSaveDue() {
+        return System.currentTimeMillis() - lastSaved >= SAVE_INTERVAL_MS;
+    }
+
+    /**
+     * Writes the journal to disk, replacing the previous one atomically.
+     *
+     * @throws IOException If the journal cannot be written.
+     */
+    public synchronized void save() throws IOException {
+        File tempFile = new File(journalFile.getParentFile(), journalFile.getName() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tempFile)) {
+            state.store(out, "Transfer journal");
+        }
+        Files.move(tempFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        lastSaved = System.currentTimeMillis();
+    }
+
+    /**
+     * Removes the journal once the file has been received completely.
+     */
+    public void delete() {
+        journalFile.delete();
+    }
+}
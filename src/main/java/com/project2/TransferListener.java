@@ -0,0 +1,64 @@
+package com.project2;
+
+/**
+ * Receives the progress and events of a Sender or a Receiver. The GUIs show
+ * them in their windows, the command-line sender and the receiver daemon print
+ * them, so neither side depends on JavaFX.
+ *
+ * Methods are called from the transfer's I/O threads and must return quickly;
+ * a listener that updates a GUI hands the update to its own thread. Every
+ * method does nothing by default, so a listener only implements what it
+ * shows.
+ */
+public interface TransferListener {
+
+    /**
+     * Called when a file starts arriving.
+     */
+    default void transferStarted() {
+    }
+
+    /**
+     * Called as a file arrives, at most TransferProgress.PUBLISH_HZ times a
+     * second and only when more of it has arrived, from the progress
+     * publisher's thread rather than the I/O threads.
+     *
+     * @param fraction       The fraction of the file received, from 0 to 1.
+     * @param bytesPerSecond The rate over the last second.
+     * @param millisLeft     The estimated time until the file is complete, -1
+     *                       while no rate is known.
+     */
+    default void progress(double fraction, double bytesPerSecond, long millisLeft) {
+    }
+
+    /**
+     * Called when a file has been received and verified.
+     *
+     * @param path The absolute path of the received file.
+     */
+    default void fileReceived(String path) {
+    }
+
+    /**
+     * Called with information for the user.
+     *
+     * @param message The information.
+     */
+    default void info(String message) {
+    }
+
+    /**
+     * Called when a transfer fails or a file fails verification.
+     *
+     * @param message What went wrong.
+     */
+    default void error(String message) {
+    }
+
+    /**
+     * Called when the connection to the receiver has been lost; the transfer
+     * can be resumed after connecting again.
+     */
+    default void connectionLost() {
+    }
+}
@@ -0,0 +1,328 @@
+package com.project2;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters of the transfers of one side of the connection, sender or
+ * receiver, shared by every transfer of that side in the process. The hot
+ * paths only bump lock-free counters; rates are worked out once per interval.
+ *
+ * Each side is registered as a JMX MBean and, while it is moving data, prints
+ * one line per interval of space separated key=value pairs starting with
+ * "METRICS", for example:
+ *
+ * METRICS role=sender bytes=67108864 bytesPerSec=2.1e8 packetsPerSec=25600.0
+ * retransmitted=12 lost=12 blocks=9 blockLoss=0.0010 rateMbps=0.0 rttP50Us=512.0
+ * rttP99Us=2048.0 diskWriteP50Us=0.0 diskWriteP99Us=0.0 sendListBlockedMs=1.2
+ *
+ * The interval is set in milliseconds by the project2.metrics.interval system
+ * property, 1000 by default; 0 turns the line off.
+ */
+public class TransferMetrics implements TransferMetricsMBean {
+
+    public static final String INTERVAL_PROPERTY = "project2.metrics.interval"; // Log interval in milliseconds.
+
+    private static final Map<String, TransferMetrics> ROLES = new ConcurrentHashMap<>(); // Metrics per side.
+    private static final long INTERVAL_MILLIS = Long.getLong(INTERVAL_PROPERTY, 1000); // Rate and log interval.
+    private static final ScheduledExecutorService TICKER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "transfer-metrics");
+        thread.setDaemon(true);
+        return thread;
+    }); // Works out the rates and prints the log lines.
+
+    private final String role; // "sender" or "receiver".
+    private final LongAdder bytes = new LongAdder(); // File bytes moved.
+    private final LongAdder packets = new LongAdder(); // Datagrams moved.
+    private final LongAdder retransmitted = new LongAdder(); // Packets sent or asked for again.
+    private final LongAdder lost = new LongAdder(); // Packets found missing at the end of a block.
+    private final LongAdder blocks = new LongAdder(); // Blocks answered.
+    private volatile double lastBlockLoss; // Fraction of the last block's packets that were lost.
+    private volatile double pacingRate; // Rate datagrams are sent at in Mbit/s, 0 when not paced.
+    private final LatencyHistogram controlRtt = new LatencyHistogram(); // From a block's list to its answer.
+    private final LatencyHistogram diskWrite = new LatencyHistogram(); // Writes of a payload to the file.
+    private final LatencyHistogram sendListBlocked = new LatencyHistogram(); // Writing and flushing a list.
+
+    private volatile double bytesPerSecond; // Rate over the last interval.
+    private volatile double packetsPerSecond; // Rate over the last interval.
+    private long lastBytes; // Bytes at the last tick.
+    private long lastPackets; // Packets at the last tick.
+
+    /**
+     * Constructs the metrics of one side.
+     *
+     * @param role "sender" or "receiver".
+     */
+    private TransferMetrics(String role) {
+        this.role = role;
+    }
+
+    /**
+     * Returns the metrics of one side of the connection, registering them with
+     * JMX the first time.
+     *
+     * @param role "sender" or "receiver".
+     * @return The metrics shared by every transfer of that side.
+     */
+    public static TransferMetrics forRole(String role) {
+        return ROLES.computeIfAbsent(role, name -> {
+            TransferMetrics metrics = new TransferMetrics(name);
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+                        new ObjectName("com.project2:type=TransferMetrics,name=" + name));
+            } catch (JMException e) {
+                System.out.println("Unable to register " + name + " metrics: " + e.getMessage());
+            }
+            long interval = INTERVAL_MILLIS > 0 ? INTERVAL_MILLIS : 1000;
+            TICKER.scheduleAtFixedRate(metrics::tick, interval, interval, TimeUnit.MILLISECONDS);
+            return metrics;
+        });
+    }
+
+    /**
+     * Counts file bytes moved, by TCP or as datagram payloads.
+     *
+     * @param count The number of bytes.
+     */
+    public void addBytes(long count) {
+        bytes.add(count);
+    }
+
+    /**
+     * Counts a datagram and its payload.
+     *
+     * @param payloadBytes The file bytes it carries.
+     */
+    public void addPacket(int payloadBytes) {
+        packets.increment();
+        bytes.add(payloadBytes);
+    }
+
+    /**
+     * Counts packets sent again, or asked for again on the receiving side.
+     *
+     * @param count The number of packets.
+     */
+    public void addRetransmissions(int count) {
+        retransmitted.add(count);
+    }
+
+    /**
+     * Records the first answer for a block.
+     *
+     * @param lostPackets The packets of the block that were missing.
+     * @param sentPackets The packets of the block that were sent.
+     */
+    public void addBlock(int lostPackets, int sentPackets) {
+        blocks.increment();
+        lost.add(lostPackets);
+        lastBlockLoss = sentPackets == 0 ? 0 : lostPackets / (double) sentPackets;
+    }
+
+    /**
+     * Records the rate the sender paces datagrams at.
+     *
+     * @param megabitsPerSecond The rate in Mbit/s, 0 for no pacing.
+     */
+    public void setPacingRate(double megabitsPerSecond) {
+        pacingRate = megabitsPerSecond;
+    }
+
+    /**
+     * Records the time from sending a block's list to receiving its answer.
+     *
+     * @param nanos The round trip in nanoseconds.
+     */
+    public void addControlRoundTrip(long nanos) {
+        controlRtt.record(nanos);
+    }
+
+    /**
+     * Records the time taken to write a payload to the file.
+     *
+     * @param nanos The duration in nanoseconds.
+     */
+    public void addDiskWrite(long nanos) {
+        diskWrite.record(nanos);
+    }
+
+    /**
+     * Records the time the sender was blocked writing a list to the control
+     * channel.
+     *
+     * @param nanos The duration in nanoseconds.
+     */
+    public void addSendListBlocked(long nanos) {
+        sendListBlocked.record(nanos);
+    }
+
+    /**
+     * Works out the rates of the last interval and prints the log line if any
+     * data moved.
+     */
+    private void tick() {
+        long nowBytes = bytes.sum();
+        long nowPackets = packets.sum();
+        double seconds = (INTERVAL_MILLIS > 0 ? INTERVAL_MILLIS : 1000) / 1000.0;
+        bytesPerSecond = (nowBytes - lastBytes) / seconds;
+        packetsPerSecond = (nowPackets - lastPackets) / seconds;
+        boolean moved = nowBytes != lastBytes || nowPackets != lastPackets;
+        lastBytes = nowBytes;
+        lastPackets = nowPackets;
+        if (moved && INTERVAL_MILLIS > 0) {
+            System.out.println(logLine());
+        }
+    }
+
+    /**
+     * @return The current metrics as space separated key=value pairs.
+     */
+    public String logLine() {
+        return String.format(Locale.ROOT, "METRICS role=%s bytes=%d bytesPerSec=%.1f packetsPerSec=%.1f"
+                + " retransmitted=%d lost=%d blocks=%d blockLoss=%.4f rateMbps=%.1f rttP50Us=%.1f rttP99Us=%.1f"
+                + " diskWriteP50Us=%.1f diskWriteP99Us=%.1f sendListBlockedMs=%.1f", role, getBytes(),
+                bytesPerSecond, packetsPerSecond, getPacketsRetransmitted(), getPacketsLost(), getBlocks(),
+                lastBlockLoss, pacingRate, getControlRttMicrosP50(), getControlRttMicrosP99(), getDiskWriteMicrosP50(), getDiskWriteMicrosP99(),
+                getSendListBlockedMillis());
+    }
+
+    /**
+     * @return The file bytes moved.
+     */
+    @Override
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * @return The datagrams moved.
+     */
+    @Override
+    public long getPackets() {
+        return packets.sum();
+    }
+
+    /**
+     * @return The file bytes moved per second over the last interval.
+     */
+    @Override
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @return The datagrams moved per second over the last interval.
+     */
+    @Override
+    public double getPacketsPerSecond() {
+        return packetsPerSecond;
+    }
+
+    /**
+     * @return The packets sent again, or asked for again on the receiving
+     *         side.
+     */
+    @Override
+    public long getPacketsRetransmitted() {
+        return retransmitted.sum();
+    }
+
+    /**
+     * @return The packets found missing at the end of their block.
+     */
+    @Override
+    public long getPacketsLost() {
+        return lost.sum();
+    }
+
+    /**
+     * @return The blocks answered.
+     */
+    @Override
+    public long getBlocks() {
+        return blocks.sum();
+    }
+
+    /**
+     * @return The fraction of the last block's packets that were lost.
+     */
+    @Override
+    public double getLastBlockLoss() {
+        return lastBlockLoss;
+    }
+
+    /**
+     * @return The rate the sender paces datagrams at in Mbit/s, 0 when not
+     *         paced.
+     */
+    @Override
+    public double getPacingRateMbps() {
+        return pacingRate;
+    }
+
+    /**
+     * @return The median control channel round trip in microseconds.
+     */
+    @Override
+    public double getControlRttMicrosP50() {
+        return controlRtt.percentileMicros(50);
+    }
+
+    /**
+     * @return The 99th percentile control channel round trip in microseconds.
+     */
+    @Override
+    public double getControlRttMicrosP99() {
+        return controlRtt.percentileMicros(99);
+    }
+
+    /**
+     * @return The control channel round trips per power of two nanoseconds.
+     */
+    @Override
+    public long[] getControlRttHistogram() {
+        return controlRtt.getBuckets();
+    }
+
+    /**
+     * @return The median payload write in microseconds.
+     */
+    @Override
+    public double getDiskWriteMicrosP50() {
+        return diskWrite.percentileMicros(50);
+    }
+
+    /**
+     * @return The 99th percentile payload write in microseconds.
+     */
+    @Override
+    public double getDiskWriteMicrosP99() {
+        return diskWrite.percentileMicros(99);
+    }
+
+    /**
+     * @return The payload writes per power of two nanoseconds.
+     */
+    @Override
+    public long[] getDiskWriteHistogram() {
+        return diskWrite.getBuckets();
+    }
+
+    /**
+     * @return The total time spent writing lists to the control channel, in
+     *         milliseconds.
+     */
+    @Override
+    public double getSendListBlockedMillis() {
+        return sendListBlocked.getTotalNanos() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
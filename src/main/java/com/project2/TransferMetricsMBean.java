@@ -0,0 +1,40 @@
+package com.project2;
+
+/**
+ * The JMX view of TransferMetrics, registered as
+ * com.project2:type=TransferMetrics,name=sender or name=receiver.
+ */
+public interface TransferMetricsMBean {
+
+    long getBytes();
+
+    long getPackets();
+
+    double getBytesPerSecond();
+
+    double getPacketsPerSecond();
+
+    long getPacketsRetransmitted();
+
+    long getPacketsLost();
+
+    long getBlocks();
+
+    double getLastBlockLoss();
+
+    double getPacingRateMbps();
+
+    double getControlRttMicrosP50();
+
+    double getControlRttMicrosP99();
+
+    long[] getControlRttHistogram();
+
+    double getDiskWriteMicrosP50();
+
+    double getDiskWriteMicrosP99();
+
+    long[] getDiskWriteHistogram();
+
+    double getSendListBlockedMillis();
+}
@@ -0,0 +1,99 @@
+package com.project2;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Progress of one file or batch being received. The I/O threads only add the
+ * bytes they wrote to a lock-free counter; a single publisher thread shared
+ * by every transfer in the process reads it at most PUBLISH_HZ times a second
+ * and hands the listener the fraction done, the rate over the last second and
+ * the time left. Nothing is published while the count stands still.
+ *
+ * Closing a progress publishes its final value and stops it.
+ */
+public class TransferProgress implements Closeable {
+
+    public static final int PUBLISH_HZ = 30; // Most updates a listener gets per second.
+
+    private static final long PERIOD_NANOS = TimeUnit.SECONDS.toNanos(1) / PUBLISH_HZ; // Time between updates.
+    private static final int RATE_WINDOW = PUBLISH_HZ; // Updates the rate is measured over, one second's worth.
+    private static final ScheduledExecutorService PUBLISHER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "transfer-progress");
+        thread.setDaemon(true);
+        return thread;
+    }); // Publishes the progress of every transfer.
+
+    private final TransferListener listener; // Where the progress goes.
+    private final long total; // Bytes of the transfer.
+    private final LongAdder done = new LongAdder(); // Bytes written so far, bumped by the I/O threads.
+    private final long[] windowBytes = new long[RATE_WINDOW]; // Bytes done at each of the last updates.
+    private final long[] windowNanos = new long[RATE_WINDOW]; // When each of the last updates ran.
+    private int ticks; // Updates run so far.
+    private long published = -1; // Bytes done at the last published update.
+    private final ScheduledFuture<?> task; // The publisher's periodic update.
+
+    /**
+     * Starts publishing the progress of a transfer.
+     *
+     * @param listener Where the progress goes.
+     * @param total    The bytes of the transfer.
+     * @param done     The bytes already there, when a transfer is resumed.
+     */
+    public TransferProgress(TransferListener listener, long total, long done) {
+        this.listener = listener;
+        this.total = total;
+        this.done.add(Math.min(done, total));
+        task = PUBLISHER.scheduleAtFixedRate(this::publish, 0, PERIOD_NANOS, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Counts bytes written; safe to call from any number of threads.
+     *
+     * @param bytes The number of bytes.
+     */
+    public void add(long bytes) {
+        done.add(bytes);
+    }
+
+    /**
+     * Publishes the progress if it has moved since the last update.
+     */
+    private synchronized void publish() {
+        long bytes = Math.min(done.sum(), total);
+        long now = System.nanoTime();
+
+        // The rate is measured against the oldest update still in the window
+        int slot = ticks % RATE_WINDOW;
+        int oldest = ticks < RATE_WINDOW ? 0 : slot;
+        double bytesPerSecond = 0;
+        if (ticks > 0 && now > windowNanos[oldest]) {
+            bytesPerSecond = (bytes - windowBytes[oldest]) * 1e9 / (now - windowNanos[oldest]);
+        }
+        windowBytes[slot] = bytes;
+        windowNanos[slot] = now;
+        ticks++;
+
+        if (bytes == published) {
+            return;
+        }
+        published = bytes;
+        double fraction = total == 0 ? 1 : bytes / (double) total;
+        long millisLeft = bytes == total ? 0
+                : bytesPerSecond > 0 ? (long) ((total - bytes) * 1000 / bytesPerSecond) : -1;
+        listener.progress(fraction, bytesPerSecond, millisLeft);
+    }
+
+    /**
+     * Stops publishing, after publishing the final progress.
+     */
+    @Override
+    public void close() {
+        task.cancel(false);
+        publish();
+    }
+}
@@ -0,0 +1,243 @@
+package com.project2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The threads of one transfer, such as its packet readers, its list thread or
+ * the workers of its data connections. Threads are forked into the scope and
+ * the transfer joins them all before it returns, so none outlive it. The first
+ * thread to fail cancels the scope, and a transfer is cancelled from outside
+ * the same way.
+ *
+ * Cancelling closes the connections registered with closeOnCancel, which
+ * wakes every thread blocked on them. Threads are not interrupted: a thread
+ * interrupted during FileChannel I/O closes the file channel, which the
+ * transfer still needs to save its journal.
+ *
+ * Threads are virtual threads when the runtime has them (Java 21 and later),
+ * so idle or slow connections cost little more than their sockets, and
+ * platform threads otherwise.
+ */
+public class TransferScope implements AutoCloseable {
+
+    // Creates virtual threads, null when the runtime has none.
+    private static final ThreadFactory VIRTUAL_THREADS = virtualThreadFactory();
+
+    private final List<Thread> threads = new ArrayList<>(); // Threads forked so far.
+    private final List<Closeable> resources = new ArrayList<>(); // Closed when the scope is cancelled.
+    private final AtomicReference<Exception> failure = new AtomicReference<>(); // First failure of a thread.
+    private volatile boolean cancelled; // Whether the scope has been cancelled.
+
+    /**
+     * Work run by a thread of the scope.
+     */
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    /**
+     * Starts a thread in the scope. If the task fails, its exception is kept
+     * for throwIfFailed and the scope is cancelled.
+     *
+     * @param task The work of the thread.
+     * @return The started thread.
+     */
+    public Thread fork(Task task) {
+        Thread thread = newThread(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                if (failure.compareAndSet(null, e)) {
+                    cancel();
+                }
+            }
+        });
+        synchronized (this) {
+            threads.add(thread);
+        }
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Registers a connection to close when the scope is cancelled. It is
+     * closed straight away if the scope already has been.
+     *
+     * @param resource The connection.
+     * @return The connection.
+     */
+    public <T extends Closeable> T closeOnCancel(T resource) {
+        synchronized (this) {
+            if (!cancelled) {
+                resources.add(resource);
+                return resource;
+            }
+        }
+        closeQuietly(resource);
+        return resource;
+    }
+
+    /**
+     * Waits for every thread forked so far to end.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void join() throws InterruptedException {
+        for (Thread thread : snapshot()) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Throws the first failure of a thread of the scope, if any.
+     *
+     * @throws IOException The failure, wrapped if it was not an IOException.
+     */
+    public void throwIfFailed() throws IOException {
+        Exception e = failure.get();
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        }
+        if (e != null) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Cancels the transfer, closing every registered connection so the
+     * threads blocked on them stop.
+     */
+    public void cancel() {
+        List<Closeable> toClose;
+        synchronized (this) {
+            cancelled = true;
+            toClose = new ArrayList<>(resources);
+            resources.clear();
+        }
+        for (Closeable resource : toClose) {
+            closeQuietly(resource);
+        }
+    }
+
+    /**
+     * @return true if the scope has been cancelled.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Cancels the threads still running, if any, and waits for all of them to
+     * end.
+     */
+    @Override
+    public void close() {
+        for (Thread thread : snapshot()) {
+            if (thread.isAlive()) {
+                cancel();
+                break;
+            }
+        }
+        boolean interrupted = false;
+        for (Thread thread : snapshot()) {
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return The threads forked so far.
+     */
+    private synchronized List<Thread> snapshot() {
+        return new ArrayList<>(threads);
+    }
+
+    /**
+     * Closes a connection, ignoring failures as it is being abandoned.
+     */
+    private static void closeQuietly(Closeable resource) {
+        try {
+            resource.close();
+        } catch (IOException e) {
+            System.out.println("Unable to close " + resource + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Starts a thread outside of any scope, such as an accept loop.
+     *
+     * @param task The work of the thread.
+     * @return The started thread, virtual if the runtime has virtual threads.
+     */
+    public static Thread start(Runnable task) {
+        Thread thread = newThread(task);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Creates the executor that runs receiver sessions: a thread per session
+     * when virtual threads are available, so thousands of idle senders cost
+     * almost nothing, or else a fixed pool of platform threads.
+     *
+     * @param platformThreads The size of the pool without virtual threads.
+     * @return The executor.
+     */
+    public static ExecutorService newSessionExecutor(int platformThreads) {
+        if (VIRTUAL_THREADS != null) {
+            try {
+                Method perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+                return (ExecutorService) perTask.invoke(null, VIRTUAL_THREADS);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Thread per task executor unavailable: " + e);
+            }
+        }
+        return Executors.newFixedThreadPool(platformThreads);
+    }
+
+    /**
+     * @return true if threads are virtual threads.
+     */
+    public static boolean isVirtual() {
+        return VIRTUAL_THREADS != null;
+    }
+
+    /**
+     * Creates an unstarted thread, virtual if the runtime has virtual threads.
+     */
+    private static Thread newThread(Runnable task) {
+        return VIRTUAL_THREADS != null ? VIRTUAL_THREADS.newThread(task) : new Thread(task);
+    }
+
+    /**
+     * Looks up Thread.ofVirtual().factory(), which only exists from Java 21
+     * on. The project is compiled for Java 17, so it is found reflectively.
+     *
+     * @return The factory, or null if the runtime has no virtual threads.
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.project2;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Builds the XOR parity packets of RBUDP forward error correction. The data
+ * packets of a block are taken in groups of K, and each group gets R parity
+ * packets: parity j is the XOR of the payloads at positions j, j + R, j + 2R...
+ * of the group, so the receiver can rebuild one lost packet out of each of
+ * those interleaved sets without asking for a resend. Short payloads count as
+ * zero padded to the packet size.
+ */
+public class XORParity {
+
+    public static final int MAX_PARITY_PACKETS = 255; // Parity index fits the header's final size field.
+
+    private final int dataPackets; // K, data packets per group.
+    private final int parityPackets; // R, parity packets per group.
+    private final ByteBuffer[] parity; // One accumulator per parity packet.
+
+    /**
+     * Creates the parity accumulators for one group.
+     *
+     * @param dataPackets   The number of data packets per group.
+     * @param parityPackets The number of parity packets per group.
+     * @param packetSize    The RBUDP payload size.
+     */
+    public XORParity(int dataPackets, int parityPackets, int packetSize) {
+        this.dataPackets = dataPackets;
+        this.parityPackets = parityPackets;
+        this.parity = new ByteBuffer[parityPackets];
+        for (int j = 0; j < parityPackets; j++) {
+            parity[j] = ByteBuffer.allocateDirect(packetSize);
+        }
+    }
+
+    /**
+     * Adds a data packet's payload to the parity packet covering it.
+     *
+     * @param index  The position of the packet within its group.
+     * @param source The buffer holding the payload.
+     * @param offset The index of the payload in the buffer.
+     * @param length The payload length.
+     */
+    public void add(int index, ByteBuffer source, int offset, int length) {
+        xor(parity[index % parityPackets], source, offset, length);
+    }
+
+    /**
+     * Returns a finished parity packet's payload. Call reset before starting
+     * the next group.
+     *
+     * @param j The parity index, 0 to R - 1.
+     * @return The parity payload, the full packet size.
+     */
+    public ByteBuffer get(int j) {
+        return parity[j];
+    }
+
+    /**
+     * Clears the accumulators for the next group.
+     */
+    public void reset() {
+        for (ByteBuffer accumulator : parity) {
+            int i = 0;
+            for (; i + Long.BYTES <= accumulator.capacity(); i += Long.BYTES) {
+                accumulator.putLong(i, 0L);
+            }
+            for (; i < accumulator.capacity(); i++) {
+                accumulator.put(i, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * @return K, the number of data packets per group.
+     */
+    public int getDataPackets() {
+        return dataPackets;
+    }
+
+    /**
+     * @return R, the number of parity packets per group.
+     */
+    public int getParityPackets() {
+        return parityPackets;
+    }
+
+    /**
+     * XORs bytes of a source buffer into the start of a target buffer, eight
+     * bytes at a time where possible. Neither buffer's position moves.
+     *
+     * @param target The buffer XORed into, from index 0.
+     * @param source The buffer holding the bytes.
+     * @param offset The index of the first byte in the source.
+     * @param length The number of bytes.
+     */
+    public static void xor(ByteBuffer target, ByteBuffer source, int offset, int length) {
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            target.putLong(i, target.getLong(i) ^ source.getLong(offset + i));
+        }
+        for (; i < length; i++) {
+            target.put(i, (byte) (target.get(i) ^ source.get(offset + i)));
+        }
+    }
+}
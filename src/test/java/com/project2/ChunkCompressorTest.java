@@ -0,0 +1,66 @@
+package com.project2;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests that TCP frames written by writeFrame read back to the same data,
+ * deflated or stored.
+ */
+public class ChunkCompressorTest {
+
+    /**
+     * Sends compressible text, which is deflated, and random bytes, which are
+     * stored, as frames on one stream, and reads them back.
+     */
+    @Test
+    public void framesRoundTrip() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < ChunkCompressor.FRAME_SIZE; i++) {
+            text.append(i).append(",INFO,request handled\n");
+        }
+        byte[] compressible = text.substring(0, ChunkCompressor.FRAME_SIZE).getBytes(StandardCharsets.US_ASCII);
+        byte[] random = new byte[12345];
+        new Random(1).nextBytes(random);
+
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        ChunkCompressor sender = new ChunkCompressor();
+        try (WritableByteChannel out = Channels.newChannel(wire)) {
+            sender.writeFrame(ByteBuffer.wrap(compressible), 0, compressible.length, out);
+            sender.writeFrame(ByteBuffer.wrap(random), 0, random.length, out);
+        }
+        sender.end();
+        assertTrue("text was not deflated", wire.size() < compressible.length);
+
+        ChunkCompressor receiver = new ChunkCompressor();
+        try (ReadableByteChannel in = Channels.newChannel(new ByteArrayInputStream(wire.toByteArray()))) {
+            assertArrayEquals(compressible, readFrame(receiver, in, compressible.length));
+            assertArrayEquals(random, readFrame(receiver, in, random.length));
+        }
+        receiver.end();
+    }
+
+    /**
+     * Reads one frame into a direct buffer, at an offset, and returns its data.
+     */
+    private static byte[] readFrame(ChunkCompressor receiver, ReadableByteChannel in, int length)
+            throws IOException {
+        ByteBuffer data = ByteBuffer.allocateDirect(length + 3);
+        receiver.readFrame(in, data, 3, length);
+        byte[] bytes = new byte[length];
+        data.get(3, bytes);
+        return bytes;
+    }
+}
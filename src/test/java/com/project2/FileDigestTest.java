@@ -0,0 +1,110 @@
+package com.project2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests that a digest hashed from buffers in memory, however the buffers cut
+ * the chunks, matches the digest of the whole file read back from disk.
+ */
+public class FileDigestTest {
+
+    private static final int CHUNK_SIZE = 1000; // Small chunks, so buffers cut across them.
+    private static final int FILE_SIZE = 10 * CHUNK_SIZE + 337; // Ends with a short chunk.
+
+    /**
+     * Feeds a file in buffers that do not line up with the chunks, in file
+     * order, and checks every chunk was hashed from them.
+     */
+    @Test
+    public void unalignedBuffersHashEveryChunk() throws IOException {
+        byte[] file = randomBytes(FILE_SIZE);
+        for (int piece : new int[] { 1, 256, 999, 1001, 2500 }) {
+            FileDigest digest = new FileDigest(FILE_SIZE, CHUNK_SIZE);
+            for (int offset = 0; offset < FILE_SIZE; offset += piece) {
+                digest.update(offset, slice(file, offset, Math.min(piece, FILE_SIZE - offset)));
+            }
+            assertTrue("pieces of " + piece, digest.isComplete());
+            assertEquals("pieces of " + piece, wholeFileDigest(file), digest.digest());
+        }
+    }
+
+    /**
+     * Feeds two ranges split inside a chunk, the later range's first bytes
+     * arriving after the earlier range has finished, as one connection's
+     * range follows another's.
+     */
+    @Test
+    public void rangeSplitInsideAChunkIsContinued() throws IOException {
+        byte[] file = randomBytes(FILE_SIZE);
+        int split = 4 * CHUNK_SIZE + 123;
+        FileDigest digest = new FileDigest(FILE_SIZE, CHUNK_SIZE);
+        for (int offset = 0; offset < split; offset += 300) {
+            digest.update(offset, slice(file, offset, Math.min(300, split - offset)));
+        }
+        for (int offset = split; offset < FILE_SIZE; offset += 700) {
+            digest.update(offset, slice(file, offset, Math.min(700, FILE_SIZE - offset)));
+        }
+        assertTrue(digest.isComplete());
+        assertEquals(wholeFileDigest(file), digest.digest());
+    }
+
+    /**
+     * Hashes chunks out of order, as RBUDP packets arrive, into a digest that
+     * does not keep its chunk CRCs, and checks it matches one that does.
+     */
+    @Test
+    public void digestWithoutChecksumsMatchesOutOfOrder() throws IOException {
+        byte[] file = randomBytes(FILE_SIZE);
+        FileDigest digest = new FileDigest(FILE_SIZE, CHUNK_SIZE, false);
+        for (int chunk : new int[] { 3, 1, 0, 2, 10, 5, 4, 9, 8, 7, 6, 7 }) {
+            int offset = chunk * CHUNK_SIZE;
+            digest.update(chunk, ByteBuffer.wrap(file), offset, Math.min(CHUNK_SIZE, FILE_SIZE - offset));
+        }
+        assertTrue(digest.isComplete());
+        assertEquals(wholeFileDigest(file), digest.digest());
+    }
+
+    /**
+     * Digests a file by writing it to disk and reading every chunk back.
+     */
+    private static String wholeFileDigest(byte[] file) throws IOException {
+        Path path = Files.createTempFile("digest", ".bin");
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(file));
+            FileDigest digest = new FileDigest(file.length, CHUNK_SIZE);
+            digest.hashRemaining(channel);
+            return digest.digest();
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    /**
+     * Copies bytes of the file into a direct buffer, at an offset so the
+     * buffer's position is not 0.
+     */
+    private static ByteBuffer slice(byte[] file, int offset, int length) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length + 7);
+        buffer.position(7);
+        buffer.put(file, offset, length);
+        buffer.position(7);
+        return buffer;
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,52 @@
+package com.project2;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests that a lost packet of a FEC group is rebuilt from its parity packet
+ * and the other packets it covers, the way the receiver does it.
+ */
+public class XORParityTest {
+
+    private static final int PACKET_SIZE = 1400; // Not a multiple of eight, like real payload sizes.
+    private static final int DATA_PACKETS = 8; // K.
+    private static final int PARITY_PACKETS = 2; // R.
+
+    /**
+     * Loses one packet from each parity set of a group ending in a short
+     * packet, and rebuilds each of them.
+     */
+    @Test
+    public void lostPacketsAreRecovered() {
+        byte[][] packets = new byte[DATA_PACKETS][];
+        Random random = new Random(7);
+        for (int i = 0; i < DATA_PACKETS; i++) {
+            packets[i] = new byte[i == DATA_PACKETS - 1 ? 333 : PACKET_SIZE];
+            random.nextBytes(packets[i]);
+        }
+
+        XORParity parity = new XORParity(DATA_PACKETS, PARITY_PACKETS, PACKET_SIZE);
+        for (int i = 0; i < DATA_PACKETS; i++) {
+            parity.add(i, ByteBuffer.wrap(packets[i]), 0, packets[i].length);
+        }
+
+        for (int lost : new int[] { 4, DATA_PACKETS - 1 }) {
+            int j = lost % PARITY_PACKETS;
+            ByteBuffer rebuilt = ByteBuffer.allocateDirect(PACKET_SIZE);
+            XORParity.xor(rebuilt, parity.get(j), 0, PACKET_SIZE);
+            for (int i = j; i < DATA_PACKETS; i += PARITY_PACKETS) {
+                if (i != lost) {
+                    XORParity.xor(rebuilt, ByteBuffer.wrap(packets[i]), 0, packets[i].length);
+                }
+            }
+            byte[] bytes = new byte[packets[lost].length];
+            rebuilt.get(0, bytes);
+            assertArrayEquals("packet " + lost, packets[lost], bytes);
+        }
+    }
+}